@@ -0,0 +1,78 @@
+package uEngine.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uEngine.*;
+
+/**
+ * Measures one collision check over a scene of randomly placed objects, which
+ * move a little between checks so that contacts begin and end.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CollisionBenchmark {
+	private static final float OBJECT_SIZE = 20;
+
+	@Param({ "100", "1000", "5000" })
+	public int objectCount;
+
+	// Fraction of the world's area covered by objects
+	@Param({ "0.05", "0.5" })
+	public float density;
+
+	@Param({ "bruteForce", "spatialHash" })
+	public String broadphase;
+
+	private List<GameObject> _objects;
+	private float[] _velocityX;
+	private float[] _velocityY;
+	private PhysicsEngine _physics;
+	private int _step;
+
+	@Setup
+	public void setUp() {
+		float worldSize = (float)Math.sqrt(objectCount * OBJECT_SIZE * OBJECT_SIZE / density);
+		Random random = new Random(42);
+
+		_objects = new ArrayList<GameObject>();
+		_velocityX = new float[objectCount];
+		_velocityY = new float[objectCount];
+		for(int i = 0; i < objectCount; i++) {
+			GameObject g = new GameObject();
+			g.transform.position = new Vector2(random.nextFloat() * worldSize, random.nextFloat() * worldSize);
+			g.transform.size = new Vector2(OBJECT_SIZE, OBJECT_SIZE);
+			_objects.add(g);
+			_velocityX[i] = random.nextFloat() * 2 - 1;
+			_velocityY[i] = random.nextFloat() * 2 - 1;
+		}
+
+		_physics = new PhysicsEngine();
+		if(broadphase.equals("spatialHash")) {
+			_physics.setBroadphase(new SpatialHashBroadphase(OBJECT_SIZE * 2));
+		} else {
+			_physics.setBroadphase(new BruteForceBroadphase());
+		}
+		_step = 0;
+	}
+
+	@Benchmark
+	public int checkCollisions() {
+		// Move back and forth, so the scene stays the same on average
+		float direction = (_step++ / 50) % 2 == 0 ? 1 : -1;
+		for(int i = 0; i < _objects.size(); i++) {
+			Vector2 p = _objects.get(i).transform.position;
+			p.x += _velocityX[i] * direction;
+			p.y += _velocityY[i] * direction;
+		}
+
+		_physics.checkCollisions(_objects);
+		return _physics.getContactCount();
+	}
+}
@@ -0,0 +1,62 @@
+package uEngine.benchmarks;
+
+import java.awt.event.KeyEvent;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uEngine.*;
+
+/**
+ * Measures processing a frame's worth of key events, followed by the key
+ * queries a typical scene makes each frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InputBenchmark {
+	private static final int[] KEYS = {
+			KeyEvent.VK_UP, KeyEvent.VK_DOWN, KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT,
+			KeyEvent.VK_SPACE, KeyEvent.VK_W, KeyEvent.VK_A, KeyEvent.VK_S, KeyEvent.VK_D };
+
+	// Number of key events arriving in each frame
+	@Param({ "0", "10", "1000" })
+	public int eventsPerFrame;
+
+	// Number of key queries made in each frame, e.g. by game objects
+	@Param({ "100" })
+	public int queriesPerFrame;
+
+	private InputEngine _input;
+	private int _next;
+
+	@Setup
+	public void setUp() {
+		_input = InputEngine.getInstance();
+		_next = 0;
+	}
+
+	@Benchmark
+	public void frame(Blackhole blackhole) {
+		for(int i = 0; i < eventsPerFrame; i++) {
+			int key = KEYS[_next++ % KEYS.length];
+			if((_next & 1) == 0) {
+				_input.pressKey(key);
+			} else {
+				_input.releaseKey(key);
+			}
+		}
+
+		_input.startFrame();
+
+		for(int i = 0; i < queriesPerFrame; i++) {
+			int key = KEYS[i % KEYS.length];
+			blackhole.consume(_input.getKey(key));
+			blackhole.consume(_input.getKeyDown(key));
+		}
+	}
+}
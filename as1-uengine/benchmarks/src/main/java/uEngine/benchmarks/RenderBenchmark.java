@@ -0,0 +1,67 @@
+package uEngine.benchmarks;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import uEngine.*;
+
+/**
+ * Measures capturing and drawing a frame off-screen, into a BufferedImage,
+ * with a headless render engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RenderBenchmark {
+	private static final Color[] COLORS = { Color.RED, Color.BLUE, Color.ORANGE, Color.GREEN };
+
+	@Param({ "10", "1000", "10000" })
+	public int objectCount;
+
+	private List<GameObject> _objects;
+	private RenderEngine _renderer;
+	private BufferedImage _image;
+	private Graphics2D _graphics;
+	private Vector2 _centre = new Vector2(Game.WINDOW_WIDTH / 2f, Game.WINDOW_HEIGHT / 2f);
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		_objects = new ArrayList<GameObject>();
+		for(int i = 0; i < objectCount; i++) {
+			GameObject g = new GameObject();
+			g.transform.position = new Vector2(random.nextFloat() * Game.WINDOW_WIDTH,
+					random.nextFloat() * Game.WINDOW_HEIGHT);
+			g.transform.previousPosition = new Vector2(g.transform.position.x, g.transform.position.y);
+			g.transform.size = new Vector2(10 + random.nextFloat() * 30, 10 + random.nextFloat() * 30);
+			g.material.color = COLORS[i % COLORS.length];
+			_objects.add(g);
+		}
+
+		_renderer = new RenderEngine(true, Game.WINDOW_WIDTH, Game.WINDOW_HEIGHT);
+		_image = new BufferedImage(Game.WINDOW_WIDTH, Game.WINDOW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		_graphics = _image.createGraphics();
+	}
+
+	@TearDown
+	public void tearDown() {
+		_graphics.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage renderFrame() {
+		_renderer.renderScene(_objects, _centre, 1);
+		_graphics.setColor(Color.WHITE);
+		_graphics.fillRect(0, 0, Game.WINDOW_WIDTH, Game.WINDOW_HEIGHT);
+		_renderer.drawScene(_graphics);
+		return _image;
+	}
+}
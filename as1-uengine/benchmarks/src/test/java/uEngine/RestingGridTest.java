@@ -0,0 +1,80 @@
+package uEngine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the physics engine's grid of resting bodies follows objects
+ * being destroyed and spawned again.
+ */
+public class RestingGridTest {
+	static class HeadlessGame extends Game {
+		HeadlessGame() {
+			super(true);
+		}
+	}
+	
+	static GameObject wall(float x, float y) {
+		GameObject g = new GameObject();
+		g.transform.position = new Vector2(x, y);
+		g.transform.size = new Vector2(10, 10);
+		g.bodyType = BodyType.STATIC;
+		return g;
+	}
+	
+	static boolean inGrid(Game game, GameObject g) {
+		RestingGrid grid = game.getPhysics().restingGrid();
+		Transform t = g.transform;
+		int count = grid.query(t.position.x, t.position.y, t.position.x + t.size.x, t.position.y + t.size.y);
+		for(int i = 0; i < count; i++) {
+			if(grid.found(i) == g) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Test
+	public void respawnedBodyReplacesDestroyedOne() {
+		Game game = new HeadlessGame();
+		GameObject a = wall(0, 0);
+		GameObject b = wall(100, 0);
+		game.addGameObject(a);
+		game.addGameObject(b);
+		game.runTicks(2, 1/60f);
+		assertTrue(inGrid(game, a));
+		assertTrue(inGrid(game, b));
+		
+		game.destroy(b);
+		game.runTicks(2, 1/60f);
+		assertFalse(inGrid(game, b));
+		
+		// Swap one resting body for another in a single tick, so the number of
+		// resting bodies stays the same
+		game.destroy(a);
+		game.spawn(b);
+		game.runTicks(1, 1/60f);
+		assertEquals(1, game.getPhysics().getRestingBodyCount());
+		assertFalse(inGrid(game, a));
+		assertTrue(inGrid(game, b));
+	}
+	
+	@Test
+	public void respawnedSleeperStaysAwakeUntilStill() {
+		Game game = new HeadlessGame();
+		game.getPhysics().setSleepTicks(5);
+		GameObject g = wall(0, 0);
+		g.bodyType = BodyType.DYNAMIC;
+		game.addGameObject(g);
+		game.runTicks(10, 1/60f);
+		assertTrue(g.resting);
+		
+		game.destroy(g);
+		game.runTicks(1, 1/60f);
+		game.spawn(g);
+		game.runTicks(1, 1/60f);
+		assertFalse(g.resting);
+		assertEquals(1, game.getPhysics().getActiveBodyCount());
+	}
+}
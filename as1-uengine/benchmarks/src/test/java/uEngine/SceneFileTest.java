@@ -0,0 +1,355 @@
+package uEngine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trips of scene files, loading of files from older versions and
+ * older classes, and rejection of bad files.
+ */
+public class SceneFileTest {
+	@TempDir
+	Path dir;
+	
+	static class HeadlessGame extends Game {
+		HeadlessGame() {
+			super(true);
+		}
+	}
+	
+	public static class Crate extends GameObject {
+		int hits;
+		String label;
+		float speed = 3;
+		double weight;
+		long serial;
+		char mark;
+		boolean open;
+		BodyType kind;
+		Vector2 home;
+		Color tint;
+		transient int notSaved = 7;
+		
+		// Runs when the crate joins a game; everything it sets is saved, so
+		// loading must put the saved values back afterwards
+		public void start() {
+			hits = -1;
+			transform.position = new Vector2(0, 0);
+			material.color = Color.BLACK;
+			Health health = getComponent(Health.class);
+			if(health != null) {
+				health.points = 0;
+			}
+		}
+	}
+	
+	public static class Health extends Component {
+		int points;
+		String cause;
+	}
+	
+	static Crate crate(int i) {
+		Crate c = new Crate();
+		c.name = "crate" + i;
+		c.tag = Tags.intern("crates");
+		c.layer = 3;
+		c.bodyType = BodyType.KINEMATIC;
+		c.transform.position = new Vector2(i * 10, -i);
+		c.transform.size = new Vector2(5, 6);
+		c.transform.depth = 0.5f;
+		c.material.color = new Color(0x12345678, true);
+		c.material.isVisible = i % 2 == 0;
+		c.hits = i;
+		c.label = i % 3 == 0 ? null : "label" + i;
+		c.speed = i * 0.25f;
+		c.weight = i * 1.5;
+		c.serial = 1L << 40 | i;
+		c.mark = 'é';
+		c.open = true;
+		c.kind = BodyType.STATIC;
+		c.home = i % 2 == 0 ? null : new Vector2(i, 2 * i);
+		c.tint = Color.CYAN;
+		c.notSaved = 9;
+		return c;
+	}
+	
+	static void assertSameCrate(Crate expected, Crate actual) {
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.tag, actual.tag);
+		assertEquals(expected.layer, actual.layer);
+		assertEquals(expected.bodyType, actual.bodyType);
+		assertEquals(expected.transform.position.x, actual.transform.position.x);
+		assertEquals(expected.transform.position.y, actual.transform.position.y);
+		assertEquals(expected.transform.size.x, actual.transform.size.x);
+		assertEquals(expected.transform.size.y, actual.transform.size.y);
+		assertEquals(expected.transform.depth, actual.transform.depth);
+		assertEquals(expected.material.color, actual.material.color);
+		assertEquals(expected.material.isVisible, actual.material.isVisible);
+		assertEquals(expected.hits, actual.hits);
+		assertEquals(expected.label, actual.label);
+		assertEquals(expected.speed, actual.speed);
+		assertEquals(expected.weight, actual.weight);
+		assertEquals(expected.serial, actual.serial);
+		assertEquals(expected.mark, actual.mark);
+		assertEquals(expected.open, actual.open);
+		assertEquals(expected.kind, actual.kind);
+		if(expected.home == null) {
+			assertNull(actual.home);
+		} else {
+			assertEquals(expected.home.x, actual.home.x);
+			assertEquals(expected.home.y, actual.home.y);
+		}
+		assertEquals(expected.tint, actual.tint);
+		assertEquals(7, actual.notSaved);
+	}
+	
+	@Test
+	public void roundTrip() throws IOException {
+		String file = dir.resolve("crates.scene").toString();
+		SceneWriter writer = new SceneWriter(file, 42, 800, 600);
+		for(int i = 0; i < 10; i++) {
+			writer.write(crate(i));
+		}
+		writer.close();
+		
+		SceneReader reader = new SceneReader(file);
+		assertEquals(42, reader.getTick());
+		List<GameObject> objects = reader.readAll();
+		reader.close();
+		assertEquals(10, objects.size());
+		for(int i = 0; i < 10; i++) {
+			assertSameCrate(crate(i), (Crate)objects.get(i));
+		}
+	}
+	
+	@Test
+	public void loadedObjectsKeepTheirStateAfterStarting() throws IOException {
+		Game game = new HeadlessGame();
+		Crate saved = crate(1);
+		Health health = new Health();
+		health.points = 12;
+		health.cause = "fall";
+		saved.addComponent(health);
+		game.addGameObject(saved);
+		game.runTicks(1, 1/60f);
+		
+		// start() has run, so set the state again before saving
+		Crate expected = crate(1);
+		saved.hits = expected.hits;
+		saved.transform.position = new Vector2(expected.transform.position.x, expected.transform.position.y);
+		saved.material.color = expected.material.color;
+		health.points = 12;
+		String file = dir.resolve("game.scene").toString();
+		game.saveScene(file);
+		
+		Game loaded = new HeadlessGame();
+		assertEquals(1, loaded.loadScene(file));
+		loaded.runTicks(0, 1/60f);
+		Crate crate = (Crate)loaded.gameObjects().get(0);
+		assertSameCrate(expected, crate);
+		Health loadedHealth = crate.getComponent(Health.class);
+		assertNotNull(loadedHealth);
+		assertEquals(12, loadedHealth.points);
+		assertEquals("fall", loadedHealth.cause);
+	}
+	
+	@Test
+	public void fileCanBeReplacedWhileObjectsAreWaitingToStart() throws IOException {
+		String file = dir.resolve("replaced.scene").toString();
+		SceneWriter writer = new SceneWriter(file, 0, 800, 600);
+		writer.write(crate(1));
+		writer.close();
+		
+		// Loaded, but not yet started, so the objects still need the file's
+		// records
+		Game game = new HeadlessGame();
+		game.loadScene(file);
+		Path other = dir.resolve("other.scene");
+		Files.write(other, new byte[] {1, 2, 3});
+		Files.move(other, Paths.get(file), StandardCopyOption.REPLACE_EXISTING);
+		game.runTicks(0, 1/60f);
+		assertSameCrate(crate(1), (Crate)game.gameObjects().get(0));
+	}
+	
+	/**
+	 * Writes a scene file by hand, to make files an older writer or an older
+	 * version of a class would have made.
+	 */
+	static class SceneBytes {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		final int version;
+		
+		SceneBytes(int version) throws IOException {
+			this.version = version;
+			out.writeInt(SceneWriter.MAGIC);
+			out.writeShort(version);
+			out.writeLong(7);
+			out.writeInt(800);
+			out.writeInt(600);
+		}
+		
+		void varInt(int value) throws IOException {
+			while((value & ~0x7F) != 0) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+		
+		void string(String value) throws IOException {
+			if(value == null) {
+				varInt(0);
+				return;
+			}
+			byte[] b = value.getBytes(StandardCharsets.UTF_8);
+			varInt(1);
+			varInt(b.length);
+			out.write(b);
+		}
+		
+		/**
+		 * Writes a type record, with a name and kind for each field.
+		 */
+		void type(Class<?> c, Object... fields) throws IOException {
+			out.write(SceneWriter.TYPE);
+			string(c.getName());
+			varInt(fields.length / 2);
+			for(int i = 0; i < fields.length; i += 2) {
+				string((String)fields[i]);
+				out.write((Integer)fields[i + 1]);
+			}
+		}
+		
+		/**
+		 * Starts an object record, up to its fields.
+		 */
+		void object(int type, String name) throws IOException {
+			out.write(SceneWriter.OBJECT);
+			varInt(type);
+			string(name);
+			string(null);
+			out.write(0);
+			out.write(BodyType.DYNAMIC.ordinal());
+			out.writeFloat(1);
+			out.writeFloat(2);
+			out.writeFloat(3);
+			out.writeFloat(4);
+			out.writeFloat(0);
+			out.write(SceneWriter.VISIBLE | SceneWriter.HAS_COLOR);
+			out.writeInt(0xFF00FF00);
+			string(null);
+		}
+		
+		void end(long objects) throws IOException {
+			out.write(SceneWriter.END);
+			out.writeLong(objects);
+		}
+		
+		String save(Path dir, String name) throws IOException {
+			Path path = dir.resolve(name);
+			Files.write(path, bytes.toByteArray());
+			return path.toString();
+		}
+	}
+	
+	@Test
+	public void versionOneFile() throws IOException {
+		// Version 1 had no components, so records end with the fields
+		SceneBytes scene = new SceneBytes(1);
+		scene.type(Crate.class, "hits", SceneType.INT, "label", SceneType.STRING);
+		scene.object(0, "old");
+		scene.out.writeInt(5);
+		scene.string("written by version 1");
+		scene.end(1);
+		
+		List<GameObject> objects = new SceneReader(scene.save(dir, "v1.scene")).readAll();
+		assertEquals(1, objects.size());
+		Crate crate = (Crate)objects.get(0);
+		assertEquals("old", crate.name);
+		assertEquals(3, crate.transform.size.x);
+		assertEquals(new Color(0xFF00FF00, true), crate.material.color);
+		assertEquals(5, crate.hits);
+		assertEquals("written by version 1", crate.label);
+		assertEquals(3, crate.speed);
+	}
+	
+	@Test
+	public void fieldsAddedRemovedOrRetyped() throws IOException {
+		// Saved when Crate had a field it has since lost, had label as an int,
+		// and did not yet have speed
+		SceneBytes scene = new SceneBytes(SceneWriter.VERSION);
+		scene.type(Crate.class, "lost", SceneType.STRING, "hits", SceneType.INT, "label", SceneType.INT,
+				"weight", SceneType.DOUBLE);
+		scene.type(Health.class, "points", SceneType.INT, "lost", SceneType.LONG);
+		scene.object(0, "older");
+		scene.string("gone");
+		scene.out.writeInt(9);
+		scene.out.writeInt(1234);
+		scene.out.writeLong(Double.doubleToLongBits(2.5));
+		scene.varInt(1);
+		scene.varInt(1);
+		scene.out.writeInt(40);
+		scene.out.writeLong(-1);
+		scene.end(1);
+		
+		List<GameObject> objects = new SceneReader(scene.save(dir, "older.scene")).readAll();
+		Crate crate = (Crate)objects.get(0);
+		assertEquals(9, crate.hits);
+		assertNull(crate.label);
+		assertEquals(2.5, crate.weight);
+		assertEquals(3, crate.speed);
+		Health health = crate.getComponent(Health.class);
+		assertEquals(40, health.points);
+		assertNull(health.cause);
+	}
+	
+	@Test
+	public void badFilesAreRejected() throws IOException {
+		SceneBytes future = new SceneBytes(SceneWriter.VERSION + 1);
+		assertThrows(IOException.class, () -> new SceneReader(future.save(dir, "future.scene")));
+		
+		Path notScene = dir.resolve("not.scene");
+		Files.write(notScene, "not a scene file at all".getBytes(StandardCharsets.UTF_8));
+		assertThrows(IOException.class, () -> new SceneReader(notScene.toString()));
+		
+		SceneBytes wrongType = new SceneBytes(SceneWriter.VERSION);
+		wrongType.type(String.class);
+		SceneReader reader = new SceneReader(wrongType.save(dir, "string.scene"));
+		assertThrows(IOException.class, () -> reader.next());
+		
+		// A component type can't be an object
+		SceneBytes component = new SceneBytes(SceneWriter.VERSION);
+		component.type(Health.class, "points", SceneType.INT);
+		component.object(0, "health");
+		SceneReader componentReader = new SceneReader(component.save(dir, "component.scene"));
+		assertThrows(IOException.class, () -> componentReader.next());
+	}
+	
+	@Test
+	public void truncatedFilesAreRejected() throws IOException {
+		String file = dir.resolve("whole.scene").toString();
+		SceneWriter writer = new SceneWriter(file, 0, 800, 600);
+		Crate crate = crate(1);
+		crate.addComponent(new Health());
+		writer.write(crate);
+		writer.write(crate(2));
+		writer.close();
+		byte[] whole = Files.readAllBytes(Paths.get(file));
+		
+		Path cut = dir.resolve("cut.scene");
+		for(int length = 0; length < whole.length; length++) {
+			Files.write(cut, Arrays.copyOf(whole, length));
+			assertThrows(IOException.class, () -> new SceneReader(cut.toString()).readAll(),
+					"file cut to " + length + " bytes");
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package uEngine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips of replication snapshots, with and without a baseline, and
+ * decoding of corrupt snapshots.
+ */
+public class SnapshotCodecTest {
+	/**
+	 * Makes a state with an object for each handle, with fields worked out
+	 * from the handle and the given variant.
+	 */
+	static WorldState state(int variant, int... handles) {
+		WorldState s = new WorldState();
+		s.ensureCapacity(handles.length);
+		for(int j = 0; j < handles.length; j++) {
+			int h = handles[j];
+			s.handle[j] = h;
+			s.x[j] = h * 1.5f + variant;
+			s.y[j] = -h;
+			s.width[j] = 10;
+			s.height[j] = 20 + h % 3;
+			s.depth[j] = h % 2 == 0 ? 0 : Float.NaN;
+			s.color[j] = 0xFF000000 | h;
+			s.flags[j] = WorldState.VISIBLE | (h % 5 == 0 ? WorldState.STATIC : 0);
+			s.sprite[j] = h % 4 == 0 ? null : "sprite" + (h % 4) + "é";
+		}
+		s.count = handles.length;
+		return s;
+	}
+	
+	static WorldState roundTrip(WorldState baseline, WorldState state) throws IOException {
+		SnapshotCodec codec = new SnapshotCodec();
+		int length = codec.encode(baseline, state);
+		WorldState decoded = new WorldState();
+		SnapshotCodec.decode(ByteBuffer.wrap(codec.getBuffer(), 0, length), baseline, decoded);
+		return decoded;
+	}
+	
+	static void assertSameState(WorldState expected, WorldState actual) {
+		assertEquals(expected.count, actual.count);
+		for(int j = 0; j < expected.count; j++) {
+			assertEquals(expected.handle[j], actual.handle[j]);
+			assertEquals(Float.floatToIntBits(expected.x[j]), Float.floatToIntBits(actual.x[j]));
+			assertEquals(Float.floatToIntBits(expected.y[j]), Float.floatToIntBits(actual.y[j]));
+			assertEquals(Float.floatToIntBits(expected.width[j]), Float.floatToIntBits(actual.width[j]));
+			assertEquals(Float.floatToIntBits(expected.height[j]), Float.floatToIntBits(actual.height[j]));
+			assertEquals(Float.floatToIntBits(expected.depth[j]), Float.floatToIntBits(actual.depth[j]));
+			assertEquals(expected.color[j], actual.color[j]);
+			assertEquals(expected.flags[j], actual.flags[j]);
+			assertEquals(expected.sprite[j], actual.sprite[j]);
+		}
+	}
+	
+	@Test
+	public void wholeState() throws IOException {
+		WorldState state = state(0, 1, 2, 3, 4, 8, 9, 12);
+		assertSameState(state, roundTrip(null, state));
+	}
+	
+	@Test
+	public void emptyState() throws IOException {
+		WorldState empty = state(0);
+		assertSameState(empty, roundTrip(null, empty));
+		assertSameState(empty, roundTrip(state(0, 1, 2, 3), empty));
+		assertSameState(state(0, 1, 2, 3), roundTrip(empty, state(0, 1, 2, 3)));
+	}
+	
+	@Test
+	public void changesAgainstBaseline() throws IOException {
+		WorldState baseline = state(0, 1, 2, 3, 4, 5, 6);
+		WorldState state = state(0, 1, 2, 3, 4, 5, 6);
+		state.x[1] += 1;
+		state.color[3] = 0x80FF0000;
+		state.sprite[4] = null;
+		state.sprite[0] = "new";
+		state.flags[5] = 0;
+		assertSameState(state, roundTrip(baseline, state));
+	}
+	
+	@Test
+	public void unchangedStateIsSmall() {
+		WorldState baseline = state(0, 1, 2, 3, 4, 5, 6);
+		SnapshotCodec codec = new SnapshotCodec();
+		int whole = codec.encode(null, baseline);
+		int unchanged = codec.encode(baseline, state(0, 1, 2, 3, 4, 5, 6));
+		assertTrue(unchanged < 8, "unchanged snapshot takes " + unchanged + " bytes");
+		assertTrue(whole > unchanged * 10);
+	}
+	
+	@Test
+	public void removedAndAddedObjects() throws IOException {
+		WorldState baseline = state(0, 1, 2, 3, 4, 5, 6);
+		
+		// Remove the first, last and some in between, and add others among them
+		WorldState state = state(1, 0, 2, 4, 7, 9);
+		assertSameState(state, roundTrip(baseline, state));
+		
+		// Remove everything
+		assertSameState(state(0), roundTrip(baseline, state(0)));
+		
+		// Replace everything
+		WorldState replaced = state(2, 10, 11, 12);
+		assertSameState(replaced, roundTrip(baseline, replaced));
+	}
+	
+	@Test
+	public void handleGaps() throws IOException {
+		int[] handles = {0, 1, 127, 128, 16383, 16384, 1 << 21, (1 << 28) + 5, Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+		WorldState state = state(0, handles);
+		assertSameState(state, roundTrip(null, state));
+		
+		WorldState baseline = state(0, 0, 128, 1 << 21, Integer.MAX_VALUE);
+		assertSameState(state, roundTrip(baseline, state));
+		assertSameState(baseline, roundTrip(state, baseline));
+	}
+	
+	@Test
+	public void truncatedSnapshotsAreRejected() {
+		WorldState baseline = state(0, 1, 2, 3, 4, 5, 6);
+		WorldState state = state(1, 0, 2, 4, 7, 9);
+		SnapshotCodec codec = new SnapshotCodec();
+		int length = codec.encode(baseline, state);
+		for(int end = 0; end < length; end++) {
+			ByteBuffer in = ByteBuffer.wrap(codec.getBuffer(), 0, end);
+			assertThrows(IOException.class, () -> SnapshotCodec.decode(in, baseline, new WorldState()));
+		}
+	}
+	
+	@Test
+	public void snapshotForAnotherBaselineIsRejected() {
+		WorldState baseline = state(0, 1, 2, 3);
+		SnapshotCodec codec = new SnapshotCodec();
+		int length = codec.encode(baseline, state(1, 1, 2, 3));
+		
+		// Without the baseline, the changed objects have only some fields
+		ByteBuffer in = ByteBuffer.wrap(codec.getBuffer(), 0, length);
+		assertThrows(IOException.class, () -> SnapshotCodec.decode(in, null, new WorldState()));
+		
+		// Against a baseline without those objects
+		ByteBuffer again = ByteBuffer.wrap(codec.getBuffer(), 0, length);
+		assertThrows(IOException.class, () -> SnapshotCodec.decode(again, state(0, 7, 8, 9), new WorldState()));
+	}
+	
+	@Test
+	public void corruptSnapshotsOnlyThrowIOException() {
+		WorldState baseline = state(0, 1, 2, 3, 4, 5, 6);
+		SnapshotCodec codec = new SnapshotCodec();
+		int length = codec.encode(baseline, state(1, 0, 2, 4, 7, 9));
+		byte[] snapshot = Arrays.copyOf(codec.getBuffer(), length);
+		Random random = new Random(1);
+		WorldState decoded = new WorldState();
+		for(int trial = 0; trial < 10000; trial++) {
+			byte[] corrupt = snapshot.clone();
+			int flips = 1 + random.nextInt(4);
+			for(int k = 0; k < flips; k++) {
+				corrupt[random.nextInt(corrupt.length)] = (byte)random.nextInt(256);
+			}
+			try {
+				SnapshotCodec.decode(ByteBuffer.wrap(corrupt), random.nextBoolean() ? baseline : null, decoded);
+			} catch(IOException e) {
+				// Expected for most
+			}
+		}
+		
+		// A huge object count must not be trusted
+		byte[] huge = {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x07, 0, 0};
+		assertThrows(IOException.class, () -> SnapshotCodec.decode(ByteBuffer.wrap(huge), null, new WorldState()));
+	}
+}
@@ -4,7 +4,7 @@ import java.awt.Color;
 
 import uEngine.*;
 
-public class Ball extends GameObject {
+public class Ball extends GameObject implements ParallelUpdate, ContinuousCollision {
 
 	private final float ROOT_2 = (float)Math.sqrt(2);
 	private float _speed = 120f;
@@ -18,7 +18,7 @@ public class Ball extends GameObject {
 		
 		audio.addClip("blip", "media/blip.wav");
 		
-		transform.position = new Vector2(Game.WINDOW_WIDTH/2,Game.WINDOW_HEIGHT/2);
+		transform.position = new Vector2(game.getWidth()/2,game.getHeight()/2);
 		material.color = Color.RED;
 	}
 	
@@ -29,15 +29,23 @@ public class Ball extends GameObject {
 	}
 	
 	@Override
-	public void onCollisionEnter(GameObject col) {
+	public void onCollisionEnter(GameObject col, Contact contact) {
 		audio.playOneShot("blip");
 		
-		// add code to change direction
-		if(col.name.equals("top") || col.name.equals("bottom")) {
-			_velocity.y *= -1;
+		if(contact.swept) {
+			// We may have gone into, or right through, what we hit; go back to
+			// where we hit it
+			transform.position.x = transform.previousPosition.x
+					+ (transform.position.x - transform.previousPosition.x) * contact.timeOfImpact;
+			transform.position.y = transform.previousPosition.y
+					+ (transform.position.y - transform.previousPosition.y) * contact.timeOfImpact;
+		}
+		
+		// Bounce off the side we hit, heading away from it
+		if(contact.normal.x != 0) {
+			_velocity.x = Math.abs(_velocity.x) * contact.normal.x;
 		} else {
-			assert(col.name.equals("right") || col.name.equals("left") || col.name.equals("paddle"));
-			_velocity.x *= -1;
+			_velocity.y = Math.abs(_velocity.y) * contact.normal.y;
 		}
 	}
 }
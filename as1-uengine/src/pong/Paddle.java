@@ -23,10 +23,10 @@ public class Paddle extends GameObject {
 	
 	@Override
 	public void update(float elapsedTime) {
-		if(InputEngine.getInstance().getKey(KeyEvent.VK_DOWN) && !_atBottom) {
+		if(input.getKey(KeyEvent.VK_DOWN) && !_atBottom) {
 			// move paddle down
 			transform.position.y += elapsedTime * _speed;
-		} else if (InputEngine.getInstance().getKey(KeyEvent.VK_UP) && !_atTop) {
+		} else if (input.getKey(KeyEvent.VK_UP) && !_atTop) {
 			// move paddle up
 			transform.position.y -= elapsedTime * _speed;
 		}
@@ -34,20 +34,20 @@ public class Paddle extends GameObject {
 	
 	@Override
 	public void onCollisionEnter(GameObject col) {
-		if(col.name.equals("bottom")) {
+		if(col.tag == PongGame.BOTTOM) {
 			_atBottom = true;
 		}
-		if(col.name.equals("top")) {
+		if(col.tag == PongGame.TOP) {
 			_atTop = true;
 		}
 	}
 	
 	@Override
 	public void onCollisionExit(GameObject col) {
-		if(col.name.equals("bottom")) {
+		if(col.tag == PongGame.BOTTOM) {
 			_atBottom = false;
 		}
-		if(col.name.equals("top")) {
+		if(col.tag == PongGame.TOP) {
 			_atTop = false;
 		}
 	}
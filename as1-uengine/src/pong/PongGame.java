@@ -1,24 +1,175 @@
 package pong;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
 import uEngine.*;
 
 public class PongGame extends Game {
 
 	private static final int WALL_WIDTH = 20;
 	
-	private static PongGame _game;
+	// Collision layer of the walls, which never need to collide with each other
+	static final int WALL_LAYER = 1;
 	
-	public static void main(String args[]) {
-		_game = new PongGame();
+	// Tags of the walls the paddle stops at
+	static final int TOP = Tags.intern("top");
+	static final int BOTTOM = Tags.intern("bottom");
+
+	private static PongGame _game;
+
+	public PongGame() {
+		super();
+	}
+
+	public PongGame(boolean headless) {
+		super(headless);
+	}
+
+	/**
+	 * Creates a game of pong, with its walls, ball and paddle.
+	 * @param headless
+	 * @return the game, ready to run
+	 */
+	public static PongGame create(boolean headless) {
+		PongGame game = new PongGame(headless);
+		int width = game.getWidth();
+		int height = game.getHeight();
+		game.getPhysics().getLayers().setInteracts(WALL_LAYER, WALL_LAYER, false);
+
+		game.addGameObject(new Wall("left", new Vector2(0,0), new Vector2(WALL_WIDTH,height)));
+		game.addGameObject(new Wall("right", new Vector2(width-WALL_WIDTH,0), new Vector2(20,height)));
+		game.addGameObject(new Wall("top", new Vector2(0,0), new Vector2(width,WALL_WIDTH)));
+		game.addGameObject(new Wall("bottom", new Vector2(0,height-WALL_WIDTH-WALL_WIDTH), new Vector2(width,WALL_WIDTH)));
+
+		game.addGameObject(new Ball());
+		game.addGameObject(new Paddle());
+
+		return game;
+	}
+
+	/**
+	 * Runs the game. With the argument -headless, runs the game without a
+	 * window as fast as possible for a number of ticks (default 100000), and
+	 * reports the tick rate achieved. With the argument -rooms, runs a number
+	 * of headless games (default 100) together in real time for ten seconds,
+	 * and reports how well they kept up. With the argument -replicate, runs a
+	 * headless game as a server with a number of headless clients (default
+	 * 10) over loopback for ten seconds, and reports the traffic and how well
+	 * the clients kept up. With the argument -record and a file
+	 * name, plays the game in a window, recording the player's input to the
+	 * file. With the argument -replay and a file name, replays recorded input
+	 * without a window as fast as possible, and reports the tick rate achieved.
+	 * @param args
+	 */
+	public static void main(String args[]) throws InterruptedException, IOException {
+		if(args.length > 0 && args[0].equals("-rooms")) {
+			int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+			runRooms(rooms);
+			return;
+		}
 		
-		_game.addGameObject(new Wall("left", new Vector2(0,0), new Vector2(WALL_WIDTH,Game.WINDOW_HEIGHT)));
-		_game.addGameObject(new Wall("right", new Vector2(Game.WINDOW_WIDTH-WALL_WIDTH,0), new Vector2(20,Game.WINDOW_HEIGHT)));
-		_game.addGameObject(new Wall("top", new Vector2(0,0), new Vector2(Game.WINDOW_WIDTH,WALL_WIDTH)));
-		_game.addGameObject(new Wall("bottom", new Vector2(0,Game.WINDOW_HEIGHT-WALL_WIDTH-WALL_WIDTH), new Vector2(Game.WINDOW_WIDTH,WALL_WIDTH)));
+		if(args.length > 0 && args[0].equals("-replicate")) {
+			int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+			runReplication(clients);
+			return;
+		}
 		
-		_game.addGameObject(new Ball());
-		_game.addGameObject(new Paddle());
+		if(args.length > 1 && args[0].equals("-replay")) {
+			_game = create(true);
+			InputReplay replay = new InputReplay(args[1]);
+			try {
+				double rate = _game.replay(replay);
+				System.out.println("Replayed " + replay.getFrameCount() + " frames at " + (long)rate + " ticks/s");
+			} finally {
+				replay.close();
+			}
+			return;
+		}
 		
-		_game.mainLoop();
+		if(args.length > 1 && args[0].equals("-record")) {
+			_game = create(false);
+			final InputRecorder recorder = new InputRecorder(args[1]);
+			_game.getInput().setRecorder(recorder);
+			// The game runs until the window is closed, which exits the program
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						recorder.close();
+					} catch(IOException e) {
+						System.out.println("record input error: " + e.getMessage());
+					}
+				}
+			});
+			_game.mainLoop();
+			return;
+		}
+
+		boolean headless = args.length > 0 && args[0].equals("-headless");
+		_game = create(headless);
+
+		if(headless) {
+			long ticks = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+			double rate = _game.runTicks(ticks, 1f / 60);
+			System.out.println("Ran " + ticks + " ticks at " + (long)rate + " ticks/s");
+		} else {
+			_game.mainLoop();
+		}
+	}
+
+	private static void runRooms(int rooms) throws InterruptedException {
+		WorldHost host = new WorldHost(Runtime.getRuntime().availableProcessors());
+		WorldHost.World[] worlds = new WorldHost.World[rooms];
+		for(int i = 0; i < rooms; i++) {
+			worlds[i] = host.addWorld(create(true), 60);
+		}
+
+		Thread.sleep(10000);
+		host.shutdown();
+
+		long ticks = 0, overruns = 0, dropped = 0;
+		for(WorldHost.World world : worlds) {
+			ticks += world.getGame().getTickCount();
+			overruns += world.getOverrunCount();
+			dropped += world.getDroppedTickCount();
+		}
+		System.out.println(rooms + " rooms ran " + ticks + " ticks in 10s ("
+				+ overruns + " budget overruns, " + dropped + " ticks dropped)");
+	}
+
+	private static void runReplication(int clients) throws InterruptedException, IOException {
+		WorldHost host = new WorldHost(Runtime.getRuntime().availableProcessors());
+		PongGame serverGame = create(true);
+		ReplicationServer server = new ReplicationServer(serverGame,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		PongGame[] clientGames = new PongGame[clients];
+		ReplicationClient[] replicas = new ReplicationClient[clients];
+		for(int i = 0; i < clients; i++) {
+			// Clients start empty, and show the server's objects
+			clientGames[i] = new PongGame(true);
+			replicas[i] = new ReplicationClient(clientGames[i], server.getAddress());
+			host.addWorld(clientGames[i], 60);
+		}
+		host.addWorld(serverGame, 60);
+
+		Thread.sleep(10000);
+		host.shutdown();
+
+		long received = 0, dropped = 0;
+		int synced = 0;
+		for(ReplicationClient replica : replicas) {
+			received += replica.getSnapshotsReceived();
+			dropped += replica.getSnapshotsDropped();
+			if(replica.getObjectCount() == serverGame.getGameObjectCount()) {
+				synced++;
+			}
+			replica.close();
+		}
+		System.out.printf("%d clients: %.0f bytes/tick, %.1f us/tick encoding, %d of %d in sync, "
+				+ "%d snapshots received, %d dropped%n", server.getClientCount(),
+				server.getAverageBytesPerTick(), server.getAverageEncodeTime() / 1000, synced, clients,
+				received, dropped);
+		server.close();
 	}
-}
\ No newline at end of file
+}
@@ -18,9 +18,15 @@ public class Wall extends GameObject {
 		material.color = Color.orange;
 	}
 	
+	// Used when loading a scene, which restores the fields
+	private Wall() {}
+	
 	public Wall(String name, Vector2 pos, Vector2 size) {
 		_name = name;
+		tag = Tags.intern(name);
 		_pos = pos;
 		_size = size;
+		setLayer(PongGame.WALL_LAYER);
+		bodyType = BodyType.STATIC;
 	}
 }
@@ -8,8 +8,6 @@ import java.awt.event.KeyEvent;
 public class MovableGameObject extends GameObject {
 	private long _velocity = 100;
 	
-	private InputEngine _input = InputEngine.getInstance();
-	
 	public void start() {
 		name = "Ben";
 		transform.position = new Vector2(400,400);
@@ -18,19 +16,19 @@ public class MovableGameObject extends GameObject {
 	}
 	
 	public void update(float elapsedTime) {
-		if(_input.getKey(KeyEvent.VK_RIGHT)) {
+		if(input.getKey(KeyEvent.VK_RIGHT)) {
 			//System.out.println("Moving object right by: " + _velocity*elapsedTime);
 			transform.position.x += _velocity * elapsedTime;
 		}
-		if(_input.getKey(KeyEvent.VK_LEFT)) {
+		if(input.getKey(KeyEvent.VK_LEFT)) {
 			//System.out.println("Moving object left by: " + _velocity*elapsedTime);
 			transform.position.x -= _velocity * elapsedTime;
 		}
-		if(_input.getKey(KeyEvent.VK_UP)) {
+		if(input.getKey(KeyEvent.VK_UP)) {
 			//System.out.println("Moving object up by: " + _velocity*elapsedTime);
 			transform.position.y -= _velocity * elapsedTime;
 		}
-		if(_input.getKey(KeyEvent.VK_DOWN)) {
+		if(input.getKey(KeyEvent.VK_DOWN)) {
 			//System.out.println("Moving object left by: " + _velocity*elapsedTime);
 			transform.position.y += _velocity * elapsedTime;
 		}
@@ -0,0 +1,116 @@
+package uEngine;
+
+import java.lang.reflect.Array;
+import java.util.*;
+
+/**
+ * A table holding every game object in a game that has exactly one set of
+ * component classes, with each class of component stored in its own array
+ * (column). Row i of every column belongs to the object in row i, so a
+ * system can walk the columns it needs in step, without looking anything up
+ * per object:
+ *
+ *     Transform[] transforms = table.getColumn(Transform.class);
+ *     Velocity[] velocities = table.getColumn(Velocity.class);
+ *     for(int i = 0; i < table.size(); i++) { ... }
+ *
+ * Columns are typed arrays, and are only valid up to size(); they are
+ * replaced when the table grows, so fetch them again after structural changes.
+ * Removing a row moves the last row into its place.
+ */
+public class Archetype {
+	private static final int INITIAL_CAPACITY = 16;
+
+	final long mask;
+	private final int[] _columnOf; // column of each type id, or -1
+	private final Component[][] _columns;
+	private GameObject[] _entities = new GameObject[INITIAL_CAPACITY];
+	private int _size = 0;
+
+	Archetype(long mask, List<Class<? extends Component>> types) {
+		this.mask = mask;
+		_columnOf = new int[Component.MAX_TYPES];
+		Arrays.fill(_columnOf, -1);
+		_columns = new Component[types.size()][];
+		for(int c = 0; c < types.size(); c++) {
+			Class<? extends Component> type = types.get(c);
+			_columnOf[Component.typeId(type)] = c;
+			_columns[c] = (Component[])Array.newInstance(type, INITIAL_CAPACITY);
+		}
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public GameObject getEntity(int row) {
+		return _entities[row];
+	}
+
+	/**
+	 * Returns the array holding the given class of component.
+	 * @param type
+	 * @return the column, valid up to size(), or null if objects in this table
+	 * do not have the component
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Component> T[] getColumn(Class<T> type) {
+		int column = _columnOf[Component.typeId(type)];
+		return column < 0 ? null : (T[])_columns[column];
+	}
+
+	public boolean has(int typeId) {
+		return (mask & (1L << typeId)) != 0;
+	}
+
+	/**
+	 * Adds an object, copying in its components.
+	 */
+	void add(GameObject g) {
+		if(_size == _entities.length) {
+			int capacity = _size * 2;
+			_entities = Arrays.copyOf(_entities, capacity);
+			for(int c = 0; c < _columns.length; c++) {
+				_columns[c] = Arrays.copyOf(_columns[c], capacity);
+			}
+		}
+		int row = _size++;
+		_entities[row] = g;
+		for(int id = 0; id < Component.MAX_TYPES; id++) {
+			if(has(id)) {
+				_columns[_columnOf[id]][row] = g.components[id];
+			}
+		}
+		g.archetype = this;
+		g.row = row;
+	}
+
+	/**
+	 * Removes an object, moving the last row into its place.
+	 */
+	void remove(GameObject g) {
+		int row = g.row;
+		int last = --_size;
+		if(row != last) {
+			GameObject moved = _entities[last];
+			_entities[row] = moved;
+			moved.row = row;
+			for(int c = 0; c < _columns.length; c++) {
+				_columns[c][row] = _columns[c][last];
+			}
+		}
+		_entities[last] = null;
+		for(int c = 0; c < _columns.length; c++) {
+			_columns[c][last] = null;
+		}
+		g.archetype = null;
+		g.row = -1;
+	}
+
+	/**
+	 * Replaces one of an object's components with another of the same class.
+	 */
+	void set(GameObject g, int typeId, Component component) {
+		_columns[_columnOf[typeId]][g.row] = component;
+	}
+}
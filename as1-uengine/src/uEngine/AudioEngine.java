@@ -2,37 +2,270 @@ package uEngine;
 
 import javax.sound.sampled.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class AudioEngine {
+	// Maximum number of copies of one clip that can play at the same time. When
+	// all are playing, the one that started first is restarted.
+	public static final int DEFAULT_VOICES_PER_CLIP = 4;
+
+	// Maximum number of play requests waiting for the audio worker. Requests
+	// beyond this are dropped.
+	private static final int MAX_PENDING_REQUESTS = 64;
+
 	// Clips have a name, associated with a file name where the clip's audio
-	// is stored. A dictionary is used to store this association.
-	private Dictionary<String,String> _audioClips = new Hashtable<String,String>(); 
+	// is stored. A dictionary is used to store this association, along with the
+	// clip's audio, which is read from the file once, when the clip is added.
+	private Dictionary<String,CachedClip> _audioClips = new Hashtable<String,CachedClip>();
+	
+	private boolean _enabled = true;
+	private int _voicesPerClip = DEFAULT_VOICES_PER_CLIP;
+
+	// If set, one-shots are mixed in software by this mixer rather than each
+	// being played by its own Clip
+	private SoftwareMixer _mixer = null;
+	
+	// Clips waiting to be played by the audio worker
+	private BlockingQueue<CachedClip> _requests = new ArrayBlockingQueue<CachedClip>(MAX_PENDING_REQUESTS);
+	private Thread _worker = null;
 	
+	/**
+	 * Enables or disables sound. While disabled, playOneShot does nothing, and
+	 * clips that are added are not loaded until sound is enabled.
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		_enabled = enabled;
+		if(enabled) {
+			for(Enumeration<CachedClip> e = _audioClips.elements(); e.hasMoreElements();) {
+				e.nextElement().load();
+			}
+		}
+	}
+	
+	public boolean isEnabled() {
+		return _enabled;
+	}
+	
+	/**
+	 * Sets the maximum number of copies of each clip that can play at the same
+	 * time. Applies to voices created after this call.
+	 * @param voices
+	 */
+	public void setVoicesPerClip(int voices) {
+		if(voices <= 0) {
+			throw new IllegalArgumentException("voices must be positive");
+		}
+		_voicesPerClip = voices;
+	}
+
+	/**
+	 * Selects how one-shots are played. By default, each sound playing is a
+	 * separate sound system Clip. With a mixer, all sounds are mixed in software
+	 * into a single stream; the caller is responsible for starting the mixer.
+	 * @param mixer the mixer to use, or null for the default
+	 */
+	public void setMixer(SoftwareMixer mixer) {
+		_mixer = mixer;
+	}
+	
+	public SoftwareMixer getMixer() {
+		return _mixer;
+	}
+	
+	/**
+	 * Adds a clip, reading its audio from the given file. Adding a clip that
+	 * has already been added with the same file does nothing, so game objects
+	 * may add the clips they need in their start method.
+	 * @param clipName
+	 * @param clipFileName
+	 */
 	public void addClip(String clipName, String clipFileName) {
-		_audioClips.put(clipName, clipFileName);
+		CachedClip existing = _audioClips.get(clipName);
+		if(existing != null && existing.fileName.equals(clipFileName)) {
+			return;
+		}
+
+		CachedClip clip = new CachedClip(clipFileName);
+		if(_enabled) {
+			clip.load();
+		}
+		_audioClips.put(clipName, clip);
 	}
 	
 	public void playOneShot(String clipName) {
-		// Complete and uncomment the code below
-		String clipFileName = _audioClips.get(clipName);
-		play(clipFileName);
-	}
-	
-    private synchronized void play(final String fileName) {
-    	// This code adapted from http://noobtuts.com/java/play-sounds
-        // Note: use .wav files             
-        new Thread(new Runnable() { 
-            public void run() {
-                try {
-                    Clip clip = AudioSystem.getClip();
-                    AudioInputStream inputStream =
-                    		AudioSystem.getAudioInputStream(new java.io.File(fileName));
-                    clip.open(inputStream);
-                    clip.start(); 
-                } catch (Exception e) {
-                    System.out.println("play sound error: " + e.getMessage() + " for " + fileName);
-                }
-            }
-        }).start();
-    }
+		playOneShot(clipName, 1f, 0);
+	}
+	
+	/**
+	 * Plays a clip once. The gain and priority only apply when a mixer is used.
+	 * @param clipName
+	 * @param gain volume multiplier, 1 for the clip's own volume
+	 * @param priority when too many sounds are playing, sounds with higher
+	 * priority replace those with lower priority
+	 */
+	public void playOneShot(String clipName, float gain, int priority) {
+		if(!_enabled) {
+			return;
+		}
+		CachedClip clip = _audioClips.get(clipName);
+		if(clip == null) {
+			System.out.println("play sound error: no clip " + clipName);
+			return;
+		}
+		
+		SoftwareMixer mixer = _mixer;
+		if(mixer != null) {
+			short[] samples = clip.mixerSamples();
+			if(samples != null) {
+				mixer.play(samples, gain, priority);
+			}
+		} else {
+			play(clip);
+		}
+	}
+	
+	private void play(CachedClip clip) {
+		// Hand the clip to the audio worker, so that the game loop never waits for
+		// the sound system. If the worker is too far behind, drop the sound.
+		startWorker();
+		_requests.offer(clip);
+	}
+
+	private synchronized void startWorker() {
+		if(_worker == null) {
+			_worker = new Thread(new AudioWorker(), "uEngine-audio");
+			_worker.setDaemon(true);
+			_worker.start();
+		}
+	}
+
+	/**
+	 * Plays requested clips, one at a time, on a single thread.
+	 */
+	class AudioWorker implements Runnable {
+		public void run() {
+			while(true) {
+				try {
+					_requests.take().play();
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A clip's audio, decoded once into memory, and a pool of voices (Clips)
+	 * that play it. Voices are created as needed, up to the voice limit, and
+	 * then reused. Only the audio worker plays clips.
+	 */
+	class CachedClip {
+		final String fileName;
+		private AudioFormat _format;
+		private byte[] _data;
+		private boolean _loaded = false;
+		
+		// The audio in the software mixer's format, converted when first needed
+		private short[] _mixerSamples;
+
+		private Clip[] _voices;
+		private long[] _voiceStartTimes;
+		private int _voiceCount = 0;
+		private long _plays = 0;
+
+		CachedClip(String fileName) {
+			this.fileName = fileName;
+		}
+
+		/**
+		 * Reads the clip's audio from its file, if not already read.
+		 */
+		synchronized void load() {
+			if(_loaded) {
+				return;
+			}
+			_loaded = true;
+
+			// Note: use .wav files
+			try {
+				AudioInputStream inputStream =
+						AudioSystem.getAudioInputStream(new java.io.File(fileName));
+				try {
+					_format = inputStream.getFormat();
+					_data = inputStream.readAllBytes();
+				} finally {
+					inputStream.close();
+				}
+			} catch (Exception e) {
+				System.out.println("load sound error: " + e.getMessage() + " for " + fileName);
+			}
+		}
+
+		synchronized short[] mixerSamples() {
+			if(_mixerSamples == null && _data != null) {
+				try {
+					_mixerSamples = SoftwareMixer.toMixerFormat(_format, _data);
+				} catch (IllegalArgumentException e) {
+					System.out.println("mix sound error: " + e.getMessage() + " for " + fileName);
+					_data = null;
+				}
+			}
+			return _mixerSamples;
+		}
+		
+		synchronized void play() {
+			if(_data == null) {
+				return;
+			}
+
+			try {
+				Clip voice = freeVoice();
+				voice.setFramePosition(0);
+				voice.start();
+			} catch (Exception e) {
+				System.out.println("play sound error: " + e.getMessage() + " for " + fileName);
+				// Don't keep trying to play a clip the sound system can't handle
+				_data = null;
+			}
+		}
+
+		/**
+		 * Returns a voice that is not playing, creating one if the limit has not
+		 * been reached. If all voices are playing, stops and returns the one that
+		 * started first.
+		 */
+		private Clip freeVoice() throws LineUnavailableException {
+			if(_voices == null) {
+				_voices = new Clip[_voicesPerClip];
+				_voiceStartTimes = new long[_voicesPerClip];
+			}
+
+			int oldest = -1;
+			for(int i = 0; i < _voiceCount; i++) {
+				if(!_voices[i].isRunning()) {
+					_voiceStartTimes[i] = ++_plays;
+					return _voices[i];
+				}
+				if(oldest < 0 || _voiceStartTimes[i] < _voiceStartTimes[oldest]) {
+					oldest = i;
+				}
+			}
+
+			if(_voiceCount < _voices.length) {
+				Clip voice = AudioSystem.getClip();
+				voice.open(_format, _data, 0, _data.length);
+				_voices[_voiceCount] = voice;
+				_voiceStartTimes[_voiceCount] = ++_plays;
+				_voiceCount++;
+				return voice;
+			}
+
+			// Steal the oldest voice
+			_voices[oldest].stop();
+			_voiceStartTimes[oldest] = ++_plays;
+			return _voices[oldest];
+		}
+	}
 }
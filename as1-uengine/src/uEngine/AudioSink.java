@@ -0,0 +1,27 @@
+package uEngine;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Destination for the audio produced by the software mixer.
+ */
+public interface AudioSink {
+
+	/**
+	 * Prepares the sink to receive audio.
+	 * @param format the format of the audio that will be written
+	 * @param bufferSize the number of bytes in each write
+	 */
+	void open(AudioFormat format, int bufferSize) throws Exception;
+
+	/**
+	 * Writes a buffer of audio. May block until the sink has room for it.
+	 * @param buffer
+	 * @param length number of bytes to write
+	 * @return true if the sink ran out of audio to play before this write,
+	 * i.e. there was an audible gap (underrun)
+	 */
+	boolean write(byte[] buffer, int length);
+
+	void close();
+}
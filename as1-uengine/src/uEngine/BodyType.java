@@ -0,0 +1,24 @@
+package uEngine;
+
+/**
+ * How a game object takes part in physics.
+ */
+public enum BodyType {
+	/**
+	 * Never moves, like a wall. Static bodies are never tested against each
+	 * other, or against sleeping bodies.
+	 */
+	STATIC,
+
+	/**
+	 * Moved by its own code, and always tested for collisions. Never sleeps.
+	 */
+	KINEMATIC,
+
+	/**
+	 * The default. Tested for collisions while moving, and goes to sleep once
+	 * it has stayed still for a while (see PhysicsEngine.setSleepTicks). A
+	 * sleeping body wakes as soon as it moves.
+	 */
+	DYNAMIC
+}
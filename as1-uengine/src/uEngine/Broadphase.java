@@ -0,0 +1,28 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * A broadphase cheaply finds pairs of game objects that might be colliding,
+ * so that the physics engine only needs to run its exact (narrowphase) test
+ * on those pairs. A broadphase may report pairs that turn out not to collide,
+ * but must never miss a pair that does. For objects with ContinuousCollision,
+ * that includes pairs whose boxes only overlapped part way through the step,
+ * so their bounds must cover both their previous and current positions.
+ */
+public interface Broadphase {
+
+	/**
+	 * Reports each unordered pair of game objects whose bounds may overlap
+	 * exactly once to the given handler. Pairs whose layers do not interact
+	 * are not reported, and should be rejected before their bounds are compared.
+	 * @param gameObjects the objects to test
+	 * @param layers which layers interact
+	 * @param handler receives the candidate pairs
+	 */
+	void findPairs(List<GameObject> gameObjects, CollisionLayers layers, PairHandler handler);
+
+	interface PairHandler {
+		void candidatePair(GameObject g1, GameObject g2);
+	}
+}
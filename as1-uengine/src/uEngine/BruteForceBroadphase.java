@@ -0,0 +1,29 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Broadphase that reports every pair of game objects whose layers interact.
+ * Apart from the layer check, this is the original
+ * behaviour of the physics engine, and is useful as a baseline to compare
+ * other broadphases against.
+ */
+public class BruteForceBroadphase implements Broadphase {
+
+	public void findPairs(List<GameObject> gameObjects, CollisionLayers layers, PairHandler handler) {
+		for(int i = 0; i < gameObjects.size(); i++) {
+			GameObject g1 = gameObjects.get(i);
+			int mask = layers.getMask(g1.layer);
+			if(mask == 0) {
+				// On a layer that collides with nothing, e.g. replication proxies
+				continue;
+			}
+			for(int j = i + 1; j < gameObjects.size(); j++) {
+				GameObject g2 = gameObjects.get(j);
+				if((mask & (1 << g2.layer)) != 0) {
+					handler.candidatePair(g1, g2);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package uEngine;
+
+/**
+ * The part of the world shown in the window. The camera is centred on the
+ * game's centre, which the renderer copies into it each frame, and scales the
+ * world by its zoom. Only objects that overlap the camera's view are drawn.
+ */
+public class Camera {
+	private float _x;
+	private float _y;
+	private float _zoom = 1;
+
+	// Size of the window, in pixels
+	private final int _viewportWidth;
+	private final int _viewportHeight;
+
+	Camera(int viewportWidth, int viewportHeight) {
+		_viewportWidth = viewportWidth;
+		_viewportHeight = viewportHeight;
+		_x = viewportWidth / 2f;
+		_y = viewportHeight / 2f;
+	}
+
+	/**
+	 * Sets the world point shown at the centre of the window.
+	 */
+	void setPosition(float x, float y) {
+		_x = x;
+		_y = y;
+	}
+
+	int getViewportWidth() {
+		return _viewportWidth;
+	}
+
+	int getViewportHeight() {
+		return _viewportHeight;
+	}
+
+	public float getX() {
+		return _x;
+	}
+
+	public float getY() {
+		return _y;
+	}
+
+	/**
+	 * Sets the scale at which the world is drawn: 2 draws everything twice as
+	 * large, showing a quarter of the area.
+	 * @param zoom
+	 */
+	public void setZoom(float zoom) {
+		if(!(zoom > 0)) {
+			throw new IllegalArgumentException("zoom must be positive");
+		}
+		_zoom = zoom;
+	}
+
+	public float getZoom() {
+		return _zoom;
+	}
+
+	/**
+	 * Returns the width of the view, in world units.
+	 * @return
+	 */
+	public float getViewWidth() {
+		return _viewportWidth / _zoom;
+	}
+
+	/**
+	 * Returns the height of the view, in world units.
+	 * @return
+	 */
+	public float getViewHeight() {
+		return _viewportHeight / _zoom;
+	}
+
+	public float getViewMinX() {
+		return _x - getViewWidth() / 2;
+	}
+
+	public float getViewMinY() {
+		return _y - getViewHeight() / 2;
+	}
+
+	public float getViewMaxX() {
+		return _x + getViewWidth() / 2;
+	}
+
+	public float getViewMaxY() {
+		return _y + getViewHeight() / 2;
+	}
+}
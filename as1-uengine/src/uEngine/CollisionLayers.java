@@ -0,0 +1,88 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Which collision layers interact with which. Every game object is on one of
+ * 32 layers (GameObject.setLayer), and two objects can only collide if their
+ * layers interact. The matrix is held as one bitmask per layer, so checking a
+ * pair is a single bit test, done before any geometry is compared. By
+ * default, every layer interacts with every other.
+ *
+ * Interaction is symmetric: setting whether layer a interacts with layer b
+ * also sets whether b interacts with a.
+ */
+public class CollisionLayers {
+	public static final int LAYER_COUNT = 32;
+	public static final int DEFAULT_LAYER = 0;
+
+	// Bit b of _masks[a] is set if layer a interacts with layer b
+	private final int[] _masks = new int[LAYER_COUNT];
+
+	public CollisionLayers() {
+		Arrays.fill(_masks, -1);
+	}
+
+	/**
+	 * Sets whether objects on two layers can collide.
+	 * @param layerA
+	 * @param layerB
+	 * @param interacts
+	 */
+	public void setInteracts(int layerA, int layerB, boolean interacts) {
+		checkLayer(layerA);
+		checkLayer(layerB);
+		if(interacts) {
+			_masks[layerA] |= 1 << layerB;
+			_masks[layerB] |= 1 << layerA;
+		} else {
+			_masks[layerA] &= ~(1 << layerB);
+			_masks[layerB] &= ~(1 << layerA);
+		}
+	}
+
+	public boolean interacts(int layerA, int layerB) {
+		checkLayer(layerA);
+		checkLayer(layerB);
+		return (_masks[layerA] & (1 << layerB)) != 0;
+	}
+
+	/**
+	 * Returns true if the two objects' layers interact.
+	 * @param g1
+	 * @param g2
+	 * @return
+	 */
+	public boolean interacts(GameObject g1, GameObject g2) {
+		return (_masks[g1.layer] & (1 << g2.layer)) != 0;
+	}
+
+	/**
+	 * Returns the layers that the given layer interacts with, as a bitmask with
+	 * bit n set for layer n.
+	 * @param layer
+	 * @return
+	 */
+	public int getMask(int layer) {
+		checkLayer(layer);
+		return _masks[layer];
+	}
+
+	/**
+	 * Sets all the layers that the given layer interacts with at once.
+	 * @param layer
+	 * @param mask bit n set for each layer n to interact with
+	 */
+	public void setMask(int layer, int mask) {
+		checkLayer(layer);
+		for(int other = 0; other < LAYER_COUNT; other++) {
+			setInteracts(layer, other, (mask & (1 << other)) != 0);
+		}
+	}
+
+	static void checkLayer(int layer) {
+		if(layer < 0 || layer >= LAYER_COUNT) {
+			throw new IllegalArgumentException("layer must be from 0 to " + (LAYER_COUNT - 1) + ": " + layer);
+		}
+	}
+}
@@ -1,4 +1,68 @@
 package uEngine;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A piece of data attached to a game object, such as its Transform. Each
+ * class of component has a small integer type id, used by game objects and
+ * by the game's component storage (see Archetype and Query) to find
+ * components without hashing. A game object has at most one component of
+ * each class.
+ */
 public class Component {
+	// At most 64 component classes, so that a set of them fits in a long
+	static final int MAX_TYPES = 64;
+
+	private static final AtomicInteger _nextTypeId = new AtomicInteger();
+	private static final Class<?>[] _types = new Class<?>[MAX_TYPES];
+	private static final ClassValue<Integer> _typeIds = new ClassValue<Integer>() {
+		protected Integer computeValue(Class<?> type) {
+			int id = _nextTypeId.getAndIncrement();
+			if(id >= MAX_TYPES) {
+				throw new IllegalStateException("too many component types: " + type.getName());
+			}
+			_types[id] = type;
+			return id;
+		}
+	};
+
+	// Type ids of the built in components, which every game object has
+	static final int TRANSFORM = typeId(Transform.class);
+	static final int MATERIAL = typeId(Material.class);
+
+	// The object this component is attached to
+	GameObject gameObject;
+
+	public GameObject getGameObject() {
+		return gameObject;
+	}
+
+	/**
+	 * Returns the type id of a component class.
+	 */
+	static int typeId(Class<? extends Component> type) {
+		return _typeIds.get(type);
+	}
+
+	/**
+	 * Returns the type id of a component. Subclasses of the built in components
+	 * count as the built in component.
+	 */
+	static int typeIdOf(Component component) {
+		if(component instanceof Transform) {
+			return TRANSFORM;
+		}
+		if(component instanceof Material) {
+			return MATERIAL;
+		}
+		return typeId(component.getClass());
+	}
+
+	/**
+	 * Returns the component class with the given type id.
+	 */
+	@SuppressWarnings("unchecked")
+	static Class<? extends Component> type(int typeId) {
+		return (Class<? extends Component>)_types[typeId];
+	}
 }
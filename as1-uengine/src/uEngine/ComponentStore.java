@@ -0,0 +1,70 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * A game's component storage: one archetype table for each set of component
+ * classes in use, and the queries over them.
+ */
+class ComponentStore {
+	private final Map<Long,Archetype> _archetypes = new HashMap<Long,Archetype>();
+	private final List<Archetype> _archetypeList = new ArrayList<Archetype>();
+	private final List<Query> _queries = new ArrayList<Query>();
+
+	/**
+	 * Stores an object's components in the table for its set of components.
+	 */
+	void add(GameObject g) {
+		archetype(g).add(g);
+	}
+
+	void remove(GameObject g) {
+		if(g.archetype != null) {
+			g.archetype.remove(g);
+		}
+	}
+
+	/**
+	 * Moves an object whose set of components has changed to the right table.
+	 */
+	void move(GameObject g) {
+		remove(g);
+		add(g);
+	}
+
+	Query query(Class<? extends Component> type) {
+		return query(1L << Component.typeId(type));
+	}
+
+	/**
+	 * Creates a query over the objects with all the component types in the
+	 * given mask, which has bit n set for type id n.
+	 */
+	Query query(long mask) {
+		Query query = new Query(mask);
+		for(int i = 0; i < _archetypeList.size(); i++) {
+			query.offer(_archetypeList.get(i));
+		}
+		_queries.add(query);
+		return query;
+	}
+
+	private Archetype archetype(GameObject g) {
+		Archetype archetype = _archetypes.get(g.componentMask);
+		if(archetype == null) {
+			List<Class<? extends Component>> types = new ArrayList<Class<? extends Component>>();
+			for(int id = 0; id < Component.MAX_TYPES; id++) {
+				if((g.componentMask & (1L << id)) != 0) {
+					types.add(Component.type(id));
+				}
+			}
+			archetype = new Archetype(g.componentMask, types);
+			_archetypes.put(g.componentMask, archetype);
+			_archetypeList.add(archetype);
+			for(int i = 0; i < _queries.size(); i++) {
+				_queries.get(i).offer(archetype);
+			}
+		}
+		return archetype;
+	}
+}
@@ -0,0 +1,28 @@
+package uEngine;
+
+/**
+ * Details of a collision, passed to GameObject.onCollisionEnter. The physics
+ * engine reuses one Contact for every collision, so it is only valid during
+ * the call.
+ */
+public class Contact {
+	// Fraction of the most recent step at which the objects first touched, from
+	// 0 (the start of the step) to 1 (the end). Only measured when one of the
+	// objects has ContinuousCollision; otherwise the collision is found at the
+	// end of the step, and this is 1. If the objects with ContinuousCollision
+	// already overlapped at the start of the step, this is 0, and swept is false.
+	public float timeOfImpact;
+	
+	// Unit normal of the surface hit, pointing from the other object towards
+	// this one, along one of the axes
+	public Vector2 normal = new Vector2(0,0);
+	
+	// True if the collision was found by sweeping the objects' paths during the
+	// step, so the time of impact was measured. The objects may have passed
+	// through each other, and no longer overlap.
+	public boolean swept;
+	
+	public String toString() {
+		return "t=" + timeOfImpact + " n=" + normal + (swept ? " swept" : "");
+	}
+}
@@ -0,0 +1,300 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * The set of ordered pairs of game objects that are currently in contact,
+ * keyed by the objects' numeric ids. Each frame, the physics engine marks the
+ * pairs that are touching; the set then works out which pairs have started
+ * touching (entered) and which have stopped touching (exited) since the
+ * previous frame.
+ *
+ * All storage is reused from frame to frame, so once the set has grown to the
+ * number of contacts in the scene, no garbage is created. Contacts are held in
+ * dense arrays, with an open addressing hash table mapping each pair's key to
+ * its index in the arrays.
+ */
+class ContactSet {
+	private static final long EMPTY = -1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Dense contact storage
+	private long[] _keys = new long[INITIAL_CAPACITY];
+	private GameObject[] _first = new GameObject[INITIAL_CAPACITY];
+	private GameObject[] _second = new GameObject[INITIAL_CAPACITY];
+	private int[] _stamps = new int[INITIAL_CAPACITY];
+	private int _count = 0;
+	private int _frame = 0;
+
+	// Hash index from key to position in the dense arrays. Linear probing.
+	private long[] _indexKeys = newIndexKeys(INITIAL_CAPACITY * 2);
+	private int[] _indexValues = new int[INITIAL_CAPACITY * 2];
+
+	// Pairs that entered or exited this frame
+	private GameObject[] _enteredFirst = new GameObject[INITIAL_CAPACITY];
+	private GameObject[] _enteredSecond = new GameObject[INITIAL_CAPACITY];
+	private float[] _enteredTime = new float[INITIAL_CAPACITY];
+	private float[] _enteredNormalX = new float[INITIAL_CAPACITY];
+	private float[] _enteredNormalY = new float[INITIAL_CAPACITY];
+	private boolean[] _enteredSwept = new boolean[INITIAL_CAPACITY];
+	private int _enteredCount = 0;
+	private GameObject[] _exitedFirst = new GameObject[INITIAL_CAPACITY];
+	private GameObject[] _exitedSecond = new GameObject[INITIAL_CAPACITY];
+	private int _exitedCount = 0;
+
+	static long key(GameObject g1, GameObject g2) {
+		return ((long)g1.uid << 32) | (g2.uid & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Starts a new frame, forgetting the entered and exited pairs of the
+	 * previous frame.
+	 */
+	void beginFrame() {
+		_frame++;
+		clear(_enteredFirst, _enteredSecond, _enteredCount);
+		_enteredCount = 0;
+		clear(_exitedFirst, _exitedSecond, _exitedCount);
+		_exitedCount = 0;
+	}
+
+	/**
+	 * Records that g1 is in contact with g2 this frame.
+	 * @return true if this contact is new this frame
+	 */
+	boolean touch(GameObject g1, GameObject g2) {
+		long key = key(g1, g2);
+		int index = indexOf(key);
+		if(index >= 0) {
+			_stamps[index] = _frame;
+			return false;
+		}
+
+		if(_count == _keys.length) {
+			growContacts();
+		}
+		index = _count++;
+		_keys[index] = key;
+		_first[index] = g1;
+		_second[index] = g2;
+		_stamps[index] = _frame;
+		putIndex(key, index);
+
+		if(_enteredCount == _enteredFirst.length) {
+			int capacity = _enteredCount * 2;
+			_enteredFirst = Arrays.copyOf(_enteredFirst, capacity);
+			_enteredSecond = Arrays.copyOf(_enteredSecond, capacity);
+			_enteredTime = Arrays.copyOf(_enteredTime, capacity);
+			_enteredNormalX = Arrays.copyOf(_enteredNormalX, capacity);
+			_enteredNormalY = Arrays.copyOf(_enteredNormalY, capacity);
+			_enteredSwept = Arrays.copyOf(_enteredSwept, capacity);
+		}
+		_enteredFirst[_enteredCount] = g1;
+		_enteredSecond[_enteredCount] = g2;
+		_enteredCount++;
+		return true;
+	}
+
+	/**
+	 * Records the details of the contact most recently entered by touch().
+	 */
+	void describeEntered(float timeOfImpact, float normalX, float normalY, boolean swept) {
+		int i = _enteredCount - 1;
+		_enteredTime[i] = timeOfImpact;
+		_enteredNormalX[i] = normalX;
+		_enteredNormalY[i] = normalY;
+		_enteredSwept[i] = swept;
+	}
+
+	/**
+	 * Returns true if g1 was recorded as being in contact with g2.
+	 */
+	boolean contains(GameObject g1, GameObject g2) {
+		return indexOf(key(g1, g2)) >= 0;
+	}
+
+	/**
+	 * Ends the frame, removing all contacts not touched this frame and recording
+	 * them as exited. Contacts between two resting bodies are kept, since they
+	 * are not tested while both are at rest.
+	 */
+	void endFrame() {
+		int i = 0;
+		while(i < _count) {
+			if(_stamps[i] == _frame || (_first[i].resting && _second[i].resting)) {
+				i++;
+				continue;
+			}
+			// Do not advance, since removal moves an unchecked contact into this position
+			exit(i);
+		}
+	}
+
+	/**
+	 * Removes all contacts involving objects that are no longer alive, recording
+	 * them as exited. Replaces the exited pairs of the previous frame, which
+	 * must already have been handled.
+	 */
+	void removeDetached() {
+		clear(_exitedFirst, _exitedSecond, _exitedCount);
+		_exitedCount = 0;
+
+		int i = 0;
+		while(i < _count) {
+			if(_first[i].lifecycle == GameObject.ALIVE && _second[i].lifecycle == GameObject.ALIVE) {
+				i++;
+				continue;
+			}
+			exit(i);
+		}
+	}
+
+	/**
+	 * Records the contact at the given position as exited, and removes it by
+	 * moving the last contact into its position.
+	 */
+	private void exit(int i) {
+		if(_exitedCount == _exitedFirst.length) {
+			_exitedFirst = Arrays.copyOf(_exitedFirst, _exitedCount * 2);
+			_exitedSecond = Arrays.copyOf(_exitedSecond, _exitedCount * 2);
+		}
+		_exitedFirst[_exitedCount] = _first[i];
+		_exitedSecond[_exitedCount] = _second[i];
+		_exitedCount++;
+
+		removeIndex(_keys[i]);
+		int last = --_count;
+		if(i != last) {
+			_keys[i] = _keys[last];
+			_first[i] = _first[last];
+			_second[i] = _second[last];
+			_stamps[i] = _stamps[last];
+			putIndex(_keys[i], i);
+		}
+		_first[last] = null;
+		_second[last] = null;
+	}
+
+	int size() {
+		return _count;
+	}
+
+	int enteredCount() {
+		return _enteredCount;
+	}
+
+	GameObject enteredFirst(int i) {
+		return _enteredFirst[i];
+	}
+
+	GameObject enteredSecond(int i) {
+		return _enteredSecond[i];
+	}
+
+	/**
+	 * Copies the details of an entered contact into the given Contact.
+	 */
+	void enteredContact(int i, Contact contact) {
+		contact.timeOfImpact = _enteredTime[i];
+		contact.normal.x = _enteredNormalX[i];
+		contact.normal.y = _enteredNormalY[i];
+		contact.swept = _enteredSwept[i];
+	}
+
+	int exitedCount() {
+		return _exitedCount;
+	}
+
+	GameObject exitedFirst(int i) {
+		return _exitedFirst[i];
+	}
+
+	GameObject exitedSecond(int i) {
+		return _exitedSecond[i];
+	}
+
+	private static void clear(GameObject[] first, GameObject[] second, int count) {
+		for(int i = 0; i < count; i++) {
+			first[i] = null;
+			second[i] = null;
+		}
+	}
+
+	private static long[] newIndexKeys(int capacity) {
+		long[] keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		return keys;
+	}
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private int indexOf(long key) {
+		int mask = _indexKeys.length - 1;
+		int slot = hash(key, mask);
+		while(_indexKeys[slot] != EMPTY) {
+			if(_indexKeys[slot] == key) {
+				return _indexValues[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void putIndex(long key, int value) {
+		int mask = _indexKeys.length - 1;
+		int slot = hash(key, mask);
+		while(_indexKeys[slot] != EMPTY && _indexKeys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		_indexKeys[slot] = key;
+		_indexValues[slot] = value;
+	}
+
+	/**
+	 * Removes a key from the hash index, shifting back any later entries in the
+	 * same probe sequence so that no tombstones are needed.
+	 */
+	private void removeIndex(long key) {
+		int mask = _indexKeys.length - 1;
+		int slot = hash(key, mask);
+		while(_indexKeys[slot] != key) {
+			if(_indexKeys[slot] == EMPTY) {
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while(_indexKeys[next] != EMPTY) {
+			int home = hash(_indexKeys[next], mask);
+			// Move the entry into the gap if its home slot is not between the gap
+			// and its current position (cyclically)
+			if(((next - home) & mask) >= ((next - gap) & mask)) {
+				_indexKeys[gap] = _indexKeys[next];
+				_indexValues[gap] = _indexValues[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		_indexKeys[gap] = EMPTY;
+	}
+
+	private void growContacts() {
+		int capacity = _keys.length * 2;
+		_keys = Arrays.copyOf(_keys, capacity);
+		_first = Arrays.copyOf(_first, capacity);
+		_second = Arrays.copyOf(_second, capacity);
+		_stamps = Arrays.copyOf(_stamps, capacity);
+
+		// Keep the index at most half full
+		_indexKeys = newIndexKeys(capacity * 2);
+		_indexValues = new int[capacity * 2];
+		for(int i = 0; i < _count; i++) {
+			putIndex(_keys[i], i);
+		}
+	}
+}
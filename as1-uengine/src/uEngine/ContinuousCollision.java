@@ -0,0 +1,15 @@
+package uEngine;
+
+/**
+ * Marks a game object that moves fast enough to pass straight through other
+ * objects in a single step. Collisions involving such an object are found by
+ * sweeping its box from where it was at the start of the step to where it is
+ * now, as well as by testing where it is now, so no collision is missed
+ * however large the step. The time of impact and the normal of the surface
+ * hit are passed to onCollisionEnter in a Contact.
+ *
+ * Sweeping costs a little more than the plain test, and objects are assumed
+ * to move in a straight line during the step.
+ */
+public interface ContinuousCollision {
+}
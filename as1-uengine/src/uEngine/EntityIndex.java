@@ -0,0 +1,171 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * The game's register of the objects in it. Gives each object a compact
+ * integer handle, and indexes objects by name and by tag.
+ *
+ * A handle combines the index of a slot in the register with the slot's
+ * generation, which changes each time the slot is reused. Looking up a handle
+ * held after its object was destroyed therefore finds nothing, rather than
+ * whatever object has since taken the slot.
+ *
+ * Objects are indexed by the name and tag they have when they join the game,
+ * and again after start(), since that is where most objects set them. An
+ * object whose name or tag changes later must be reindexed.
+ *
+ * Each object remembers its position in its name's and its tag's lists, so
+ * it can be removed from them without searching. Most objects share the
+ * empty name and the untagged tag, so searching those lists would make
+ * every destroy slower as the game grows.
+ */
+class EntityIndex {
+	static final int NO_HANDLE = 0;
+
+	// Low bits are the slot index; the rest, the generation (never zero, so no
+	// handle is NO_HANDLE)
+	private static final int INDEX_BITS = 20;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	private static final int MAX_GENERATION = Integer.MAX_VALUE >>> INDEX_BITS;
+
+	private GameObject[] _slots = new GameObject[64];
+	private int[] _generations = new int[64];
+	private int[] _freeSlots = new int[64];
+	private int _freeCount = 0;
+	private int _slotCount = 0;
+
+	private Map<String,List<GameObject>> _byName = new HashMap<String,List<GameObject>>();
+	private List<List<GameObject>> _byTag = new ArrayList<List<GameObject>>();
+	private List<List<GameObject>> _byTagViews = new ArrayList<List<GameObject>>();
+
+	/**
+	 * Registers an object, giving it a handle, and indexes it.
+	 */
+	void add(GameObject g) {
+		int slot;
+		if(_freeCount > 0) {
+			slot = _freeSlots[--_freeCount];
+		} else {
+			if(_slotCount == _slots.length) {
+				if(_slotCount > INDEX_MASK) {
+					throw new IllegalStateException("too many game objects");
+				}
+				_slots = Arrays.copyOf(_slots, _slotCount * 2);
+				_generations = Arrays.copyOf(_generations, _slotCount * 2);
+				_freeSlots = new int[_slotCount * 2];
+			}
+			slot = _slotCount++;
+			_generations[slot] = 1;
+		}
+		_slots[slot] = g;
+		g.handle = (_generations[slot] << INDEX_BITS) | slot;
+		reindex(g);
+	}
+
+	/**
+	 * Unregisters an object, making its handle stale.
+	 */
+	void remove(GameObject g) {
+		if(g.handle == NO_HANDLE) {
+			return;
+		}
+		unindex(g);
+		int slot = g.handle & INDEX_MASK;
+		_slots[slot] = null;
+		_generations[slot] = _generations[slot] == MAX_GENERATION ? 1 : _generations[slot] + 1;
+		_freeSlots[_freeCount++] = slot;
+		g.handle = NO_HANDLE;
+	}
+
+	/**
+	 * Returns the object with the given handle, or null if the handle is stale.
+	 */
+	GameObject get(int handle) {
+		int slot = handle & INDEX_MASK;
+		if(handle == NO_HANDLE || slot >= _slotCount || _generations[slot] != handle >>> INDEX_BITS) {
+			return null;
+		}
+		return _slots[slot];
+	}
+
+	/**
+	 * Indexes an object under its current name and tag.
+	 */
+	void reindex(GameObject g) {
+		String name = g.name == null ? "" : g.name;
+		if(g.indexedName != null && g.indexedName.equals(name) && g.indexedTag == g.tag) {
+			return;
+		}
+		List<GameObject> tagged = tagged(g.tag);
+		unindex(g);
+		List<GameObject> named = _byName.get(name);
+		if(named == null) {
+			named = new ArrayList<GameObject>(1);
+			_byName.put(name, named);
+		}
+		g.namePosition = named.size();
+		named.add(g);
+		g.tagPosition = tagged.size();
+		tagged.add(g);
+		g.indexedName = name;
+		g.indexedTag = g.tag;
+	}
+
+	private void unindex(GameObject g) {
+		if(g.indexedName == null) {
+			return;
+		}
+		List<GameObject> named = _byName.get(g.indexedName);
+		removeAt(named, g.namePosition, false);
+		if(named.isEmpty()) {
+			_byName.remove(g.indexedName);
+		}
+		removeAt(_byTag.get(g.indexedTag), g.tagPosition, true);
+		g.indexedName = null;
+	}
+
+	/**
+	 * Removes the object at a position in a name or tag list, by moving the
+	 * last object in the list into its place.
+	 */
+	private static void removeAt(List<GameObject> list, int position, boolean tag) {
+		GameObject last = list.remove(list.size() - 1);
+		if(position < list.size()) {
+			list.set(position, last);
+			if(tag) {
+				last.tagPosition = position;
+			} else {
+				last.namePosition = position;
+			}
+		}
+	}
+
+	/**
+	 * Returns the first object indexed under the given name, or null.
+	 */
+	GameObject findByName(String name) {
+		List<GameObject> named = _byName.get(name);
+		return named == null ? null : named.get(0);
+	}
+
+	/**
+	 * Returns a read-only view of the objects indexed under the given tag.
+	 */
+	List<GameObject> findAllByTag(int tag) {
+		tagged(tag);
+		return _byTagViews.get(tag);
+	}
+
+	private List<GameObject> tagged(int tag) {
+		if((tag < 0 || tag >= _byTag.size()) && !Tags.isInterned(tag)) {
+			throw new IllegalArgumentException("not a tag from Tags.intern: " + tag);
+		}
+		while(_byTag.size() <= tag) {
+			List<GameObject> list = new ArrayList<GameObject>();
+			_byTag.add(list);
+			_byTagViews.add(Collections.unmodifiableList(list));
+		}
+		return _byTag.get(tag);
+	}
+}
@@ -0,0 +1,39 @@
+package uEngine;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder event emitted for each tick when profiling, so that
+ * frame timings can be examined alongside the JVM's own events.
+ */
+@Name("uEngine.Frame")
+@Label("Frame")
+@Category("uEngine")
+@Description("Timings of one simulation step of a game")
+@StackTrace(false)
+class FrameEvent extends Event {
+	@Label("Tick")
+	long tick;
+
+	@Label("Input")
+	@Timespan(Timespan.NANOSECONDS)
+	long inputTime;
+
+	@Label("Update")
+	@Timespan(Timespan.NANOSECONDS)
+	long updateTime;
+
+	@Label("Physics")
+	@Timespan(Timespan.NANOSECONDS)
+	long physicsTime;
+
+	@Label("Candidate Pairs")
+	int candidatePairs;
+
+	@Label("Contacts")
+	int contacts;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+}
@@ -0,0 +1,322 @@
+package uEngine;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.util.*;
+
+/**
+ * A copy of everything needed to draw one frame: the position, size and colour
+ * of each visible game object in the camera's view, in window coordinates.
+ * The renderer draws from a packet rather than from the game objects
+ * themselves, so that drawing can happen on another thread while the game
+ * carries on changing its objects.
+ *
+ * Static objects come first, in the order they were captured, so that they
+ * can be drawn once into a cached layer. The other objects follow, sorted by
+ * depth: the deepest first, so that shallower objects are drawn over them.
+ * Objects at the same depth are grouped by the sprite atlas they are drawn
+ * from, so that drawing switches between images as little as possible.
+ *
+ * Packets are reused from frame to frame, and only allocate when the number of
+ * objects grows beyond anything seen before.
+ */
+public class FramePacket {
+	// Layout of the low half of the sort key: the atlas group above the index
+	private static final int INDEX_BITS = 20;
+	private static final int MAX_GROUPED_OBJECTS = 1 << INDEX_BITS;
+	private static final int ATLAS_GROUPS = (1 << (32 - INDEX_BITS)) - 1;
+
+	private int _count = 0;
+	private int _staticCount = 0;
+	private float[] _x = new float[64];
+	private float[] _y = new float[64];
+	private float[] _width = new float[64];
+	private float[] _height = new float[64];
+	private Color[] _color = new Color[64];
+	private Sprite[] _sprite = new Sprite[64];
+
+	// Objects that are not static, in the order captured, waiting to be sorted
+	// by depth into the arrays above
+	private int _dynamicCount = 0;
+	private float[] _dynamicX = new float[64];
+	private float[] _dynamicY = new float[64];
+	private float[] _dynamicWidth = new float[64];
+	private float[] _dynamicHeight = new float[64];
+	private Color[] _dynamicColor = new Color[64];
+	private Sprite[] _dynamicSprite = new Sprite[64];
+	private float[] _dynamicDepth = new float[64];
+	private long[] _sortKeys = new long[64];
+
+	// The camera's view when the packet was captured
+	private float _viewMinX, _viewMinY, _viewMaxX, _viewMaxY;
+	private float _zoom = 1;
+
+	// Number of objects in the scene that were not captured
+	private int _culledCount = 0;
+
+	// Tick number the packet was captured at
+	private long _tick;
+
+	// Text drawn over the scene, or null
+	private String _overlayText;
+
+	/**
+	 * Fills this packet with the visible game objects that overlap the camera's
+	 * view, placing each between its previous and current position, in window
+	 * coordinates.
+	 *
+	 * If the physics engine's active bodies and resting grid are up to date
+	 * with the scene, only the active bodies and the resting bodies the grid
+	 * finds in the view are examined. Otherwise every object is examined.
+	 * @param gameObjects
+	 * @param physics the physics engine stepping the scene, or null
+	 * @param camera
+	 * @param interpolationAlpha 0 for the previous position, 1 for the current
+	 * @param tick
+	 */
+	void capture(List<GameObject> gameObjects, PhysicsEngine physics, Camera camera,
+			float interpolationAlpha, long tick) {
+		int previousCount = _count;
+		_staticCount = 0;
+		_dynamicCount = 0;
+		_viewMinX = camera.getViewMinX();
+		_viewMinY = camera.getViewMinY();
+		_viewMaxX = camera.getViewMaxX();
+		_viewMaxY = camera.getViewMaxY();
+		_zoom = camera.getZoom();
+
+		if(physics != null && physics.hasBodiesOf(gameObjects)) {
+			RestingGrid grid = physics.restingGrid();
+			List<GameObject> active = physics.activeBodies();
+			int found = grid.query(_viewMinX, _viewMinY, _viewMaxX, _viewMaxY);
+			ensureCapacity(found + active.size());
+			for(int i = 0; i < found; i++) {
+				add(grid.found(i), interpolationAlpha);
+			}
+			for(int i = 0; i < active.size(); i++) {
+				add(active.get(i), interpolationAlpha);
+			}
+		} else {
+			ensureCapacity(gameObjects.size());
+			for(int i = 0; i < gameObjects.size(); i++) {
+				add(gameObjects.get(i), interpolationAlpha);
+			}
+		}
+		sortDynamicObjects();
+
+		// Don't hold on to colours and sprites of objects no longer drawn
+		for(int i = _count; i < previousCount; i++) {
+			_color[i] = null;
+			_sprite[i] = null;
+		}
+		_culledCount = gameObjects.size() - _count;
+		_tick = tick;
+	}
+
+	private void ensureCapacity(int n) {
+		if(n > _x.length) {
+			int capacity = Math.max(n, _x.length * 2);
+			_x = Arrays.copyOf(_x, capacity);
+			_y = Arrays.copyOf(_y, capacity);
+			_width = Arrays.copyOf(_width, capacity);
+			_height = Arrays.copyOf(_height, capacity);
+			_color = Arrays.copyOf(_color, capacity);
+			_sprite = Arrays.copyOf(_sprite, capacity);
+			_dynamicX = new float[capacity];
+			_dynamicY = new float[capacity];
+			_dynamicWidth = new float[capacity];
+			_dynamicHeight = new float[capacity];
+			_dynamicColor = new Color[capacity];
+			_dynamicSprite = new Sprite[capacity];
+			_dynamicDepth = new float[capacity];
+			_sortKeys = new long[capacity];
+		}
+	}
+
+	/**
+	 * Adds an object to the packet, if it is visible and in view.
+	 */
+	private void add(GameObject go, float interpolationAlpha) {
+		if(!go.material.isVisible) {
+			return;
+		}
+		Transform t = go.transform;
+		float x = t.previousPosition.x + (t.position.x - t.previousPosition.x) * interpolationAlpha;
+		float y = t.previousPosition.y + (t.position.y - t.previousPosition.y) * interpolationAlpha;
+		if(x >= _viewMaxX || x + t.size.x <= _viewMinX || y >= _viewMaxY || y + t.size.y <= _viewMinY) {
+			return;
+		}
+		if(go.bodyType == BodyType.STATIC) {
+			int i = _staticCount++;
+			_x[i] = (x - _viewMinX) * _zoom;
+			_y[i] = (y - _viewMinY) * _zoom;
+			_width[i] = t.size.x * _zoom;
+			_height[i] = t.size.y * _zoom;
+			_color[i] = go.material.color;
+			_sprite[i] = sprite(go, _width[i], _height[i]);
+		} else {
+			int i = _dynamicCount++;
+			_dynamicX[i] = (x - _viewMinX) * _zoom;
+			_dynamicY[i] = (y - _viewMinY) * _zoom;
+			_dynamicWidth[i] = t.size.x * _zoom;
+			_dynamicHeight[i] = t.size.y * _zoom;
+			_dynamicColor[i] = go.material.color;
+			_dynamicSprite[i] = sprite(go, _dynamicWidth[i], _dynamicHeight[i]);
+			_dynamicDepth[i] = t.depth;
+		}
+	}
+
+	/**
+	 * Returns the object's sprite, scaled to the size it is drawn at, or null.
+	 */
+	private static Sprite sprite(GameObject go, float width, float height) {
+		Sprite sprite = go.material.getSprite();
+		if(sprite == null) {
+			return null;
+		}
+		return sprite.atlas.cache.scaled(sprite, (int)width, (int)height);
+	}
+
+	/**
+	 * Copies the objects that are not static after the static ones, deepest
+	 * first. Objects at the same depth are grouped by atlas, plain rectangles
+	 * first, and otherwise keep the order they were captured in.
+	 */
+	private void sortDynamicObjects() {
+		// Sort on the depth, as an int that orders like the float, inverted so
+		// the deepest comes first, then on the atlas, then on the capture order.
+		// The atlas only fits in the key if there are few enough objects.
+		boolean group = _dynamicCount <= MAX_GROUPED_OBJECTS;
+		for(int i = 0; i < _dynamicCount; i++) {
+			int bits = Float.floatToIntBits(_dynamicDepth[i] + 0f);
+			bits ^= (bits >> 31) & 0x7FFFFFFF;
+			long key = ((long)~bits << 32) | i;
+			Sprite sprite = _dynamicSprite[i];
+			if(group && sprite != null) {
+				key |= (long)(sprite.atlas.id % ATLAS_GROUPS + 1) << INDEX_BITS;
+			}
+			_sortKeys[i] = key;
+		}
+		Arrays.sort(_sortKeys, 0, _dynamicCount);
+
+		for(int j = 0; j < _dynamicCount; j++) {
+			int i = group ? (int)_sortKeys[j] & (MAX_GROUPED_OBJECTS - 1) : (int)_sortKeys[j];
+			int k = _staticCount + j;
+			_x[k] = _dynamicX[i];
+			_y[k] = _dynamicY[i];
+			_width[k] = _dynamicWidth[i];
+			_height[k] = _dynamicHeight[i];
+			_color[k] = _dynamicColor[i];
+			_sprite[k] = _dynamicSprite[i];
+		}
+		Arrays.fill(_dynamicColor, 0, _dynamicCount, null);
+		Arrays.fill(_dynamicSprite, 0, _dynamicCount, null);
+		_count = _staticCount + _dynamicCount;
+	}
+
+	/**
+	 * Draws the objects in this packet.
+	 * @param g
+	 */
+	public void draw(Graphics g) {
+		drawObjects(g, 0, _count);
+		drawOverlay(g);
+	}
+
+	/**
+	 * Draws the objects from first up to, but not including, end.
+	 */
+	void drawObjects(Graphics g, int first, int end) {
+		Color color = null;
+		for(int i = first; i < end; i++) {
+			int x = (int)_x[i], y = (int)_y[i];
+			int w = (int)_width[i], h = (int)_height[i];
+			Sprite sprite = _sprite[i];
+			if(sprite != null) {
+				g.drawImage(sprite.atlas.image, x, y, x + w, y + h,
+						sprite.x, sprite.y, sprite.x + sprite.width, sprite.y + sprite.height, null);
+			} else {
+				if(_color[i] != color || i == first) {
+					color = _color[i];
+					g.setColor(color);
+				}
+				g.fillRect(x, y, w, h);
+			}
+		}
+	}
+
+	void drawOverlay(Graphics g) {
+		if(_overlayText != null) {
+			g.setColor(Color.BLACK);
+			int lineHeight = g.getFontMetrics().getHeight();
+			int y = lineHeight;
+			for(String line : _overlayText.split("\\R")) {
+				g.drawString(line, 4, y);
+				y += lineHeight;
+			}
+		}
+	}
+
+	void setOverlayText(String text) {
+		_overlayText = text;
+	}
+
+	// Accessors for the objects, by position in drawing order
+	float x(int i) {
+		return _x[i];
+	}
+
+	float y(int i) {
+		return _y[i];
+	}
+
+	float width(int i) {
+		return _width[i];
+	}
+
+	float height(int i) {
+		return _height[i];
+	}
+
+	Color color(int i) {
+		return _color[i];
+	}
+
+	Sprite sprite(int i) {
+		return _sprite[i];
+	}
+
+	/**
+	 * Returns the number of objects in this packet.
+	 * @return
+	 */
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * Returns the number of static objects, which are the first objects in
+	 * this packet.
+	 * @return
+	 */
+	public int getStaticCount() {
+		return _staticCount;
+	}
+
+	/**
+	 * Returns the number of objects in the scene that are not in this packet,
+	 * because they were outside the camera's view or hidden.
+	 * @return
+	 */
+	public int getCulledCount() {
+		return _culledCount;
+	}
+
+	/**
+	 * Returns the number of the frame this packet was captured in.
+	 * @return
+	 */
+	public long getFrame() {
+		return _tick;
+	}
+}
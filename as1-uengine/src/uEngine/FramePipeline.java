@@ -0,0 +1,62 @@
+package uEngine;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes frame packets from the game thread, which captures them, to a render
+ * thread, which draws them, without locking. Three packets are used: one being
+ * written, one being read, and the most recently completed one, waiting to be
+ * read. Publishing and acquiring a packet just swap indices atomically, so
+ * neither thread ever waits for the other. If the render thread falls behind,
+ * it skips straight to the newest frame. There must be only one writing
+ * thread and one reading thread.
+ */
+class FramePipeline {
+	private static final int FRESH = 4;	// set when the ready packet has not been read
+	private static final int INDEX_MASK = 3;
+
+	private final FramePacket[] _packets = {
+			new FramePacket(), new FramePacket(), new FramePacket() };
+
+	// Only used by the writing thread
+	private int _writeIndex = 0;
+	// Only used by the reading thread
+	private int _readIndex = 1;
+	// Shared: index of the most recently completed packet, plus the FRESH flag
+	private final AtomicInteger _ready = new AtomicInteger(2);
+
+	/**
+	 * Returns the packet the writer should fill next.
+	 */
+	FramePacket writePacket() {
+		return _packets[_writeIndex];
+	}
+
+	/**
+	 * Makes the packet just written available to the reader.
+	 */
+	void publish() {
+		int previous = _ready.getAndSet(_writeIndex | FRESH);
+		_writeIndex = previous & INDEX_MASK;
+	}
+
+	/**
+	 * Returns true if a packet has been published since the reader last
+	 * acquired one.
+	 */
+	boolean hasFresh() {
+		return (_ready.get() & FRESH) != 0;
+	}
+
+	/**
+	 * Returns the most recently published packet. The packet remains valid until
+	 * the next call to acquire.
+	 */
+	FramePacket acquire() {
+		if(hasFresh()) {
+			int previous = _ready.getAndSet(_readIndex);
+			_readIndex = previous & INDEX_MASK;
+		}
+		return _packets[_readIndex];
+	}
+}
@@ -0,0 +1,221 @@
+package uEngine;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Measures where the time in each frame goes. When a profiler is attached to a
+ * game, the game times each phase of every tick (input, update, physics) and
+ * of rendering, counts collision pairs, and measures how much memory the game
+ * thread allocates per tick. Measurements are kept in histograms, emitted as
+ * Java Flight Recorder events, and can be read with snapshot() or shown on
+ * screen as an overlay.
+ */
+public class FrameProfiler {
+	public static final int INPUT = 0;
+	public static final int UPDATE = 1;
+	public static final int PHYSICS = 2;
+	public static final int TICK = 3;	// input, update and physics together
+	public static final int RENDER = 4;
+	public static final int FRAME = 5;	// time between the start of consecutive frames
+	static final String[] PHASE_NAMES = { "input", "update", "physics", "tick", "render", "frame" };
+
+	// How often, in ticks, per-object costs and the overlay are recomputed
+	static final int REFRESH_TICKS = 60;
+	private static final int TOP_OBJECTS = 5;
+
+	private final Histogram[] _phases = new Histogram[PHASE_NAMES.length];
+	private final Histogram _candidatePairs = new Histogram();
+	private final Histogram _contacts = new Histogram();
+	private final Histogram _allocatedBytes = new Histogram();
+	private final Histogram _drawnObjects = new Histogram();
+	private final Histogram _culledObjects = new Histogram();
+
+	private boolean _objectProfiling = false;
+	private boolean _overlay = false;
+	private volatile String _overlayText = "";
+	private volatile List<ObjectCost> _topObjects = Collections.emptyList();
+
+	private long _previousFrameStartTime = -1;
+
+	// Used to measure allocation by the game thread, if the JVM supports it
+	private com.sun.management.ThreadMXBean _threads = null;
+
+	public FrameProfiler() {
+		for(int i = 0; i < _phases.length; i++) {
+			_phases[i] = new Histogram();
+		}
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			_threads = (com.sun.management.ThreadMXBean)threads;
+			if(!_threads.isThreadAllocatedMemorySupported()) {
+				_threads = null;
+			} else {
+				_threads.setThreadAllocatedMemoryEnabled(true);
+			}
+		}
+	}
+
+	/**
+	 * Enables timing of each game object's update, to find the most expensive
+	 * objects. This adds two clock reads per object per tick.
+	 * @param enabled
+	 */
+	public void setObjectProfiling(boolean enabled) {
+		_objectProfiling = enabled;
+	}
+
+	public boolean isObjectProfiling() {
+		return _objectProfiling;
+	}
+
+	/**
+	 * Enables drawing a summary of the profile over the game.
+	 * @param enabled
+	 */
+	public void setOverlay(boolean enabled) {
+		_overlay = enabled;
+	}
+
+	public boolean isOverlay() {
+		return _overlay;
+	}
+
+	/**
+	 * Returns the bytes allocated by the calling thread so far, or -1 if this
+	 * cannot be measured.
+	 */
+	long allocatedBytes() {
+		return _threads == null ? -1 : _threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	synchronized void recordTick(long tick, long inputTime, long updateTime, long physicsTime,
+			int candidatePairs, int contacts, long allocatedBytes) {
+		_phases[INPUT].record(inputTime);
+		_phases[UPDATE].record(updateTime);
+		_phases[PHYSICS].record(physicsTime);
+		_phases[TICK].record(inputTime + updateTime + physicsTime);
+		_candidatePairs.record(candidatePairs);
+		_contacts.record(contacts);
+		if(allocatedBytes >= 0) {
+			_allocatedBytes.record(allocatedBytes);
+		}
+
+		FrameEvent event = new FrameEvent();
+		if(event.isEnabled()) {
+			event.tick = tick;
+			event.inputTime = inputTime;
+			event.updateTime = updateTime;
+			event.physicsTime = physicsTime;
+			event.candidatePairs = candidatePairs;
+			event.contacts = contacts;
+			event.allocatedBytes = allocatedBytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records a rendered frame. The drawn and culled counts are -1 if nothing
+	 * was drawn, e.g. when headless.
+	 */
+	synchronized void recordRender(long frameStartTime, long renderTime, int drawnObjects, int culledObjects) {
+		_phases[RENDER].record(renderTime);
+		if(drawnObjects >= 0) {
+			_drawnObjects.record(drawnObjects);
+			_culledObjects.record(culledObjects);
+		}
+		if(_previousFrameStartTime >= 0) {
+			_phases[FRAME].record(frameStartTime - _previousFrameStartTime);
+		}
+		_previousFrameStartTime = frameStartTime;
+	}
+
+	/**
+	 * Recomputes the most expensive objects, and the overlay text. Called on the
+	 * game thread every REFRESH_TICKS ticks.
+	 * @param gameObjects
+	 */
+	void refresh(List<GameObject> gameObjects) {
+		if(_objectProfiling) {
+			List<ObjectCost> costs = new ArrayList<ObjectCost>();
+			for(int i = 0; i < gameObjects.size(); i++) {
+				GameObject g = gameObjects.get(i);
+				if(g.profiledUpdates > 0) {
+					costs.add(new ObjectCost(g.toString(), g.profiledUpdateTime / g.profiledUpdates, g.profiledUpdates));
+				}
+				g.profiledUpdateTime = 0;
+				g.profiledUpdates = 0;
+			}
+			Collections.sort(costs);
+			_topObjects = Collections.unmodifiableList(
+					new ArrayList<ObjectCost>(costs.subList(0, Math.min(TOP_OBJECTS, costs.size()))));
+		}
+
+		if(_overlay) {
+			_overlayText = snapshot().summary();
+		}
+	}
+
+	String getOverlayText() {
+		return _overlayText;
+	}
+
+	/**
+	 * Returns a copy of all measurements since the profiler was created or last
+	 * reset.
+	 * @return
+	 */
+	public synchronized ProfileSnapshot snapshot() {
+		Histogram[] phases = new Histogram[_phases.length];
+		for(int i = 0; i < phases.length; i++) {
+			phases[i] = _phases[i].copy();
+		}
+		return new ProfileSnapshot(phases, _candidatePairs.copy(), _contacts.copy(),
+				_allocatedBytes.copy(), _drawnObjects.copy(), _culledObjects.copy(), _topObjects);
+	}
+
+	/**
+	 * Returns a copy of all measurements, and resets them, e.g. to report on
+	 * fixed intervals.
+	 * @return
+	 */
+	public synchronized ProfileSnapshot snapshotAndReset() {
+		ProfileSnapshot snapshot = snapshot();
+		reset();
+		return snapshot;
+	}
+
+	public synchronized void reset() {
+		for(int i = 0; i < _phases.length; i++) {
+			_phases[i].reset();
+		}
+		_candidatePairs.reset();
+		_contacts.reset();
+		_allocatedBytes.reset();
+		_drawnObjects.reset();
+		_culledObjects.reset();
+	}
+
+	/**
+	 * The average update cost of one game object.
+	 */
+	public static class ObjectCost implements Comparable<ObjectCost> {
+		public final String name;
+		public final long averageUpdateTime;	// ns
+		public final long updates;
+
+		ObjectCost(String name, long averageUpdateTime, long updates) {
+			this.name = name;
+			this.averageUpdateTime = averageUpdateTime;
+			this.updates = updates;
+		}
+
+		public int compareTo(ObjectCost other) {
+			return Long.compare(other.averageUpdateTime * other.updates, averageUpdateTime * updates);
+		}
+
+		public String toString() {
+			return name + " " + averageUpdateTime + "ns";
+		}
+	}
+}
@@ -1,45 +1,864 @@
 package uEngine;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
 
 public abstract class Game {
 	
 	public static final int WINDOW_WIDTH = 800;
 	public static final int WINDOW_HEIGHT = 600;
 	
-	public Vector2 centre = new Vector2(0,0);
+	// The world point the camera is centred on. Starts at the middle of the
+	// window, so that world coordinates are window coordinates until it moves.
+	public Vector2 centre;
+	
+	private final int _width;
+	private final int _height;
 	
 	// We require a minimum amount of time between frames to ensure that the
 	// reported elapsed time is not too small, leading to potential underflow
 	// errors in game objects
 	private static final long MIN_FRAME_ELAPSED_TIME = 10; // ms
 	
+	// When waiting for the next tick, we park the thread until this long before
+	// the deadline, then spin for the remainder, since parking is not precise.
+	private static final long SPIN_WAIT_TIME = 1000000; // ns
+	
+	// Fixed timestep settings. A tick rate of zero selects the variable timestep,
+	// where each frame runs one update with the time elapsed since the last frame.
+	private int _tickRate = 0;
+	private int _maxCatchUpSteps = 5;
+	private int _maxFrameRate = 0;
+	
+	// How far between the previous and the current tick the rendered frame lies,
+	// from 0 (previous tick) to 1 (current tick)
+	private float _interpolationAlpha = 1;
+	
+	// If true, ticks run back to back as fast as possible rather than in real time
+	private boolean _unthrottled = false;
+	
+	private boolean _started = false;
+	private long _tickCount = 0;
+	
+	// Parallel update. Game objects are split into those that may be updated
+	// concurrently and those that must be updated one at a time. The split is
+	// recomputed when objects are added or removed.
+	private static final int PARALLEL_UPDATE_BATCH_SIZE = 64;
+	private ForkJoinPool _updatePool = null;
+	private List<GameObject> _parallelObjects = new ArrayList<GameObject>();
+	private List<GameObject> _sequentialObjects = new ArrayList<GameObject>();
+	private boolean _updatePartitionDirty = true;
+	
+	private FrameProfiler _profiler = null;
+	
+	// Sends and receives the game's state over the network, if it is a
+	// replication server or client
+	private volatile Replication _replication = null;
+	
+	// Saves the game to a scene file every so many ticks, if set
+	private volatile SceneCheckpointer _checkpointer = null;
+	
 	private RenderEngine _renderer;
 	private InputEngine _input;
 	private AudioEngine _audio;
 	private PhysicsEngine _physics;
 	
 	private List<GameObject> _gameObjects = new ArrayList<GameObject>();
+	private EntityIndex _entities = new EntityIndex();
+	private ComponentStore _components = new ComponentStore();
+	
+	// Every object's transform, for storing previous positions
+	private Query _transforms = _components.query(Transform.class);
 	
 	private long _previousFrameStartTime = System.currentTimeMillis();
 	
+	// Spawn and destroy commands, applied between ticks so that the list of game
+	// objects never changes while it is being iterated. Guarded by the command
+	// lock, since objects updated in parallel may spawn and destroy. The lists
+	// are swapped with the applying lists, so that commands issued by start()
+	// and onDestroy() wait for the next batch.
+	private final Object _commandLock = new Object();
+	private List<GameObject> _pendingSpawns = new ArrayList<GameObject>();
+	private List<GameObject> _pendingDestroys = new ArrayList<GameObject>();
+	private List<GameObject> _applyingSpawns = new ArrayList<GameObject>();
+	private List<GameObject> _applyingDestroys = new ArrayList<GameObject>();
+	
+	/**
+	 * Adds a game object while setting up the game. Once the game has started,
+	 * this is the same as spawn.
+	 * @param g
+	 */
 	protected void addGameObject(GameObject g) {
+		if(_started) {
+			spawn(g);
+			return;
+		}
+		synchronized(_commandLock) {
+			if(g.lifecycle != GameObject.DETACHED) {
+				return;
+			}
+			g.lifecycle = GameObject.ALIVE;
+		}
+		attach(g);
+		_gameObjects.add(g);
+		_updatePartitionDirty = true;
+	}
+	
+	private void attach(GameObject g) {
 		// provide this game object with a reference back to the game
 		g.game = this;
+		_entities.add(g);
+		g.syncComponents();
+		_components.add(g);
+		g.material.retainSprite();
 		
-		// provide this game object with a convenience reference to the audio engine
+		// provide this game object with convenience references to the audio and
+		// input engines
 		g.audio = _audio;
+		g.input = _input;
+	}
+	
+	/**
+	 * Adds a game object to the running game. The object joins the game
+	 * between ticks, when its start() method is called; it is first updated in
+	 * the following tick. Spawning an object that is already in a game, or
+	 * waiting to join one, does nothing. May be called from update, including
+	 * parallel update.
+	 * @param g
+	 */
+	public void spawn(GameObject g) {
+		synchronized(_commandLock) {
+			if(g.lifecycle != GameObject.DETACHED) {
+				return;
+			}
+			g.lifecycle = GameObject.SPAWNING;
+			_pendingSpawns.add(g);
+		}
+	}
+	
+	/**
+	 * Removes a game object from the game. The object leaves the game between
+	 * ticks, when its onDestroy() method is called, and it is then returned to
+	 * its pool, if it has one. Objects it was colliding with get
+	 * onCollisionExit. Until then, it is still updated and rendered, but
+	 * isAlive() returns false. Destroying an object that is waiting to be
+	 * spawned cancels the spawn. May be called from update, including parallel
+	 * update.
+	 * @param g
+	 */
+	public void destroy(GameObject g) {
+		boolean cancelled = false;
+		synchronized(_commandLock) {
+			if(g.lifecycle == GameObject.SPAWNING) {
+				_pendingSpawns.remove(g);
+				g.lifecycle = GameObject.DETACHED;
+				cancelled = true;
+			} else if(g.lifecycle == GameObject.ALIVE && g.game == this) {
+				g.lifecycle = GameObject.DESTROYING;
+				_pendingDestroys.add(g);
+			}
+		}
+		if(cancelled && g.pool != null) {
+			g.pool.recycle(g);
+		}
+	}
+	
+	/**
+	 * Applies the spawn and destroy commands issued since the last call.
+	 * Objects are destroyed first, then spawned objects are added and, if the
+	 * game has started, started.
+	 */
+	private void applyCommands() {
+		List<GameObject> spawns, destroys;
+		synchronized(_commandLock) {
+			if(_pendingSpawns.isEmpty() && _pendingDestroys.isEmpty()) {
+				return;
+			}
+			spawns = _pendingSpawns;
+			_pendingSpawns = _applyingSpawns;
+			_applyingSpawns = spawns;
+			destroys = _pendingDestroys;
+			_pendingDestroys = _applyingDestroys;
+			_applyingDestroys = destroys;
+			
+			for(int i = 0; i < destroys.size(); i++) {
+				destroys.get(i).lifecycle = GameObject.DETACHED;
+			}
+			for(int i = 0; i < spawns.size(); i++) {
+				spawns.get(i).lifecycle = GameObject.ALIVE;
+			}
+		}
 		
-		// register the game object so that events are called (start, update, ...)
-		_gameObjects.add(g);
+		if(!destroys.isEmpty()) {
+			// Remove all destroyed objects in one pass, keeping the others in order
+			int kept = 0;
+			for(int i = 0; i < _gameObjects.size(); i++) {
+				GameObject g = _gameObjects.get(i);
+				if(g.lifecycle != GameObject.DETACHED) {
+					_gameObjects.set(kept++, g);
+				}
+			}
+			for(int i = _gameObjects.size() - 1; i >= kept; i--) {
+				_gameObjects.remove(i);
+			}
+			
+			_physics.removeDetachedContacts();
+			
+			for(int i = 0; i < destroys.size(); i++) {
+				GameObject g = destroys.get(i);
+				g.onDestroy();
+				_physics.removeBody(g);
+				_entities.remove(g);
+				_components.remove(g);
+				g.material.releaseSprite();
+				if(g.pool != null) {
+					g.pool.recycle(g);
+				}
+			}
+			destroys.clear();
+		}
+		
+		if(!spawns.isEmpty()) {
+			int first = _gameObjects.size();
+			for(int i = 0; i < spawns.size(); i++) {
+				GameObject g = spawns.get(i);
+				attach(g);
+				_gameObjects.add(g);
+			}
+			spawns.clear();
+			
+			if(_started) {
+				for(int i = first; i < _gameObjects.size(); i++) {
+					GameObject g = _gameObjects.get(i);
+					start(g);
+					g.syncComponents();
+					_entities.reindex(g);
+					// Don't interpolate from wherever the object was before
+					g.transform.previousPosition.x = g.transform.position.x;
+					g.transform.previousPosition.y = g.transform.position.y;
+				}
+			}
+		}
+		
+		_updatePartitionDirty = true;
+		// The physics engine's active and resting bodies no longer match the scene
+		_physics.invalidateBodies();
+	}
+	
+	/**
+	 * Returns the object with the given handle (see GameObject.getHandle).
+	 * @param handle
+	 * @return the object, or null if it has been destroyed
+	 */
+	public GameObject getEntity(int handle) {
+		return _entities.get(handle);
+	}
+	
+	/**
+	 * Returns an object with the given name, without searching.
+	 * @param name
+	 * @return the object, or null if there is none
+	 */
+	public GameObject findByName(String name) {
+		return _entities.findByName(name);
+	}
+	
+	/**
+	 * Returns the objects with the given tag, without searching. The list is a
+	 * read-only view, which changes as objects are spawned and destroyed.
+	 * @param tag a tag from Tags.intern
+	 * @return the objects
+	 */
+	public List<GameObject> findAllByTag(int tag) {
+		return _entities.findAllByTag(tag);
+	}
+	
+	/**
+	 * Updates the game's index after an object's name or tag has changed.
+	 * Objects are indexed automatically when they join the game and after
+	 * start(), so this is only needed for changes made at other times.
+	 * @param g
+	 */
+	public void reindex(GameObject g) {
+		if(g.game == this && g.handle != EntityIndex.NO_HANDLE) {
+			_entities.reindex(g);
+		}
+	}
+	
+	/**
+	 * Creates a query over the objects in this game that have all the given
+	 * classes of component. Queries are kept up to date as objects and
+	 * components come and go, so create each query once and keep it.
+	 * @param types
+	 * @return the query
+	 */
+	@SafeVarargs
+	public final Query query(Class<? extends Component>... types) {
+		// Only the mask leaves this method, so the array cannot be polluted
+		long mask = 0;
+		for(Class<? extends Component> type : types) {
+			mask |= 1L << Component.typeId(type);
+		}
+		return _components.query(mask);
+	}
+	
+	ComponentStore components() {
+		return _components;
+	}
+	
+	/**
+	 * Returns the number of game objects in the game.
+	 * @return
+	 */
+	public int getGameObjectCount() {
+		return _gameObjects.size();
+	}
+	
+	/**
+	 * Returns the width of this game's window, or of its playing area if headless.
+	 * @return
+	 */
+	public int getWidth() {
+		return _width;
+	}
+	
+	/**
+	 * Returns the height of this game's window, or of its playing area if headless.
+	 * @return
+	 */
+	public int getHeight() {
+		return _height;
+	}
+	
+	/**
+	 * Provides access to the render engine, e.g. to select active rendering.
+	 * @return the render engine
+	 */
+	public RenderEngine getRenderer() {
+		return _renderer;
+	}
+	
+	/**
+	 * Provides access to the physics engine, e.g. to select its broadphase.
+	 * @return the physics engine
+	 */
+	public PhysicsEngine getPhysics() {
+		return _physics;
 	}
 
-	protected void mainLoop() {
+	/**
+	 * Selects a fixed timestep: game objects are updated, and collisions
+	 * checked, exactly ticksPerSecond times per second of real time, each time
+	 * with the same elapsed time. Rendering interpolates between the last two
+	 * ticks. Must be called before mainLoop.
+	 * @param ticksPerSecond the simulation rate
+	 * @param maxCatchUpSteps the maximum number of ticks run before rendering a
+	 * frame. If the simulation falls further behind than this, the missed time
+	 * is dropped, and the game runs slower than real time.
+	 */
+	public void setFixedTimestep(int ticksPerSecond, int maxCatchUpSteps) {
+		if(ticksPerSecond <= 0 || maxCatchUpSteps <= 0) {
+			throw new IllegalArgumentException("tick rate and catch up steps must be positive");
+		}
+		_tickRate = ticksPerSecond;
+		_maxCatchUpSteps = maxCatchUpSteps;
+	}
+	
+	/**
+	 * Selects a variable timestep (the default): each frame runs one update,
+	 * with the time elapsed since the previous frame.
+	 */
+	public void setVariableTimestep() {
+		_tickRate = 0;
+	}
+	
+	/**
+	 * Limits how often frames are rendered with a fixed timestep. This may be
+	 * higher than the tick rate, in which case frames in between ticks are
+	 * interpolated. Zero (the default) renders one frame after each batch of ticks.
+	 * @param framesPerSecond
+	 */
+	public void setMaxFrameRate(int framesPerSecond) {
+		if(framesPerSecond < 0) {
+			throw new IllegalArgumentException("frame rate must not be negative");
+		}
+		_maxFrameRate = framesPerSecond;
+	}
+	
+	/**
+	 * If unthrottled, the fixed timestep loop runs ticks back to back as fast
+	 * as the CPU allows, instead of in real time. Each tick still advances the
+	 * simulation by the fixed timestep, so this fast-forwards the game. Frames
+	 * are rendered at most at the maximum frame rate, if set, or otherwise after
+	 * every tick.
+	 * @param unthrottled
+	 */
+	public void setUnthrottled(boolean unthrottled) {
+		_unthrottled = unthrottled;
+	}
+	
+	/**
+	 * Enables parallel update. Game objects that implement ParallelUpdate are
+	 * then updated concurrently using the given pool, and all other objects are
+	 * updated afterwards, one at a time in the order they were added. All
+	 * updates complete before collisions are checked.
+	 * @param pool the pool to run updates in, or null to update all objects
+	 * one at a time (the default)
+	 */
+	public void setParallelUpdate(ForkJoinPool pool) {
+		_updatePool = pool;
+	}
+	
+	/**
+	 * Attaches a profiler, which then measures every tick and frame.
+	 * @param profiler the profiler, or null to stop profiling
+	 */
+	public void setProfiler(FrameProfiler profiler) {
+		_profiler = profiler;
+	}
+	
+	public FrameProfiler getProfiler() {
+		return _profiler;
+	}
+	
+	/**
+	 * Attaches a replication server or client, which is then run every tick.
+	 */
+	void setReplication(Replication replication) {
+		if(replication != null && _replication != null) {
+			throw new IllegalStateException("game already has replication");
+		}
+		_replication = replication;
+	}
+	
+	/**
+	 * Attaches a checkpointer, which is then run at the end of every tick.
+	 */
+	void setCheckpointer(SceneCheckpointer checkpointer) {
+		if(checkpointer != null && _checkpointer != null) {
+			throw new IllegalStateException("game already has a checkpointer");
+		}
+		_checkpointer = checkpointer;
+	}
+	
+	/**
+	 * Saves every object in the game to a scene file, which loadScene can
+	 * restore. Must be called between ticks, or by the thread running the
+	 * game. To save a running game regularly without holding it up, use a
+	 * SceneCheckpointer.
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void saveScene(String fileName) throws IOException {
+		SceneWriter writer = new SceneWriter(fileName, _tickCount, _width, _height);
+		try {
+			for(int i = 0; i < _gameObjects.size(); i++) {
+				GameObject g = _gameObjects.get(i);
+				if(g.isAlive()) {
+					writer.write(g);
+				}
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Adds the objects saved in a scene file to the game, as addGameObject
+	 * does. Each object's start() method is called as usual, after which its
+	 * saved state is restored; see SceneReader.
+	 * @param fileName
+	 * @return the number of objects added
+	 * @throws IOException
+	 */
+	public int loadScene(String fileName) throws IOException {
+		SceneReader reader = new SceneReader(fileName);
+		try {
+			int count = 0;
+			for(GameObject g = reader.next(); g != null; g = reader.next()) {
+				addGameObject(g);
+				count++;
+			}
+			return count;
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Returns the game's objects, for replication. Must only be used between
+	 * ticks, or during the replication hooks.
+	 */
+	List<GameObject> gameObjects() {
+		return _gameObjects;
+	}
+	
+	/**
+	 * Returns the number of simulation steps run so far.
+	 * @return
+	 */
+	public long getTickCount() {
+		return _tickCount;
+	}
+	
+	/**
+	 * Returns the input engine that feeds this game. When headless, input may
+	 * be provided programmatically through it.
+	 * @return the input engine
+	 */
+	public InputEngine getInput() {
+		return _input;
+	}
+	
+	/**
+	 * Returns how far the frame being rendered lies between the previous tick
+	 * (0) and the current tick (1). Always 1 with a variable timestep.
+	 * @return the interpolation factor
+	 */
+	public float getInterpolationAlpha() {
+		return _interpolationAlpha;
+	}
+	
+	/**
+	 * Runs one simulation step: processes input, updates each game object and
+	 * checks for collisions.
+	 * @param elapsedTime the simulated time since the previous step, in seconds
+	 */
+	void tick(float elapsedTime) {
+		FrameProfiler profiler = _profiler;
+		boolean profileObjects = profiler != null && profiler.isObjectProfiling();
+		long allocatedAtStart = profiler != null ? profiler.allocatedBytes() : 0;
+		long startTime = profiler != null ? System.nanoTime() : 0;
+		
+		// Add and remove objects spawned and destroyed since the last tick
+		applyCommands();
+		
+		// Remember where each object was, so that rendering can interpolate
+		// between this step and the next
+		storePreviousPositions();
+		
+		// Take in what has arrived over the network, including remote input
+		Replication replication = _replication;
+		if(replication != null) {
+			replication.beforeTick(elapsedTime);
+		}
+		
+		_input.startFrame(elapsedTime);
+		long inputDoneTime = profiler != null ? System.nanoTime() : 0;
+		
+		// Update all components by running their Update method
+		if(_updatePool == null) {
+			for(int i = 0; i < _gameObjects.size();i++) {
+				update(_gameObjects.get(i), elapsedTime, profileObjects);
+			}
+		} else {
+			parallelUpdate(elapsedTime, profileObjects);
+		}
+		long updateDoneTime = profiler != null ? System.nanoTime() : 0;
+		
+		// Check for collisions
+		_physics.checkCollisions(_gameObjects);
+		
+		// Apply the commands issued during this tick before the frame is rendered
+		applyCommands();
+		
+		_tickCount++;
+		
+		if(replication != null) {
+			replication.afterTick(_tickCount);
+		}
+		
+		SceneCheckpointer checkpointer = _checkpointer;
+		if(checkpointer != null) {
+			checkpointer.afterTick(_tickCount);
+		}
+		
+		if(profiler != null) {
+			long physicsDoneTime = System.nanoTime();
+			long allocated = allocatedAtStart < 0 ? -1 : profiler.allocatedBytes() - allocatedAtStart;
+			profiler.recordTick(_tickCount, inputDoneTime - startTime, updateDoneTime - inputDoneTime,
+					physicsDoneTime - updateDoneTime, _physics.getCandidatePairCount(),
+					_physics.getContactCount(), allocated);
+			if(_tickCount % FrameProfiler.REFRESH_TICKS == 0) {
+				profiler.refresh(_gameObjects);
+			}
+		}
+	}
+	
+	/**
+	 * Updates one game object, timing it if required.
+	 */
+	private static void update(GameObject g, float elapsedTime, boolean profile) {
+		if(profile) {
+			long startTime = System.nanoTime();
+			g.update(elapsedTime);
+			g.profiledUpdateTime += System.nanoTime() - startTime;
+			g.profiledUpdates++;
+		} else {
+			g.update(elapsedTime);
+		}
+	}
+	
+	/**
+	 * Renders the scene, timing it if profiling.
+	 * @param interpolationAlpha
+	 */
+	private void render(float interpolationAlpha) {
+		FrameProfiler profiler = _profiler;
+		if(profiler == null) {
+			_renderer.renderScene(_gameObjects, centre, interpolationAlpha);
+			return;
+		}
+		
+		_renderer.setOverlayText(profiler.isOverlay() ? profiler.getOverlayText() : null);
+		long startTime = System.nanoTime();
+		_renderer.renderScene(_gameObjects, centre, interpolationAlpha);
+		long renderTime = System.nanoTime() - startTime;
+		if(_renderer.isHeadless()) {
+			profiler.recordRender(startTime, renderTime, -1, -1);
+		} else {
+			profiler.recordRender(startTime, renderTime, _renderer.getDrawnCount(), _renderer.getCulledCount());
+		}
+	}
+	
+	private void parallelUpdate(float elapsedTime, boolean profileObjects) {
+		if(_updatePartitionDirty) {
+			_parallelObjects.clear();
+			_sequentialObjects.clear();
+			for(int i = 0; i < _gameObjects.size();i++) {
+				GameObject g = _gameObjects.get(i);
+				if(g instanceof ParallelUpdate) {
+					_parallelObjects.add(g);
+				} else {
+					_sequentialObjects.add(g);
+				}
+			}
+			_updatePartitionDirty = false;
+		}
+		
+		// Update the thread-safe objects concurrently. invoke does not return
+		// until all of them have been updated.
+		if(_parallelObjects.size() > 0) {
+			_updatePool.invoke(new UpdateTask(_parallelObjects, 0, _parallelObjects.size(), elapsedTime, profileObjects));
+		}
+		
+		for(int i = 0; i < _sequentialObjects.size();i++) {
+			update(_sequentialObjects.get(i), elapsedTime, profileObjects);
+		}
+	}
+	
+	/**
+	 * Updates a range of game objects, splitting it in half to be run in
+	 * parallel until the range is small enough.
+	 */
+	static class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<GameObject> _objects;
+		private final int _start;
+		private final int _end;
+		private final float _elapsedTime;
+		private final boolean _profile;
+		
+		UpdateTask(List<GameObject> objects, int start, int end, float elapsedTime, boolean profile) {
+			_objects = objects;
+			_start = start;
+			_end = end;
+			_elapsedTime = elapsedTime;
+			_profile = profile;
+		}
+		
+		protected void compute() {
+			if(_end - _start <= PARALLEL_UPDATE_BATCH_SIZE) {
+				for(int i = _start; i < _end; i++) {
+					update(_objects.get(i), _elapsedTime, _profile);
+				}
+			} else {
+				int middle = (_start + _end) >>> 1;
+				invokeAll(new UpdateTask(_objects, _start, middle, _elapsedTime, _profile),
+						new UpdateTask(_objects, middle, _end, _elapsedTime, _profile));
+			}
+		}
+	}
+	
+	/**
+	 * Calls an object's start() method, then restores the state it was loaded
+	 * with, if it came from a scene file.
+	 */
+	private static void start(GameObject g) {
+		g.start();
+		if(g.savedState != null) {
+			g.savedState.apply(g);
+			g.savedState = null;
+		}
+	}
+	
+	/**
+	 * Starts all game objects, if not already started.
+	 */
+	void startGameObjects() {
+		if(_started) {
+			return;
+		}
+		applyCommands();
+		_started = true;
+		
 		// Initialize all components by calling their Start method
 		for(int i = 0; i < _gameObjects.size();i++) {
-			_gameObjects.get(i).start();
+			start(_gameObjects.get(i));
+			_gameObjects.get(i).syncComponents();
+			_entities.reindex(_gameObjects.get(i));
+		}
+		storePreviousPositions();
+	}
+	
+	/**
+	 * Runs the given number of ticks back to back on the calling thread, as fast
+	 * as possible, then returns. Game objects are started first if needed. This
+	 * is intended for batch simulation and measurement, typically headless.
+	 * @param ticks the number of ticks to run
+	 * @param elapsedTime the simulated time of each tick, in seconds
+	 * @return the rate achieved, in ticks per second of real time
+	 */
+	public double runTicks(long ticks, float elapsedTime) {
+		startGameObjects();
+		
+		long startTime = System.nanoTime();
+		for(long i = 0; i < ticks; i++) {
+			tick(elapsedTime);
+			render(1);
+		}
+		long time = System.nanoTime() - startTime;
+		
+		return time > 0 ? ticks * 1e9 / time : Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Runs the game through recorded input, one tick for each recorded frame
+	 * with the frame's elapsed time, as fast as possible. Game objects are
+	 * started first if needed. Replaying the same log from the same starting
+	 * state always produces the same game, so this can serve as a repeatable
+	 * load test or regression run. Normally used headless.
+	 * @param replay the recorded input
+	 * @return the rate achieved, in ticks per second of real time
+	 */
+	public double replay(InputReplay replay) throws IOException {
+		startGameObjects();
+		_input.setReplay(replay);
+		
+		long ticks = 0;
+		long startTime = System.nanoTime();
+		try {
+			while(replay.nextFrame()) {
+				tick(replay.getElapsedTime());
+				render(1);
+				ticks++;
+			}
+		} finally {
+			_input.setReplay(null);
+		}
+		long time = System.nanoTime() - startTime;
+		
+		return time > 0 ? ticks * 1e9 / time : Double.POSITIVE_INFINITY;
+	}
+	
+	private void storePreviousPositions() {
+		// Walk the transforms directly, table by table
+		for(int a = 0; a < _transforms.getTableCount(); a++) {
+			Archetype table = _transforms.getTable(a);
+			Transform[] transforms = table.getColumn(Transform.class);
+			for(int i = 0; i < table.size(); i++) {
+				Transform t = transforms[i];
+				t.previousPosition.x = t.position.x;
+				t.previousPosition.y = t.position.y;
+			}
 		}
+	}
+	
+	protected void mainLoop() {
+		startGameObjects();
 		
+		if(_tickRate > 0) {
+			fixedTimestepLoop();
+		} else {
+			variableTimestepLoop();
+		}
+	}
+	
+	private void fixedTimestepLoop() {
+		final long tickTime = 1000000000L / _tickRate;
+		final float tickElapsedTime = 1f / _tickRate;
+		final long frameTime = _maxFrameRate > 0 ? 1000000000L / _maxFrameRate : 0;
+		
+		long previousTime = System.nanoTime();
+		long accumulator = 0;
+		long nextFrameTime = previousTime;
+		
+		while(true) {
+			long now = System.nanoTime();
+			accumulator += now - previousTime;
+			previousTime = now;
+			
+			// When unthrottled, pretend a tick is always due
+			if(_unthrottled && accumulator < tickTime) {
+				accumulator = tickTime;
+			}
+			
+			// Run as many ticks as real time requires, up to the catch up limit. If
+			// we are still behind after that, drop the missed time rather than
+			// falling ever further behind.
+			int steps = 0;
+			while(accumulator >= tickTime && steps < _maxCatchUpSteps) {
+				tick(tickElapsedTime);
+				accumulator -= tickTime;
+				steps++;
+			}
+			if(accumulator >= tickTime) {
+				accumulator %= tickTime;
+			}
+			
+			// Render a frame if one is due. Without a frame rate limit, we render
+			// whenever a tick has run.
+			boolean renderDue = frameTime > 0 ? now >= nextFrameTime : steps > 0;
+			if(renderDue) {
+				_interpolationAlpha = accumulator / (float)tickTime;
+				render(_interpolationAlpha);
+				if(frameTime > 0) {
+					nextFrameTime = Math.max(nextFrameTime + frameTime, now);
+				}
+			}
+			
+			// Sleep until the next tick or frame is due
+			if(_unthrottled) {
+				continue;
+			}
+			long deadline = previousTime + (tickTime - accumulator);
+			if(frameTime > 0) {
+				deadline = Math.min(deadline, nextFrameTime);
+			}
+			parkUntil(deadline);
+		}
+	}
+	
+	/**
+	 * Blocks until System.nanoTime() reaches the deadline, without polling.
+	 * @param deadline
+	 */
+	private static void parkUntil(long deadline) {
+		long remaining = deadline - System.nanoTime();
+		while(remaining > SPIN_WAIT_TIME) {
+			LockSupport.parkNanos(remaining - SPIN_WAIT_TIME);
+			remaining = deadline - System.nanoTime();
+		}
+		while(deadline - System.nanoTime() > 0) {
+			Thread.onSpinWait();
+		}
+	}
+	
+	private void variableTimestepLoop() {
 		while(true){
 			// Start a new frame
 			long frameStartTime = System.currentTimeMillis();
@@ -57,18 +876,10 @@ public abstract class Game {
 			}
 			float elapsedTime = (frameStartTime - _previousFrameStartTime) / 1000f;
 			
-			_input.startFrame();
-			
-			// Update all components by running their Update method
-			for(int i = 0; i < _gameObjects.size();i++) {
-				_gameObjects.get(i).update(elapsedTime);
-			}
-			
-			// Check for collisions
-			_physics.checkCollisions(_gameObjects);
+			tick(elapsedTime);
 			
 			// Render the scene by drawing each component's sprite
-			_renderer.renderScene(_gameObjects, centre);
+			render(1);
 			
 			// Update frame time
 			_previousFrameStartTime = frameStartTime;
@@ -76,14 +887,49 @@ public abstract class Game {
 	}
 	
 	public Game() {
+		this(false);
+	}
+	
+	/**
+	 * Creates a game.
+	 * @param headless if true, the game runs without a window: nothing is drawn,
+	 * sound is disabled, and input must be provided programmatically through
+	 * getInput(). This allows games to run on machines with no display, e.g.
+	 * for server-side or batch simulation. Headless games can be run together
+	 * in one process by a WorldHost.
+	 */
+	protected Game(boolean headless) {
+		this(headless, WINDOW_WIDTH, WINDOW_HEIGHT);
+	}
+	
+	/**
+	 * Creates a game with the given window size.
+	 * @param headless see Game(boolean)
+	 * @param width window width
+	 * @param height window height
+	 */
+	protected Game(boolean headless, int width, int height) {
+		_width = width;
+		_height = height;
+		centre = new Vector2(width / 2f, height / 2f);
+		
 		// Initialize architecture
-		_renderer = new RenderEngine();
+		_renderer = new RenderEngine(headless, width, height);
 		
-		_input = InputEngine.getInstance();
-		_input.setInputSource(_renderer.getWindow());
+		// A game with a window takes its input from the window through the shared
+		// input engine. Headless games each have their own, so that many can be
+		// run independently in one process.
+		if(headless) {
+			_input = new InputEngine();
+		} else {
+			_input = InputEngine.getInstance();
+			_input.setInputSource(_renderer.getWindow());
+		}
 		
 		_audio = new AudioEngine();
+		_audio.setEnabled(!headless);
 		
 		_physics = new PhysicsEngine();
+		_renderer.setCullingIndex(_physics);
 	}
 }
@@ -1,30 +1,248 @@
 package uEngine;
 
 import java.awt.Color;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GameObject {
-	public String id = super.toString();
+	private static final AtomicInteger _nextUid = new AtomicInteger();
+	
+	// Compact numeric id, unique within this process. Used by the engine to key
+	// per-object data without hashing strings or allocating.
+	final int uid = _nextUid.getAndIncrement();
+	
+	// Handle within the current game, the name and tag the game has indexed
+	// this object under, and its positions in those lists; see EntityIndex
+	int handle = EntityIndex.NO_HANDLE;
+	String indexedName;
+	int indexedTag;
+	int namePosition;
+	int tagPosition;
+	
+	// Components, indexed by type id, and the set of their type ids as a
+	// bitmask. Once in a game, the components are also stored in the row of an
+	// archetype table.
+	Component[] components = new Component[4];
+	long componentMask = 0;
+	Archetype archetype;
+	int row = -1;
+	
+	// Lifecycle, managed by the game: an object is added by Game.spawn, or by
+	// addGameObject before the game starts, and removed by Game.destroy. Both
+	// take effect between ticks. Guarded by the game's command lock.
+	static final int DETACHED = 0;
+	static final int SPAWNING = 1;
+	static final int ALIVE = 2;
+	static final int DESTROYING = 3;
+	int lifecycle = DETACHED;
+	
+	// The pool this object returns to when destroyed, if any
+	GameObjectPool<?> pool;
+	
+	// State loaded from a scene file, applied again once the object has
+	// started; see SceneReader
+	SceneReader.SavedState savedState;
+	
+	// Physics step in which this object last hit something by sweeping
+	int sweptStep;
+	
+	// Sleep tracking, managed by the physics engine: the bounds the object had
+	// in the last step, how many steps it has kept them, and whether it is at
+	// rest (static, or asleep)
+	float restX, restY, restWidth, restHeight;
+	int stillTicks;
+	boolean resting;
+	
+	// Update cost measured by the frame profiler
+	long profiledUpdateTime;
+	long profiledUpdates;
 	public String name;
 	
+	// Tag, from Tags.intern. Unlike names, tags are compared as ints.
+	public int tag = Tags.UNTAGGED;
+	
+	// Collision layer, from 0 to 31, set with setLayer
+	int layer = CollisionLayers.DEFAULT_LAYER;
+	
+	// How this object takes part in physics
+	public BodyType bodyType = BodyType.DYNAMIC;
+	
 	public Transform transform;
 	public Material material;
 	public AudioEngine audio;
+	public InputEngine input;
 	
 	public Game game;
 	
 	public void start() {}
 	public void update(float elapsedTime) {}
 	public void onCollisionEnter(GameObject col) {}
+	
+	/**
+	 * Called when this object starts colliding with another, with details of the
+	 * collision. By default, calls onCollisionEnter(col).
+	 * @param col the other object
+	 * @param contact details of the collision, only valid during this call
+	 */
+	public void onCollisionEnter(GameObject col, Contact contact) {
+		onCollisionEnter(col);
+	}
 	public void onCollisionExit(GameObject col) {}
 	
+	/**
+	 * Called when this object is removed from the game, after Game.destroy. A
+	 * pooled object is returned to its pool afterwards, and start() is called
+	 * again when it is next spawned.
+	 */
+	public void onDestroy() {}
+	
+	/**
+	 * Attaches a component to this object, replacing any component of the same
+	 * class. Adding a Transform or Material also sets the transform or material
+	 * field. Adding a new class of component to an object in a game moves it to
+	 * another archetype table, so must not be done while iterating a query.
+	 * @param component
+	 * @return the component
+	 */
+	public <T extends Component> T addComponent(T component) {
+		int id = Component.typeIdOf(component);
+		if(id >= components.length) {
+			components = Arrays.copyOf(components, Math.max(id + 1, components.length * 2));
+		}
+		Component previous = components[id];
+		if(previous != null) {
+			previous.gameObject = null;
+		}
+		components[id] = component;
+		component.gameObject = this;
+		if(id == Component.TRANSFORM) {
+			transform = (Transform)component;
+		} else if(id == Component.MATERIAL) {
+			material = (Material)component;
+			// The object's reference to its sprite moves to the new material
+			if(previous != null && ((Material)previous).releaseSprite()) {
+				material.retainSprite();
+			}
+		}
+		
+		long bit = 1L << id;
+		if((componentMask & bit) == 0) {
+			componentMask |= bit;
+			if(archetype != null) {
+				game.components().move(this);
+			}
+		} else if(archetype != null) {
+			archetype.set(this, id, component);
+		}
+		return component;
+	}
+	
+	/**
+	 * Returns this object's component of the given class.
+	 * @param type
+	 * @return the component, or null if this object does not have one
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Component> T getComponent(Class<T> type) {
+		int id = Component.typeId(type);
+		return id < components.length ? (T)components[id] : null;
+	}
+	
+	public boolean hasComponent(Class<? extends Component> type) {
+		return (componentMask & (1L << Component.typeId(type))) != 0;
+	}
+	
+	/**
+	 * Removes this object's component of the given class. Every object must
+	 * keep its Transform and Material.
+	 * @param type
+	 * @return the removed component, or null if this object did not have one
+	 */
+	public <T extends Component> T removeComponent(Class<T> type) {
+		int id = Component.typeId(type);
+		if(id == Component.TRANSFORM || id == Component.MATERIAL) {
+			throw new IllegalArgumentException("cannot remove " + type.getSimpleName());
+		}
+		T component = getComponent(type);
+		if(component == null) {
+			return null;
+		}
+		components[id] = null;
+		component.gameObject = null;
+		componentMask &= ~(1L << id);
+		if(archetype != null) {
+			game.components().move(this);
+		}
+		return component;
+	}
+	
+	/**
+	 * Catches up with any replacement of the transform or material fields, which
+	 * subclasses may assign directly.
+	 */
+	void syncComponents() {
+		if(components[Component.TRANSFORM] != transform) {
+			addComponent(transform);
+		}
+		if(components[Component.MATERIAL] != material) {
+			addComponent(material);
+		}
+	}
+	
+	/**
+	 * Returns this object's handle in the game it is in. The handle stays the
+	 * same while the object is in the game, and Game.getEntity finds nothing
+	 * with it once the object has been destroyed. Objects not in a game have no
+	 * handle (0).
+	 * @return
+	 */
+	public int getHandle() {
+		return handle;
+	}
+	
+	/**
+	 * Returns this object's collision layer.
+	 * @return
+	 */
+	public int getLayer() {
+		return layer;
+	}
+	
+	/**
+	 * Puts this object on a collision layer, from 0 to 31. Objects only collide
+	 * if their layers interact; see PhysicsEngine.getLayers().
+	 * @param layer
+	 */
+	public void setLayer(int layer) {
+		CollisionLayers.checkLayer(layer);
+		this.layer = layer;
+	}
+	
+	/**
+	 * Returns true if this is a dynamic body that has gone to sleep because it
+	 * has not moved for a while.
+	 * @return
+	 */
+	public boolean isSleeping() {
+		return resting && bodyType == BodyType.DYNAMIC;
+	}
+	
+	/**
+	 * Returns true if this object is in a game, and not about to be destroyed.
+	 * @return
+	 */
+	public boolean isAlive() {
+		return lifecycle == ALIVE;
+	}
+	
 	public String toString() {
 		return name + ": " + transform;
 	}
 	
 	public GameObject() {		
 		// Create default components
-		this.material = new Material();
-		this.transform = new Transform();
+		this.material = addComponent(new Material());
+		this.transform = addComponent(new Transform());
 		// Name normally provided by programmer
 		name = "";
 	}
@@ -0,0 +1,93 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Recycles game objects of one type, so that objects that are spawned and
+ * destroyed often, such as projectiles, do not create garbage. Objects are
+ * created by the pool's factory when the pool is empty; once destroyed, they
+ * return to the pool with their transform and material, ready to be spawned
+ * again.
+ *
+ * A recycled object keeps the state it had when destroyed, so its start()
+ * method, which is called each time it is spawned, should reset anything
+ * that matters. Thread-safe, so objects may be spawned from parallel update.
+ *
+ * @param <T> the type of game object
+ */
+public class GameObjectPool<T extends GameObject> {
+
+	/**
+	 * Creates a new game object for the pool.
+	 */
+	public interface Factory<T extends GameObject> {
+		T create();
+	}
+
+	private final Game _game;
+	private final Factory<T> _factory;
+	private final List<T> _free = new ArrayList<T>();
+	private int _createdCount = 0;
+
+	public GameObjectPool(Game game, Factory<T> factory) {
+		this(game, factory, 0);
+	}
+
+	/**
+	 * Creates a pool.
+	 * @param game the game objects are spawned into
+	 * @param factory creates objects when the pool is empty
+	 * @param initialSize the number of objects to create up front
+	 */
+	public GameObjectPool(Game game, Factory<T> factory, int initialSize) {
+		_game = game;
+		_factory = factory;
+		for(int i = 0; i < initialSize; i++) {
+			_free.add(create());
+		}
+	}
+
+	private T create() {
+		T g = _factory.create();
+		g.pool = this;
+		_createdCount++;
+		return g;
+	}
+
+	/**
+	 * Takes an object from the pool, creating one if the pool is empty, and
+	 * spawns it into the game. The caller may then position it; it joins the
+	 * game, and is started, between ticks.
+	 * @return the object
+	 */
+	public synchronized T spawn() {
+		T g = _free.isEmpty() ? create() : _free.remove(_free.size() - 1);
+		_game.spawn(g);
+		return g;
+	}
+
+	/**
+	 * Returns a destroyed object to the pool. Called by the game.
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void recycle(GameObject g) {
+		// Only objects created by this pool's factory refer to this pool
+		_free.add((T)g);
+	}
+
+	/**
+	 * Returns the number of objects waiting in the pool to be spawned.
+	 * @return
+	 */
+	public synchronized int getFreeCount() {
+		return _free.size();
+	}
+
+	/**
+	 * Returns the number of objects the pool has created.
+	 * @return
+	 */
+	public synchronized int getCreatedCount() {
+		return _createdCount;
+	}
+}
@@ -0,0 +1,121 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Records a distribution of non-negative values, such as times in nanoseconds,
+ * in a fixed amount of memory. As in an HDR histogram, buckets get wider as
+ * values get larger, so that every value is recorded with about the same
+ * relative precision (about 3%), from nanoseconds to hours. Recording a value
+ * is constant time and does not allocate.
+ *
+ * Not thread-safe; callers must synchronize.
+ */
+public class Histogram {
+	// Values below LINEAR_LIMIT each have their own bucket. Above, each power of
+	// two range is split into SUB_BUCKETS buckets.
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+	private static final int BUCKETS = LINEAR_LIMIT + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	private final long[] _counts = new long[BUCKETS];
+	private long _count = 0;
+	private long _sum = 0;
+	private long _min = Long.MAX_VALUE;
+	private long _max = 0;
+
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		_counts[bucket(value)]++;
+		_count++;
+		_sum += value;
+		if(value < _min) {
+			_min = value;
+		}
+		if(value > _max) {
+			_max = value;
+		}
+	}
+
+	/**
+	 * Returns an independent copy of this histogram.
+	 * @return
+	 */
+	public Histogram copy() {
+		Histogram h = new Histogram();
+		System.arraycopy(_counts, 0, h._counts, 0, BUCKETS);
+		h._count = _count;
+		h._sum = _sum;
+		h._min = _min;
+		h._max = _max;
+		return h;
+	}
+
+	public void reset() {
+		Arrays.fill(_counts, 0);
+		_count = 0;
+		_sum = 0;
+		_min = Long.MAX_VALUE;
+		_max = 0;
+	}
+
+	public long getCount() {
+		return _count;
+	}
+
+	public long getMin() {
+		return _count == 0 ? 0 : _min;
+	}
+
+	public long getMax() {
+		return _max;
+	}
+
+	public double getMean() {
+		return _count == 0 ? 0 : (double)_sum / _count;
+	}
+
+	/**
+	 * Returns the value below or at which the given percentage of recorded
+	 * values fall, to the histogram's precision.
+	 * @param percentile from 0 to 100
+	 * @return
+	 */
+	public long getPercentile(double percentile) {
+		if(_count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil(percentile / 100 * _count));
+		long cumulative = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			cumulative += _counts[i];
+			if(cumulative >= target) {
+				return Math.min(highestValueIn(i), _max);
+			}
+		}
+		return _max;
+	}
+
+	private static int bucket(long value) {
+		if(value < LINEAR_LIMIT) {
+			return (int)value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long highestValueIn(int bucket) {
+		if(bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+		long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (subBucket << shift) + (1L << shift) - 1;
+	}
+}
@@ -1,21 +1,48 @@
 package uEngine;
 
 import java.awt.event.*;
+import java.io.IOException;
 
 import javax.swing.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class InputEngine {
 
 	private JFrame _inputSource;
-	private Dictionary<Integer,KeyChange> _keys = new Hashtable<Integer, KeyChange>();
 	private static InputEngine _input = null;
 	
-	private KeyEventProcessor _keyEventProcessor;
+	// State of each key, indexed by key code. Each entry holds the number of the
+	// frame in which the key last changed, shifted left by one, with the lowest
+	// bit set if the key is down. Keys with no events are up, and last changed
+	// in frame 0. The array grows to fit the largest key code seen, up to
+	// MAX_KEY_CODE; events for larger key codes are ignored.
+	static final int MAX_KEY_CODE = 0xFFFF;
+	private static final int KEY_DOWN = 1;
+	private int[] _keys = new int[128];
+	
+	// Number of the current frame. Starts at 1, so that no key has changed in
+	// the current frame before any events arrive.
+	private int _frame = 1;
+	
+	private KeyEventProcessor _keyEventProcessor = new KeyEventProcessor();
+	
+	// Set when recording input, or replaying recorded input
+	private InputRecorder _recorder = null;
+	private InputReplay _replay = null;
+	
+	// Told of every event applied, e.g. to send it on to a server
+	private EventListener _listener = null;
+	
+	interface EventListener {
+		void inputEvent(int event);
+	}
 	
 	/**
-	 * Provide access to the Input component.
+	 * Provide access to the shared Input component, which receives input from
+	 * the window of a game that is not headless. Headless games each have their
+	 * own Input component, available from Game.getInput().
 	 * @return the Input component
 	 */
 	public static InputEngine getInstance() {
@@ -26,45 +53,110 @@ public class InputEngine {
 	}
 	
 	/**
-	 * Specifies the time that the current frame started.
-	 * @param time
+	 * Starts a new frame, applying the key events received since the last one.
 	 */
 	public void startFrame() {
-		// Flag all existing statuses in dictionary as no longer referring
-		// to current frame.
-		for(Enumeration<Integer> ke = _keys.keys(); ke.hasMoreElements();) {
-			Integer keyCode = ke.nextElement();
-			KeyChange kc = _keys.get(keyCode);
-			kc.currentFrame = false;
-			_keys.put(keyCode, kc);
-		}
+		startFrame(0);
+	}
+	
+	/**
+	 * Starts a new frame, applying the key events received since the last one,
+	 * or the next frame's events from the replay if there is one.
+	 * @param elapsedTime the frame's elapsed time, in seconds, recorded along
+	 * with its events if a recorder is attached
+	 */
+	public void startFrame(float elapsedTime) {
+		// Start a new frame. All existing key changes now refer to an earlier frame.
+		_frame++;
 		
-		// Copy all buffered events to the dictionary
-		for(KeyEvent ev : _keyEventProcessor.getEvents()) {
-			// Special case - Java auto-repeats events when key is held down. We
-			// only want to record the first one. If this is a key pressed event and
-			// there is already a key pressed event in the dictionary for this key,
-			// throw the event away.
-			if(ev.getID() == KeyEvent.KEY_PRESSED) {
-				KeyChange kc = _keys.get(ev.getKeyCode());
-				if(kc != null && kc.state == KeyChange.KEY_DOWN) {
-					// this is a repeat - throw away this event
-					continue;
-				}
+		try {
+			if(_recorder != null) {
+				_recorder.beginFrame(elapsedTime);
 			}
 			
-			// Create a KeyChange object recording the event and add it to the dictionary
-			KeyChange kc = new KeyChange();
-			kc.currentFrame = true;
-			if(ev.getID() == KeyEvent.KEY_PRESSED) {
-				kc.state = KeyChange.KEY_DOWN;
+			if(_replay != null) {
+				// Live input is ignored during a replay
+				while(_keyEventProcessor.poll() != KeyEventProcessor.NO_EVENT) {}
+				for(int event = _replay.nextEvent(); event != InputReplay.NO_EVENT;
+						event = _replay.nextEvent()) {
+					applyEvent(event);
+				}
 			} else {
-				assert ev.getID() == KeyEvent.KEY_RELEASED;
-				kc.state = KeyChange.KEY_UP;
+				for(int event = _keyEventProcessor.poll(); event != KeyEventProcessor.NO_EVENT;
+						event = _keyEventProcessor.poll()) {
+					applyEvent(event);
+				}
 			}
-			_keys.put(ev.getKeyCode(), kc);
+		} catch(IOException e) {
+			System.out.println("input log error: " + e.getMessage());
+			_recorder = null;
+			_replay = null;
+		}
+	}
+	
+	/**
+	 * Applies one buffered event to the key state, recording it if required.
+	 */
+	private void applyEvent(int event) throws IOException {
+		if(event >>> 1 > MAX_KEY_CODE) {
+			return;
+		}
+		if(_recorder != null) {
+			_recorder.event(event);
+		}
+		if(_listener != null) {
+			_listener.inputEvent(event);
+		}
+		
+		int keyCode = event >>> 1;
+		boolean pressed = (event & 1) != 0;
+		
+		if(keyCode >= _keys.length) {
+			_keys = Arrays.copyOf(_keys, Integer.highestOneBit(keyCode) * 2);
 		}
 		
+		// Special case - Java auto-repeats events when key is held down. We
+		// only want to record the first one. If this is a key pressed event and
+		// the key is already down, throw the event away.
+		if(pressed && (_keys[keyCode] & KEY_DOWN) != 0) {
+			// this is a repeat - throw away this event
+			return;
+		}
+		
+		// Record the change, and that it happened in this frame
+		_keys[keyCode] = (_frame << 1) | (pressed ? KEY_DOWN : 0);
+	}
+	
+	/**
+	 * Records all input from now on, until the recorder is removed. The
+	 * caller remains responsible for closing the recorder.
+	 * @param recorder the recorder, or null to stop recording
+	 */
+	public void setRecorder(InputRecorder recorder) {
+		_recorder = recorder;
+	}
+	
+	/**
+	 * Takes input from a recording rather than from the player, until the
+	 * replay is removed. Each call to startFrame applies the events of the
+	 * replay's current frame; see InputReplay.nextFrame().
+	 * @param replay the replay, or null to return to live input
+	 */
+	public void setReplay(InputReplay replay) {
+		_replay = replay;
+	}
+	
+	/**
+	 * Passes every event applied from now on to the listener, encoded as the
+	 * key code shifted left by one, with the lowest bit set for a key press.
+	 * @param listener the listener, or null to stop
+	 */
+	void setEventListener(EventListener listener) {
+		_listener = listener;
+	}
+	
+	EventListener getEventListener() {
+		return _listener;
 	}
 	
 	/**
@@ -73,18 +165,8 @@ public class InputEngine {
 	 * @return
 	 */
 	public boolean getKey(int key) {
-		// System.out.println("Checking whether key is down: " + key);
-		KeyChange kc = _keys.get(key);
-		if(kc == null) {
-			// no events have been received for this key - assume not pressed
-			return false;
-		}
-		
-		if(kc.state == KeyChange.KEY_DOWN) {
-			return true;
-		}
-		
-		return false;
+		// Keys beyond the array have had no events - assume not pressed
+		return key >= 0 && key < _keys.length && (_keys[key] & KEY_DOWN) != 0;
 	}
 
 	/**
@@ -93,21 +175,7 @@ public class InputEngine {
 	 * @return
 	 */
 	public boolean getKeyDown(int key) {
-		// System.out.println("Checking whether key is pressed this frame: " + key);
-		KeyChange kc = _keys.get(key);
-		if(kc == null) {
-			// no events have been received for this key - assume not pressed
-			//System.out.println("getKeyDown: no record for: " + key);
-			return false;
-		}
-		
-		if(kc.state == KeyChange.KEY_DOWN && kc.currentFrame) {
-			//System.out.println("getKeyDown: depressed in last frame: " + key);
-			return true;
-		}
-		
-		//System.out.println("getKeyDown: key depressed, but not in last frame: " + key);
-		return false;
+		return key >= 0 && key < _keys.length && _keys[key] == ((_frame << 1) | KEY_DOWN);
 	}
 	
 	/**
@@ -116,18 +184,7 @@ public class InputEngine {
 	 * @return
 	 */
 	public boolean getKeyUp(int key) {
-		// System.out.println("Checking whether key is released this frame: " + key);
-		KeyChange kc = _keys.get(key);
-		if(kc == null) {
-			// no events have been received for this key - assume not pressed
-			return false;
-		}
-		
-		if(kc.state == KeyChange.KEY_UP && kc.currentFrame) {
-			return true;
-		}
-		
-		return false;
+		return key >= 0 && key < _keys.length && _keys[key] == (_frame << 1);
 	}
 	
 	// Adding mouse input is not required for this assignment, but is an optional
@@ -156,58 +213,107 @@ public class InputEngine {
 		_inputSource.setFocusTraversalKeysEnabled(false);
 		
 		// Add the listener for key events
-		_keyEventProcessor = new KeyEventProcessor();
 		_inputSource.addKeyListener(_keyEventProcessor);
 	}
 	
 	/**
-	 * Private constructor used to support singleton design pattern.
+	 * Simulates the given key being pressed, as if by the player. The change is
+	 * seen at the start of the next frame. This allows input to be provided
+	 * programmatically, e.g. when running headless.
+	 * @param keyCode a KeyEvent.VK_ code
 	 */
-	private InputEngine() {}
+	public void pressKey(int keyCode) {
+		_keyEventProcessor.addEvent(KeyEvent.KEY_PRESSED, keyCode);
+	}
 	
-	class KeyChange {
-		public static final int KEY_UP = 0;
-		public static final int KEY_DOWN = 1;
-		
-		public int state;	// KEY_UP or KEY_DOWN
-		public boolean currentFrame;	// true if this change was in the current frame
+	/**
+	 * Simulates the given key being released, as if by the player. The change
+	 * is seen at the start of the next frame.
+	 * @param keyCode a KeyEvent.VK_ code
+	 */
+	public void releaseKey(int keyCode) {
+		_keyEventProcessor.addEvent(KeyEvent.KEY_RELEASED, keyCode);
 	}
 	
 	/**
-	 * Class to deal with key events. Events are buffered, and returned in one chunk
-	 * when requested by the getEvents method.
+	 * Constructor used by getInstance for the shared Input component, and by
+	 * headless games for their own.
+	 */
+	InputEngine() {}
+	
+	/**
+	 * Class to deal with key events. Events are passed from the thread that
+	 * receives them (normally the Swing event thread) to the game thread through
+	 * a fixed size ring buffer, with no locking or allocation on the game
+	 * thread. Events may come from a window's key listener, or be added
+	 * programmatically; threads adding events take turns, so that the buffer
+	 * only ever has one producer at a time.
 	 *
 	 */
 	class KeyEventProcessor implements KeyListener {
-		private List<KeyEvent> _events = new ArrayList<KeyEvent>();
+		static final int NO_EVENT = -1;
+		
+		// If the game thread falls this far behind, further events are dropped
+		private static final int CAPACITY = 1024;
+		
+		// Each event is the key code, shifted left by one, with the lowest bit set
+		// for a key press
+		private final int[] _events = new int[CAPACITY];
+		
+		// Total events added (written only by the producer) and removed (written
+		// only by the consumer). Each side publishes its count with an ordered
+		// write once the event slot has been written or read.
+		private final AtomicLong _added = new AtomicLong();
+		private final AtomicLong _removed = new AtomicLong();
+		private long _dropped = 0;
 		
-		public synchronized void keyPressed(KeyEvent e) {
-			_events.add(e);
+		public void keyPressed(KeyEvent e) {
+			addEvent(KeyEvent.KEY_PRESSED, e.getKeyCode());
 			//System.out.println("Got key pressed event " + e.getKeyCode());
 		}
 		
-		public synchronized void keyReleased(KeyEvent e) {
-			_events.add(e);
+		public void keyReleased(KeyEvent e) {
+			addEvent(KeyEvent.KEY_RELEASED, e.getKeyCode());
 			//System.out.println("Got key released event");
 		}
 		
-		public synchronized void keyTyped(KeyEvent e) {
+		public void keyTyped(KeyEvent e) {
 			//System.out.println("Got key typed event");
 		}
 		
+		public synchronized void addEvent(int id, int keyCode) {
+			if(keyCode < 0 || keyCode > MAX_KEY_CODE) {
+				return;
+			}
+			long added = _added.get();
+			if(added - _removed.get() == CAPACITY) {
+				_dropped++;
+				return;
+			}
+			_events[(int)(added % CAPACITY)] = (keyCode << 1) | (id == KeyEvent.KEY_PRESSED ? 1 : 0);
+			_added.lazySet(added + 1);
+		}
+		
 		/**
-		 * Returns all new keyboard events since the last time this method
-		 * was called.
-		 * @return list of new keyboard events
+		 * Removes the oldest buffered event. Only called by the game thread.
+		 * @return the event, or NO_EVENT if there are none
 		 */
-		public synchronized List<KeyEvent> getEvents(){
-			List<KeyEvent> theEvents = _events;
-			_events = new ArrayList<KeyEvent>();
-			
-			if(theEvents.size() > 0) {
-				//System.out.println("** Returning events: " + theEvents.size());
+		public int poll() {
+			long removed = _removed.get();
+			if(removed == _added.get()) {
+				return NO_EVENT;
 			}
-			return theEvents;
+			int event = _events[(int)(removed % CAPACITY)];
+			_removed.lazySet(removed + 1);
+			return event;
+		}
+		
+		/**
+		 * Returns the number of events dropped because the buffer was full.
+		 * @return
+		 */
+		public synchronized long getDropped() {
+			return _dropped;
 		}
 	}
 	
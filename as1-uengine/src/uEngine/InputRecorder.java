@@ -0,0 +1,85 @@
+package uEngine;
+
+import java.io.*;
+
+/**
+ * Records the input seen by an input engine, frame by frame, so that a session
+ * can be replayed later with InputReplay. Attach it with
+ * InputEngine.setRecorder().
+ *
+ * The log is a compact binary stream. After a header, each frame is its
+ * elapsed time (a float), then the key events applied in that frame, each
+ * written as a variable length integer, and finally a zero. Most frames have
+ * no events, and take five bytes.
+ */
+public class InputRecorder implements Closeable {
+	static final int MAGIC = 0x75454952; // "uEIR"
+	static final int VERSION = 1;
+
+	private final DataOutputStream _out;
+	private long _frames = 0;
+	private long _events = 0;
+	private boolean _inFrame = false;
+
+	public InputRecorder(String fileName) throws IOException {
+		this(new FileOutputStream(fileName));
+	}
+
+	public InputRecorder(OutputStream out) throws IOException {
+		_out = new DataOutputStream(new BufferedOutputStream(out));
+		_out.writeInt(MAGIC);
+		_out.writeShort(VERSION);
+	}
+
+	/**
+	 * Starts recording a frame.
+	 * @param elapsedTime the frame's elapsed time, in seconds
+	 */
+	synchronized void beginFrame(float elapsedTime) throws IOException {
+		endFrame();
+		_out.writeFloat(elapsedTime);
+		_inFrame = true;
+		_frames++;
+	}
+
+	/**
+	 * Records a key event in the current frame.
+	 * @param event the key code, shifted left by one, with the lowest bit set
+	 * for a key press
+	 */
+	synchronized void event(int event) throws IOException {
+		writeVarInt(event + 1);
+		_events++;
+	}
+
+	private void endFrame() throws IOException {
+		if(_inFrame) {
+			_out.write(0);
+			_inFrame = false;
+		}
+	}
+
+	private void writeVarInt(int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			_out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		_out.write(value);
+	}
+
+	public synchronized long getFrameCount() {
+		return _frames;
+	}
+
+	public synchronized long getEventCount() {
+		return _events;
+	}
+
+	/**
+	 * Finishes the log, and closes the stream it is written to.
+	 */
+	public synchronized void close() throws IOException {
+		endFrame();
+		_out.close();
+	}
+}
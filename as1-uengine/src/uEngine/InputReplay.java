@@ -0,0 +1,105 @@
+package uEngine;
+
+import java.io.*;
+
+/**
+ * Plays back input recorded by InputRecorder. Attach it to an input engine
+ * with InputEngine.setReplay(); each frame, startFrame() then applies the
+ * recorded events instead of live input. Game.replay() runs a game through
+ * a whole log as fast as possible, with each frame's recorded elapsed time.
+ */
+public class InputReplay implements Closeable {
+	static final int NO_EVENT = -1;
+
+	private final DataInputStream _in;
+	private float _elapsedTime = 0;
+	private boolean _inFrame = false;
+	private boolean _finished = false;
+	private long _frames = 0;
+
+	public InputReplay(String fileName) throws IOException {
+		this(new FileInputStream(fileName));
+	}
+
+	public InputReplay(InputStream in) throws IOException {
+		_in = new DataInputStream(new BufferedInputStream(in));
+		if(_in.readInt() != InputRecorder.MAGIC) {
+			throw new IOException("not an input log");
+		}
+		int version = _in.readUnsignedShort();
+		if(version != InputRecorder.VERSION) {
+			throw new IOException("unsupported input log version " + version);
+		}
+	}
+
+	/**
+	 * Moves to the next recorded frame, skipping any events of the current
+	 * frame that have not been read.
+	 * @return false if there are no more frames
+	 */
+	public boolean nextFrame() throws IOException {
+		while(_inFrame) {
+			nextEvent();
+		}
+		if(_finished) {
+			return false;
+		}
+		try {
+			_elapsedTime = _in.readFloat();
+		} catch(EOFException e) {
+			_finished = true;
+			return false;
+		}
+		_inFrame = true;
+		_frames++;
+		return true;
+	}
+
+	/**
+	 * Returns the elapsed time recorded for the current frame, in seconds.
+	 * @return
+	 */
+	public float getElapsedTime() {
+		return _elapsedTime;
+	}
+
+	public long getFrameCount() {
+		return _frames;
+	}
+
+	/**
+	 * Returns the next event of the current frame.
+	 * @return the event, as passed to InputRecorder.event(), or NO_EVENT at the
+	 * end of the frame
+	 */
+	int nextEvent() throws IOException {
+		if(!_inFrame) {
+			return NO_EVENT;
+		}
+		// An int takes at most 5 bytes, so a longer one means the log is corrupt
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if(shift >= 35) {
+				throw new IOException("input log is corrupt");
+			}
+			b = _in.read();
+			if(b < 0) {
+				throw new EOFException("input log ends mid frame");
+			}
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+
+		if(value == 0) {
+			_inFrame = false;
+			return NO_EVENT;
+		}
+		return value - 1;
+	}
+
+	public void close() throws IOException {
+		_in.close();
+	}
+}
@@ -0,0 +1,39 @@
+package uEngine;
+
+import javax.sound.sampled.*;
+
+/**
+ * Plays mixed audio through the default sound output, using a single
+ * SourceDataLine.
+ */
+public class LineAudioSink implements AudioSink {
+	// The line buffers this many mixer buffers ahead of playback. More makes
+	// underruns less likely, but sound effects start later.
+	private static final int BUFFERS_AHEAD = 3;
+
+	private SourceDataLine _line;
+	private boolean _started = false;
+
+	public void open(AudioFormat format, int bufferSize) throws Exception {
+		_line = AudioSystem.getSourceDataLine(format);
+		_line.open(format, bufferSize * BUFFERS_AHEAD);
+	}
+
+	public boolean write(byte[] buffer, int length) {
+		// If everything written so far has been played, the line has run dry
+		boolean underrun = _started && _line.available() >= _line.getBufferSize();
+		_line.write(buffer, 0, length);
+		if(!_started) {
+			_line.start();
+			_started = true;
+		}
+		return underrun;
+	}
+
+	public void close() {
+		if(_line != null) {
+			_line.drain();
+			_line.close();
+		}
+	}
+}
@@ -5,13 +5,80 @@ import java.awt.*;
 public class Material extends Component {
 	public Color color;
 	public boolean isVisible;
-	
+
+	// If set, drawn instead of a rectangle of the colour
+	private Sprite _sprite = null;
+
+	// True while the material's game object is in a game, and so holds a
+	// reference to its sprite
+	private boolean _retained = false;
+
 	public Material(Color color) {
 		this.color = color;
 		isVisible = true;
 	}
-	
+
 	public Material() {
 		this(Color.RED);
 	}
+
+	/**
+	 * Draws the object with an image, loaded through the shared sprite cache,
+	 * rather than a rectangle of its colour.
+	 * @param fileName the image file, or null to go back to the colour
+	 */
+	public void setSprite(String fileName) {
+		setSprite(fileName == null ? null : SpriteCache.getShared().get(fileName));
+	}
+
+	/**
+	 * Draws the object with the given sprite, stretched to the object's size,
+	 * rather than a rectangle of its colour.
+	 * @param sprite the sprite, or null to go back to the colour
+	 */
+	public void setSprite(Sprite sprite) {
+		if(sprite == _sprite) {
+			return;
+		}
+		if(_retained) {
+			if(sprite != null) {
+				sprite.retain();
+			}
+			if(_sprite != null) {
+				_sprite.release();
+			}
+		}
+		_sprite = sprite;
+	}
+
+	public Sprite getSprite() {
+		return _sprite;
+	}
+
+	/**
+	 * Takes a reference to the sprite, when the game object joins a game.
+	 */
+	void retainSprite() {
+		if(!_retained) {
+			_retained = true;
+			if(_sprite != null) {
+				_sprite.retain();
+			}
+		}
+	}
+
+	/**
+	 * Gives up the reference to the sprite, when the game object leaves a game.
+	 * @return true if a reference was held
+	 */
+	boolean releaseSprite() {
+		if(!_retained) {
+			return false;
+		}
+		_retained = false;
+		if(_sprite != null) {
+			_sprite.release();
+		}
+		return true;
+	}
 }
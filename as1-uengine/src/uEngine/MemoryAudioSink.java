@@ -0,0 +1,56 @@
+package uEngine;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Audio sink that keeps mixed audio in memory instead of playing it, so the
+ * mixer can be tested and benchmarked without a sound device. Writes never
+ * block, so the mixer runs as fast as it can. Only the most recent audio, up
+ * to the sink's capacity, is kept; with a capacity of zero, audio is
+ * discarded.
+ */
+public class MemoryAudioSink implements AudioSink {
+	private final byte[] _data;
+	private long _bytesWritten = 0;
+
+	public MemoryAudioSink(int capacity) {
+		_data = new byte[capacity];
+	}
+
+	public void open(AudioFormat format, int bufferSize) {
+		_bytesWritten = 0;
+	}
+
+	public synchronized boolean write(byte[] buffer, int length) {
+		if(_data.length > 0) {
+			for(int i = 0; i < length; i++) {
+				_data[(int)((_bytesWritten + i) % _data.length)] = buffer[i];
+			}
+		}
+		_bytesWritten += length;
+		return false;
+	}
+
+	public void close() {}
+
+	/**
+	 * Returns the total number of bytes written since the sink was opened.
+	 * @return
+	 */
+	public synchronized long getBytesWritten() {
+		return _bytesWritten;
+	}
+
+	/**
+	 * Returns the most recently written audio, oldest first.
+	 * @return at most capacity bytes
+	 */
+	public synchronized byte[] getData() {
+		int length = (int)Math.min(_bytesWritten, _data.length);
+		byte[] result = new byte[length];
+		for(int i = 0; i < length; i++) {
+			result[i] = _data[(int)((_bytesWritten - length + i) % _data.length)];
+		}
+		return result;
+	}
+}
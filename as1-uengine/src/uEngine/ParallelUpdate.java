@@ -0,0 +1,14 @@
+package uEngine;
+
+/**
+ * Marks a game object whose update method is safe to run at the same time as
+ * other objects' updates. Such an update must only read and write the
+ * object's own state (and read input), and must not play sounds or touch
+ * other game objects. It may spawn and destroy objects through the game.
+ *
+ * When the game has parallel update enabled, objects marked this way are
+ * updated concurrently, before the remaining objects are updated one at a
+ * time in order.
+ */
+public interface ParallelUpdate {
+}
@@ -1,96 +1,531 @@
 package uEngine;
 
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 public class PhysicsEngine {
 	
-	Set<CollisionPair> _currentCollisions = new CopyOnWriteArraySet<CollisionPair>();
+	// Ordered pairs of game objects currently colliding, keyed by object id
+	private ContactSet _currentCollisions = new ContactSet();
+	
+	private Broadphase _broadphase = new BruteForceBroadphase();
+	private CollisionLayers _layers = new CollisionLayers();
+	
+	// Bodies are split each step into those that may be moving, which go
+	// through the broadphase, and those at rest (static or asleep), which sit in
+	// a grid that is only rebuilt when the set of resting bodies changes. Pairs
+	// of resting bodies are never tested.
+	public static final int DEFAULT_SLEEP_TICKS = 60;
+	private int _sleepTicks = DEFAULT_SLEEP_TICKS;
+	private List<GameObject> _activeBodies = new ArrayList<GameObject>();
+	private List<GameObject> _restingBodies = new ArrayList<GameObject>();
+	private RestingGrid _restingGrid = new RestingGrid(SpatialHashBroadphase.DEFAULT_CELL_SIZE);
+	private int _restingGridRebuilds = 0;
+	
+	// The scene the bodies were last sorted from, or null if it has changed
+	// since, in which case the sorted bodies cannot be used for culling
+	private List<GameObject> _classifiedScene = null;
+	private Narrowphase _narrowphase = new Narrowphase();
+	private int _candidatePairCount = 0;
+	
+	// Result of the most recent sweep or penetration test: the time of impact,
+	// and the normal of the surface hit, pointing towards the first object
+	private float _impactTime;
+	private float _normalX;
+	private float _normalY;
+	
+	// Collisions found by sweeping during this step. They are applied once all
+	// pairs have been tested, in order of time of impact, so that each
+	// continuous object only hits the first thing in its path.
+	private static final int ENTERS_12 = 1;
+	private static final int ENTERS_21 = 2;
+	private GameObject[] _impactFirst = new GameObject[16];
+	private GameObject[] _impactSecond = new GameObject[16];
+	private float[] _impactTimes = new float[16];
+	private float[] _impactNormalX = new float[16];
+	private float[] _impactNormalY = new float[16];
+	private int[] _impactFlags = new int[16];
+	private int _impactCount = 0;
+	private int _step = 0;
+	
+	// Passed to onCollisionEnter, and reused for every collision
+	private Contact _contact = new Contact();
+	
+	/**
+	 * Selects the algorithm used to find pairs of game objects that may be
+	 * colliding. Defaults to a brute force comparison of all pairs.
+	 * @param broadphase
+	 */
+	public void setBroadphase(Broadphase broadphase) {
+		_broadphase = broadphase;
+	}
+	
+	public Broadphase getBroadphase() {
+		return _broadphase;
+	}
+	
+	/**
+	 * Provides access to the layer interaction matrix, which decides which
+	 * game objects can collide, based on their layers.
+	 * @return the collision layers
+	 */
+	public CollisionLayers getLayers() {
+		return _layers;
+	}
+	
+	/**
+	 * Sets how many steps a dynamic body must stay still before it goes to
+	 * sleep. Zero stops bodies sleeping.
+	 * @param ticks
+	 */
+	public void setSleepTicks(int ticks) {
+		if(ticks < 0) {
+			throw new IllegalArgumentException("sleep ticks must not be negative");
+		}
+		_sleepTicks = ticks;
+	}
+	
+	/**
+	 * Returns the number of bodies tested for collisions in the most recent
+	 * step, i.e. those not static or asleep.
+	 * @return
+	 */
+	public int getActiveBodyCount() {
+		return _activeBodies.size();
+	}
+	
+	/**
+	 * Returns the number of static and sleeping bodies in the most recent step.
+	 * @return
+	 */
+	public int getRestingBodyCount() {
+		return _restingBodies.size();
+	}
+	
+	/**
+	 * Returns the number of times the grid of resting bodies has been rebuilt.
+	 * @return
+	 */
+	public int getRestingGridRebuilds() {
+		return _restingGridRebuilds;
+	}
+	
+	/**
+	 * Returns the number of ordered pairs of game objects currently colliding.
+	 * @return
+	 */
+	public int getContactCount() {
+		return _currentCollisions.size();
+	}
+	
+	/**
+	 * Returns the number of candidate pairs the broadphase found in the most
+	 * recent collision check.
+	 * @return
+	 */
+	public int getCandidatePairCount() {
+		return _candidatePairCount;
+	}
 	
 	/**
 	 * returns true if the given point is within the bounds of the given game object.
-	 * @param p
+	 * @param x
+	 * @param y
 	 * @param g
 	 * @return
 	 */
-	private boolean within(Vector2 p, GameObject g) {
-		return p.x >= g.transform.position.x
-				&& p.x < g.transform.position.x + g.transform.size.x
-				&& p.y >= g.transform.position.y
-				&& p.y < g.transform.position.y + g.transform.size.y;
+	private boolean within(float x, float y, GameObject g) {
+		return x >= g.transform.position.x
+				&& x < g.transform.position.x + g.transform.size.x
+				&& y >= g.transform.position.y
+				&& y < g.transform.position.y + g.transform.size.y;
 	}
 	
 	private boolean colliding(GameObject g1, GameObject g2) {
-		Vector2 ll = g1.transform.position;
-		Vector2 lr = new Vector2(g1.transform.position.x + g1.transform.size.x-1,
-									g1.transform.position.y);
-		Vector2 ul = new Vector2(g1.transform.position.x,
-									g1.transform.position.y+g1.transform.size.y-1);
-		Vector2 ur = new Vector2(g1.transform.position.x + g1.transform.size.x-1,
-									g1.transform.position.y+g1.transform.size.y-1);
+		float left = g1.transform.position.x;
+		float right = g1.transform.position.x + g1.transform.size.x-1;
+		float bottom = g1.transform.position.y;
+		float top = g1.transform.position.y + g1.transform.size.y-1;
 		
-		return within(ll,g2) || within(lr,g2) || within(ul,g2) || within(ur,g2);
+		return within(left,bottom,g2) || within(right,bottom,g2)
+				|| within(left,top,g2) || within(right,top,g2);
 	}
 	
 	private void checkAndHandleCollisionEntry(List<GameObject> gameObjects) {
-		// Compare each pair of game objects to see if they intersect. If they do,
-		// call the onCollisionEnter method on both game objects. Note we call
-		// onCollisionEnter only the first time the game objects intersect, and
-		// will not call it again unless they have ceased to intersect before the
-		// next intersection.
+		// Compare each candidate pair of game objects to see if they intersect, and
+		// record those that do in the contact set. The broadphase reports each
+		// candidate pair once. Our intersection test is not symmetric, so we test
+		// the pair both ways round.
+		_broadphase.findPairs(_activeBodies, _layers, _narrowphase);
+		for(int i = 0; i < _activeBodies.size(); i++) {
+			queryRestingBodies(_activeBodies.get(i));
+		}
+		applyImpacts();
+		
+		// Call onCollisionEnter on the first game object of each pair that was not
+		// colliding in the previous frame. Note we call onCollisionEnter only the
+		// first time the game objects intersect, and will not call it again unless
+		// they have ceased to intersect before the next intersection.
+		for(int i = 0; i < _currentCollisions.enteredCount(); i++) {
+			_currentCollisions.enteredContact(i, _contact);
+			_currentCollisions.enteredFirst(i).onCollisionEnter(_currentCollisions.enteredSecond(i), _contact);
+		}
+	}
+	
+	private void checkAndHandleCollisionEntry(GameObject g1, GameObject g2) {
+		if(colliding(g1,g2) && _currentCollisions.touch(g1, g2)) {
+			// Found at the end of the step, so push out along the shallowest axis
+			penetrationNormal(g1, g2);
+			_currentCollisions.describeEntered(1, _normalX, _normalY, false);
+		}
+	}
+	
+	/**
+	 * Tests a pair of objects, at least one of which has ContinuousCollision,
+	 * both where they are now and along the paths they moved during the step.
+	 */
+	private void checkAndHandleContinuousCollisionEntry(GameObject g1, GameObject g2) {
+		boolean collidingNow12 = colliding(g1,g2);
+		boolean collidingNow21 = colliding(g2,g1);
+		boolean hit = sweep(g1, g2);
 		
-		// Our algorithm is very inefficient, doing a pairwise comparison over all
-		// game objects. We trigger the collision on the first of the game objects.
-		// We compare all pairs twice, so we trigger the collision on both objects.
-		for(GameObject g1 : gameObjects) {
-			for(GameObject g2 : gameObjects) {
-				CollisionPair cp = new CollisionPair(g1,g2);
-				if(g1!=g2 && colliding(g1,g2) && !_currentCollisions.contains(cp)) {
-					g1.onCollisionEnter(g2);
-					_currentCollisions.add(cp);
-				}
+		if(hit) {
+			// The objects met during the step. If they no longer overlap, they
+			// passed through each other, and both are told of the collision.
+			boolean passedThrough = !collidingNow12 && !collidingNow21;
+			addImpact(g1, g2, passedThrough || collidingNow12, passedThrough || collidingNow21);
+		} else if(collidingNow12 || collidingNow21) {
+			// Already touching at the start of the step
+			penetrationNormal(g1, g2);
+			if(collidingNow12) {
+				enter(g1, g2, 0, _normalX, _normalY, false);
+			}
+			if(collidingNow21) {
+				enter(g2, g1, 0, -_normalX, -_normalY, false);
 			}
 		}
 	}
 	
+	private void addImpact(GameObject g1, GameObject g2, boolean enters12, boolean enters21) {
+		if(_impactCount == _impactFirst.length) {
+			int capacity = _impactCount * 2;
+			_impactFirst = Arrays.copyOf(_impactFirst, capacity);
+			_impactSecond = Arrays.copyOf(_impactSecond, capacity);
+			_impactTimes = Arrays.copyOf(_impactTimes, capacity);
+			_impactNormalX = Arrays.copyOf(_impactNormalX, capacity);
+			_impactNormalY = Arrays.copyOf(_impactNormalY, capacity);
+			_impactFlags = Arrays.copyOf(_impactFlags, capacity);
+		}
+		
+		// Insert in order of time of impact. There are normally very few.
+		int i = _impactCount++;
+		while(i > 0 && _impactTimes[i - 1] > _impactTime) {
+			_impactFirst[i] = _impactFirst[i - 1];
+			_impactSecond[i] = _impactSecond[i - 1];
+			_impactTimes[i] = _impactTimes[i - 1];
+			_impactNormalX[i] = _impactNormalX[i - 1];
+			_impactNormalY[i] = _impactNormalY[i - 1];
+			_impactFlags[i] = _impactFlags[i - 1];
+			i--;
+		}
+		_impactFirst[i] = g1;
+		_impactSecond[i] = g2;
+		_impactTimes[i] = _impactTime;
+		_impactNormalX[i] = _normalX;
+		_impactNormalY[i] = _normalY;
+		_impactFlags[i] = (enters12 ? ENTERS_12 : 0) | (enters21 ? ENTERS_21 : 0);
+	}
+	
+	/**
+	 * Records the collisions found by sweeping, earliest first. Once a
+	 * continuous object has hit something, it is assumed to stop there, so any
+	 * later hits along its path in this step are ignored.
+	 */
+	private void applyImpacts() {
+		_step++;
+		for(int i = 0; i < _impactCount; i++) {
+			GameObject g1 = _impactFirst[i];
+			GameObject g2 = _impactSecond[i];
+			if(!stopsAt(g1) || !stopsAt(g2)) {
+				continue;
+			}
+			if(g1 instanceof ContinuousCollision) {
+				g1.sweptStep = _step;
+			}
+			if(g2 instanceof ContinuousCollision) {
+				g2.sweptStep = _step;
+			}
+			
+			if((_impactFlags[i] & ENTERS_12) != 0) {
+				enter(g1, g2, _impactTimes[i], _impactNormalX[i], _impactNormalY[i], true);
+			}
+			if((_impactFlags[i] & ENTERS_21) != 0) {
+				enter(g2, g1, _impactTimes[i], -_impactNormalX[i], -_impactNormalY[i], true);
+			}
+		}
+		for(int i = 0; i < _impactCount; i++) {
+			_impactFirst[i] = null;
+			_impactSecond[i] = null;
+		}
+		_impactCount = 0;
+	}
+	
+	/**
+	 * Returns false if the object is continuous and has already hit something
+	 * earlier in this step.
+	 */
+	private boolean stopsAt(GameObject g) {
+		return !(g instanceof ContinuousCollision) || g.sweptStep != _step;
+	}
+	
+	private void enter(GameObject g1, GameObject g2, float time, float normalX, float normalY, boolean swept) {
+		if(_currentCollisions.touch(g1, g2)) {
+			_currentCollisions.describeEntered(time, normalX, normalY, swept);
+		}
+	}
+	
+	/**
+	 * Sweeps the boxes of two objects from their positions at the start of the
+	 * step to their positions now, and finds when they first touch. Each box is
+	 * assumed to move in a straight line, so only their relative motion matters.
+	 * @return true if the boxes were apart at the start of the step and touch
+	 * during it, in which case the time of impact and normal are recorded
+	 */
+	private boolean sweep(GameObject g1, GameObject g2) {
+		Transform t1 = g1.transform;
+		Transform t2 = g2.transform;
+		float vx = (t1.position.x - t1.previousPosition.x) - (t2.position.x - t2.previousPosition.x);
+		float vy = (t1.position.y - t1.previousPosition.y) - (t2.position.y - t2.previousPosition.y);
+		
+		// For each axis, the times at which the boxes start and stop overlapping
+		// on that axis. They touch when they overlap on both.
+		float x1 = t1.previousPosition.x, x2 = t2.previousPosition.x;
+		float y1 = t1.previousPosition.y, y2 = t2.previousPosition.y;
+		float entryX, exitX, entryY, exitY;
+		if(vx > 0) {
+			entryX = (x2 - (x1 + t1.size.x)) / vx;
+			exitX = ((x2 + t2.size.x) - x1) / vx;
+		} else if(vx < 0) {
+			entryX = ((x2 + t2.size.x) - x1) / vx;
+			exitX = (x2 - (x1 + t1.size.x)) / vx;
+		} else if(x1 < x2 + t2.size.x && x2 < x1 + t1.size.x) {
+			entryX = Float.NEGATIVE_INFINITY;
+			exitX = Float.POSITIVE_INFINITY;
+		} else {
+			return false;
+		}
+		if(vy > 0) {
+			entryY = (y2 - (y1 + t1.size.y)) / vy;
+			exitY = ((y2 + t2.size.y) - y1) / vy;
+		} else if(vy < 0) {
+			entryY = ((y2 + t2.size.y) - y1) / vy;
+			exitY = (y2 - (y1 + t1.size.y)) / vy;
+		} else if(y1 < y2 + t2.size.y && y2 < y1 + t1.size.y) {
+			entryY = Float.NEGATIVE_INFINITY;
+			exitY = Float.POSITIVE_INFINITY;
+		} else {
+			return false;
+		}
+		
+		float entry = Math.max(entryX, entryY);
+		float exit = Math.min(exitX, exitY);
+		if(entry >= exit || entry < 0 || entry > 1) {
+			return false;
+		}
+		
+		// The normal is along the axis on which the boxes met last
+		_impactTime = entry;
+		if(entryX > entryY) {
+			_normalX = vx > 0 ? -1 : 1;
+			_normalY = 0;
+		} else {
+			_normalX = 0;
+			_normalY = vy > 0 ? -1 : 1;
+		}
+		return true;
+	}
+	
+	/**
+	 * Records the normal for two overlapping objects: along the axis on which
+	 * they overlap least, pointing towards g1.
+	 */
+	private void penetrationNormal(GameObject g1, GameObject g2) {
+		Transform t1 = g1.transform;
+		Transform t2 = g2.transform;
+		float overlapX = Math.min(t1.position.x + t1.size.x, t2.position.x + t2.size.x)
+				- Math.max(t1.position.x, t2.position.x);
+		float overlapY = Math.min(t1.position.y + t1.size.y, t2.position.y + t2.size.y)
+				- Math.max(t1.position.y, t2.position.y);
+		float dx = (t1.position.x + t1.size.x / 2) - (t2.position.x + t2.size.x / 2);
+		float dy = (t1.position.y + t1.size.y / 2) - (t2.position.y + t2.size.y / 2);
+		if(overlapX < overlapY) {
+			_normalX = dx < 0 ? -1 : 1;
+			_normalY = 0;
+		} else {
+			_normalX = 0;
+			_normalY = dy < 0 ? -1 : 1;
+		}
+	}
+	
 	private void checkAndHandleCollisionExit() {
-		// Check each current pair of collisions, and if they are no longer colliding,
-		// trigger their collision exit event and remove the collision from the
-		// current list.
-		List<CollisionPair> noLongerColliding = new ArrayList<CollisionPair>();
-		for(CollisionPair cp : _currentCollisions) {
-			if(!colliding(cp.g1, cp.g2)) {
-				noLongerColliding.add(cp);
-				cp.g1.onCollisionExit(cp.g2);
+		// Any pair that was colliding in the previous frame but was not found to be
+		// colliding in this frame has ceased to collide. Trigger its collision exit
+		// event; the contact set has already removed it.
+		_currentCollisions.endFrame();
+		for(int i = 0; i < _currentCollisions.exitedCount(); i++) {
+			_currentCollisions.exitedFirst(i).onCollisionExit(_currentCollisions.exitedSecond(i));
+		}
+	}
+	
+	/**
+	 * Sorts the bodies into active and resting, putting dynamic bodies to sleep
+	 * or waking them as needed, and rebuilds the grid of resting bodies if any
+	 * have changed.
+	 */
+	private void classifyBodies(List<GameObject> gameObjects) {
+		int previousRestingCount = _restingBodies.size();
+		boolean changed = false;
+		_activeBodies.clear();
+		_restingBodies.clear();
+		
+		for(int i = 0; i < gameObjects.size(); i++) {
+			GameObject g = gameObjects.get(i);
+			Transform t = g.transform;
+			boolean moved = t.position.x != g.restX || t.position.y != g.restY
+					|| t.size.x != g.restWidth || t.size.y != g.restHeight;
+			if(moved) {
+				g.restX = t.position.x;
+				g.restY = t.position.y;
+				g.restWidth = t.size.x;
+				g.restHeight = t.size.y;
+				g.stillTicks = 0;
+			} else if(g.stillTicks < Integer.MAX_VALUE) {
+				g.stillTicks++;
+			}
+			
+			boolean resting;
+			if(g.bodyType == BodyType.STATIC) {
+				resting = true;
+			} else if(g.bodyType == BodyType.DYNAMIC) {
+				resting = _sleepTicks > 0 && g.stillTicks >= _sleepTicks;
+			} else {
+				resting = false;
+			}
+			
+			// The grid holds the bounds resting bodies had when it was built, so a
+			// static body that moves means a rebuild
+			if(resting != g.resting || (resting && moved)) {
+				changed = true;
+			}
+			g.resting = resting;
+			if(resting) {
+				_restingBodies.add(g);
+			} else {
+				_activeBodies.add(g);
 			}
 		}
-		for(CollisionPair cp : noLongerColliding) {
-			_currentCollisions.remove(cp);
+		
+		// Resting bodies that have left the game also mean a rebuild
+		if(changed || _restingBodies.size() != previousRestingCount) {
+			_restingGrid.rebuild(_restingBodies);
+			_restingGridRebuilds++;
+		}
+		_classifiedScene = gameObjects;
+	}
+	
+	/**
+	 * Notes that game objects have been added to or removed from the scene
+	 * since the last step.
+	 */
+	void invalidateBodies() {
+		_classifiedScene = null;
+	}
+	
+	/**
+	 * Forgets the sleep tracking of an object leaving the game. If it is spawned
+	 * again, even at the same place, it is sorted afresh, and the resting grid
+	 * is rebuilt.
+	 */
+	void removeBody(GameObject g) {
+		g.resting = false;
+		g.stillTicks = 0;
+		g.restX = Float.NaN;
+		g.restY = Float.NaN;
+		g.restWidth = Float.NaN;
+		g.restHeight = Float.NaN;
+	}
+	
+	/**
+	 * Returns true if the active bodies and the resting grid hold exactly the
+	 * objects of the given scene, as sorted by the last step.
+	 */
+	boolean hasBodiesOf(List<GameObject> gameObjects) {
+		return _classifiedScene == gameObjects;
+	}
+	
+	List<GameObject> activeBodies() {
+		return _activeBodies;
+	}
+	
+	RestingGrid restingGrid() {
+		return _restingGrid;
+	}
+	
+	private void queryRestingBodies(GameObject g) {
+		Transform t = g.transform;
+		float minX = t.position.x;
+		float minY = t.position.y;
+		float maxX = t.position.x + t.size.x;
+		float maxY = t.position.y + t.size.y;
+		if(g instanceof ContinuousCollision) {
+			// Cover the whole path swept during the step
+			minX = Math.min(minX, t.previousPosition.x);
+			minY = Math.min(minY, t.previousPosition.y);
+			maxX = Math.max(maxX, t.previousPosition.x + t.size.x);
+			maxY = Math.max(maxY, t.previousPosition.y + t.size.y);
 		}
+		_restingGrid.query(g, minX, minY, maxX, maxY, _layers, _narrowphase);
 	}
 	
 	public void checkCollisions(List<GameObject> gameObjects) {
+		classifyBodies(gameObjects);
+		_currentCollisions.beginFrame();
+		_candidatePairCount = 0;
 		checkAndHandleCollisionEntry(gameObjects);
 		checkAndHandleCollisionExit();
 	}
 	
-	class CollisionPair {
-		public GameObject g1;
-		public GameObject g2;
-		
-		public CollisionPair(GameObject g1, GameObject g2) {
-			this.g1 = g1;
-			this.g2 = g2;
+	/**
+	 * Forgets the contacts of game objects that have been removed from the game.
+	 * The objects they were touching that remain in the game get
+	 * onCollisionExit; the removed objects do not.
+	 */
+	void removeDetachedContacts() {
+		_currentCollisions.removeDetached();
+		for(int i = 0; i < _currentCollisions.exitedCount(); i++) {
+			GameObject g = _currentCollisions.exitedFirst(i);
+			if(g.isAlive()) {
+				g.onCollisionExit(_currentCollisions.exitedSecond(i));
+			}
 		}
-		
-		@Override
-		public boolean equals(Object other) {
-		    //System.out.println("checking equals");
-
-			if (other == null) return false;
-		    if (!(other instanceof CollisionPair))return false;
-		    CollisionPair cp = (CollisionPair)other;
-			return g1 == cp.g1 && g2 == cp.g2;
+	}
+	
+	/**
+	 * Runs the exact collision test on the candidate pairs found by the broadphase.
+	 */
+	class Narrowphase implements Broadphase.PairHandler {
+		public void candidatePair(GameObject g1, GameObject g2) {
+			// Broadphases should already have rejected pairs that do not interact,
+			// but make sure they never reach the callbacks
+			if(!_layers.interacts(g1, g2)) {
+				return;
+			}
+			_candidatePairCount++;
+			if(g1 instanceof ContinuousCollision || g2 instanceof ContinuousCollision) {
+				checkAndHandleContinuousCollisionEntry(g1, g2);
+			} else {
+				checkAndHandleCollisionEntry(g1, g2);
+				checkAndHandleCollisionEntry(g2, g1);
+			}
 		}
 	}
 }
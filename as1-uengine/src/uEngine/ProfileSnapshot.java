@@ -0,0 +1,118 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Measurements taken by a FrameProfiler, copied at one point in time. Times
+ * are in nanoseconds.
+ */
+public class ProfileSnapshot {
+	private final Histogram[] _phases;
+	private final Histogram _candidatePairs;
+	private final Histogram _contacts;
+	private final Histogram _allocatedBytes;
+	private final Histogram _drawnObjects;
+	private final Histogram _culledObjects;
+	private final List<FrameProfiler.ObjectCost> _topObjects;
+
+	ProfileSnapshot(Histogram[] phases, Histogram candidatePairs, Histogram contacts,
+			Histogram allocatedBytes, Histogram drawnObjects, Histogram culledObjects,
+			List<FrameProfiler.ObjectCost> topObjects) {
+		_phases = phases;
+		_candidatePairs = candidatePairs;
+		_contacts = contacts;
+		_allocatedBytes = allocatedBytes;
+		_drawnObjects = drawnObjects;
+		_culledObjects = culledObjects;
+		_topObjects = topObjects;
+	}
+
+	/**
+	 * Returns the times taken by a phase of the frame.
+	 * @param phase one of the FrameProfiler phase constants, e.g. FrameProfiler.PHYSICS
+	 * @return
+	 */
+	public Histogram getPhase(int phase) {
+		return _phases[phase];
+	}
+
+	/**
+	 * Returns the number of pairs passed from the broadphase to the narrowphase
+	 * in each tick.
+	 * @return
+	 */
+	public Histogram getCandidatePairs() {
+		return _candidatePairs;
+	}
+
+	/**
+	 * Returns the number of colliding pairs in each tick.
+	 * @return
+	 */
+	public Histogram getContacts() {
+		return _contacts;
+	}
+
+	/**
+	 * Returns the bytes allocated by the game thread in each tick. Empty if the
+	 * JVM cannot measure allocation.
+	 * @return
+	 */
+	public Histogram getAllocatedBytes() {
+		return _allocatedBytes;
+	}
+
+	/**
+	 * Returns the number of objects drawn in each frame. Empty when headless.
+	 * @return
+	 */
+	public Histogram getDrawnObjects() {
+		return _drawnObjects;
+	}
+
+	/**
+	 * Returns the number of objects in each frame that were not drawn because
+	 * they were outside the camera's view or hidden. Empty when headless.
+	 * @return
+	 */
+	public Histogram getCulledObjects() {
+		return _culledObjects;
+	}
+
+	/**
+	 * Returns the game objects with the highest total update cost over the most
+	 * recent measurement period, most expensive first. Empty unless object
+	 * profiling is enabled.
+	 * @return
+	 */
+	public List<FrameProfiler.ObjectCost> getTopObjects() {
+		return _topObjects;
+	}
+
+	/**
+	 * Returns a short, multi-line summary, as shown by the overlay.
+	 * @return
+	 */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < _phases.length; i++) {
+			Histogram h = _phases[i];
+			sb.append(String.format("%-8s p50 %7.3fms  p99 %7.3fms  max %7.3fms%n",
+					FrameProfiler.PHASE_NAMES[i], h.getPercentile(50) / 1e6,
+					h.getPercentile(99) / 1e6, h.getMax() / 1e6));
+		}
+		sb.append(String.format("pairs %.1f  contacts %.1f  alloc %.0f B/tick%n",
+				_candidatePairs.getMean(), _contacts.getMean(), _allocatedBytes.getMean()));
+		if(_drawnObjects.getCount() > 0) {
+			sb.append(String.format("drawn %.1f  culled %.1f%n", _drawnObjects.getMean(), _culledObjects.getMean()));
+		}
+		for(FrameProfiler.ObjectCost cost : _topObjects) {
+			sb.append(cost).append(String.format("%n"));
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return summary();
+	}
+}
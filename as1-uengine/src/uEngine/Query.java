@@ -0,0 +1,57 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * The game objects that have a given set of component classes, as the
+ * archetype tables that hold them. Created by Game.query; a query is kept up
+ * to date as new tables are created, so create it once and keep it.
+ *
+ * Iterate the tables, and the columns within each table:
+ *
+ *     for(int t = 0; t < query.getTableCount(); t++) {
+ *         Archetype table = query.getTable(t);
+ *         Transform[] transforms = table.getColumn(Transform.class);
+ *         for(int i = 0; i < table.size(); i++) { ... }
+ *     }
+ *
+ * Components must not be added to or removed from objects in the game while
+ * iterating, since that moves objects between tables.
+ */
+public class Query {
+	final long mask;
+	private final List<Archetype> _tables = new ArrayList<Archetype>();
+
+	Query(long mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * Adds the table if it holds objects with all this query's components.
+	 */
+	void offer(Archetype table) {
+		if((table.mask & mask) == mask) {
+			_tables.add(table);
+		}
+	}
+
+	public int getTableCount() {
+		return _tables.size();
+	}
+
+	public Archetype getTable(int i) {
+		return _tables.get(i);
+	}
+
+	/**
+	 * Returns the number of objects matching the query.
+	 * @return
+	 */
+	public int count() {
+		int count = 0;
+		for(int t = 0; t < _tables.size(); t++) {
+			count += _tables.get(t).size();
+		}
+		return count;
+	}
+}
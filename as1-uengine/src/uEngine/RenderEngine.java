@@ -3,31 +3,376 @@ package uEngine;
 //import java.awt.*;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import java.awt.Canvas;
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 public class RenderEngine {
-	JFrame _frame;
+	// Behind the scene when drawn by drawScene
+	private static final Color DEFAULT_BACKGROUND = Color.WHITE;
+	
+	JFrame _frame;	// null when headless
 	List<GameObject> _sceneGraph = new ArrayList<GameObject>();
+	float _interpolationAlpha = 1;
+	String _overlayText = null;
+	
+	private final Camera _camera;
+	
+	// Finds the objects in view without examining every object, when the
+	// scene rendered is the one the physics engine has just stepped
+	private PhysicsEngine _cullingIndex = null;
+	private int _drawnCount = 0;
+	private int _culledCount = 0;
+	
+	// Each rendered scene is copied into a frame packet, which is then drawn.
+	// This means the game can carry on changing its objects while a frame is
+	// drawn on another thread (the EDT, or the render thread).
+	private FramePipeline _pipeline = new FramePipeline();
+	
+	// Draws packets with the static objects cached in their own layer
+	private final RenderLayers _layers = new RenderLayers();
+	
+	// Used by drawScene when there is a window
+	private FramePacket _scenePacket = null;
+	private RenderLayers _sceneLayers = null;
+	
+	private long _framesRendered = 0;
+	
+	// If set, frames are drawn with active rendering on this thread, while the
+	// game thread goes on to the next tick
+	private Thread _renderThread = null;
+	private volatile boolean _renderThreadRunning = false;
+	
+	// With active rendering, frames are drawn directly by renderScene onto this
+	// canvas, instead of being painted later by Swing
+	private GamePanel _panel;
+	private Canvas _canvas = null;
+	
+	private volatile long _framesPresented = 0;
+	private volatile long _lastPresentLatency = 0;
+	private volatile long _totalPresentLatency = 0;
 	
 	public void renderScene(List<GameObject> gameObjects, Vector2 centre) {
+		renderScene(gameObjects, centre, 1);
+	}
+	
+	/**
+	 * Renders the scene, drawing each game object between its previous and
+	 * current position. Objects outside the camera's view are not drawn.
+	 * @param gameObjects
+	 * @param centre the world point to centre the camera on
+	 * @param interpolationAlpha 0 draws objects at their previous position, 1
+	 * at their current position
+	 */
+	public void renderScene(List<GameObject> gameObjects, Vector2 centre, float interpolationAlpha) {
 		_sceneGraph = gameObjects;
-		_frame.repaint();
+		_interpolationAlpha = interpolationAlpha;
+		if(centre != null) {
+			_camera.setPosition(centre.x, centre.y);
+		}
+		_framesRendered++;
+		
+		// When headless, the scene is only captured if it is drawn
+		if(_frame == null) {
+			return;
+		}
+		
+		capture();
+		if(_renderThread != null) {
+			LockSupport.unpark(_renderThread);
+		} else if(_canvas != null) {
+			presentFrame(_pipeline.acquire());
+		} else {
+			_frame.repaint();
+		}
 	}
 	
+	/**
+	 * Sets text to draw over the scene, e.g. profiling statistics.
+	 * @param text the text, which may have several lines, or null for none
+	 */
+	public void setOverlayText(String text) {
+		_overlayText = text;
+	}
+	
+	/**
+	 * Copies the scene into a frame packet, and passes it to the thread that
+	 * draws it.
+	 */
+	private void capture() {
+		FramePacket packet = _pipeline.writePacket();
+		packet.capture(_sceneGraph, _cullingIndex, _camera, _interpolationAlpha, _framesRendered);
+		packet.setOverlayText(_overlayText);
+		_drawnCount = packet.size();
+		_culledCount = packet.getCulledCount();
+		_pipeline.publish();
+	}
+	
+	void setCullingIndex(PhysicsEngine physics) {
+		_cullingIndex = physics;
+	}
+	
+	/**
+	 * Returns the camera, e.g. to zoom. Its position follows the game's centre.
+	 * @return
+	 */
+	public Camera getCamera() {
+		return _camera;
+	}
+	
+	/**
+	 * Returns the number of objects drawn in the most recent frame. Headless
+	 * scenes are only drawn by drawScene.
+	 * @return
+	 */
+	public int getDrawnCount() {
+		return _drawnCount;
+	}
+	
+	/**
+	 * Returns the number of objects in the most recent frame that were not
+	 * drawn, because they were outside the camera's view or hidden.
+	 * @return
+	 */
+	public int getCulledCount() {
+		return _culledCount;
+	}
+	
+	/**
+	 * With active rendering, selects whether frames are drawn on a dedicated
+	 * render thread. If so, renderScene only captures the scene and returns,
+	 * so the game can simulate the next tick while this one is drawn. If the
+	 * render thread falls behind, it skips to the newest frame.
+	 * @param renderThread
+	 */
+	public void setRenderThread(boolean renderThread) {
+		if(renderThread && _renderThread == null && _canvas != null) {
+			_renderThreadRunning = true;
+			_renderThread = new Thread(new Runnable() {
+				public void run() {
+					while(_renderThreadRunning) {
+						if(_pipeline.hasFresh()) {
+							presentFrame(_pipeline.acquire());
+						} else {
+							LockSupport.park(this);
+						}
+					}
+				}
+			}, "uEngine-render");
+			_renderThread.setDaemon(true);
+			_renderThread.start();
+		} else if(!renderThread && _renderThread != null) {
+			_renderThreadRunning = false;
+			LockSupport.unpark(_renderThread);
+			try {
+				_renderThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_renderThread = null;
+		}
+	}
+	
+	/**
+	 * Switches to active rendering: each call to renderScene draws the frame
+	 * immediately, on the calling thread, into an off-screen buffer that is then
+	 * shown. Otherwise, frames are drawn whenever Swing gets round to painting
+	 * the window, so some may never be shown. Has no effect when headless.
+	 * @param buffers 2 for double buffering, 3 for triple buffering
+	 */
+	public void setActiveRendering(final int buffers) {
+		if(_frame == null || _canvas != null) {
+			return;
+		}
+		try {
+			SwingUtilities.invokeAndWait(new Runnable() {
+				public void run() {
+					_canvas = new Canvas();
+					_canvas.setBackground(UIManager.getColor("Panel.background"));
+					_canvas.setIgnoreRepaint(true);
+					// Leave keyboard focus with the window, where input is captured
+					_canvas.setFocusable(false);
+					
+					_frame.remove(_panel);
+					_frame.add(_canvas);
+					_frame.validate();
+					_canvas.createBufferStrategy(buffers);
+				}
+			});
+		} catch (Exception e) {
+			throw new RuntimeException("could not enable active rendering", e);
+		}
+	}
+	
+	/**
+	 * Draws a frame into the canvas's back buffer and shows it, repeating if
+	 * the buffer contents are lost in the meantime.
+	 */
+	private void presentFrame(FramePacket packet) {
+		long startTime = System.nanoTime();
+		
+		BufferStrategy strategy = _canvas.getBufferStrategy();
+		do {
+			do {
+				Graphics g = strategy.getDrawGraphics();
+				try {
+					_layers.draw(g, packet, _canvas.getWidth(), _canvas.getHeight(), _canvas.getBackground());
+				} finally {
+					g.dispose();
+				}
+			} while(strategy.contentsRestored());
+			strategy.show();
+		} while(strategy.contentsLost());
+		
+		// Make sure the frame reaches the screen now, rather than being queued
+		Toolkit.getDefaultToolkit().sync();
+		
+		_lastPresentLatency = System.nanoTime() - startTime;
+		_totalPresentLatency += _lastPresentLatency;
+		_framesPresented++;
+	}
+	
+	/**
+	 * Returns the number of frames drawn with active rendering. With a render
+	 * thread, this may be less than the number rendered, if some were skipped.
+	 * @return
+	 */
+	public long getFramesPresented() {
+		return _framesPresented;
+	}
+	
+	/**
+	 * Returns the time taken to draw and show the most recent frame with active
+	 * rendering, in nanoseconds.
+	 * @return
+	 */
+	public long getLastPresentLatency() {
+		return _lastPresentLatency;
+	}
+	
+	/**
+	 * Returns the average time taken to draw and show a frame with active
+	 * rendering, in nanoseconds.
+	 * @return
+	 */
+	public long getAveragePresentLatency() {
+		return _framesPresented == 0 ? 0 : _totalPresentLatency / _framesPresented;
+	}
+	
+	/**
+	 * Draws the most recently rendered scene using the given graphics context,
+	 * e.g. to render the scene off-screen into a BufferedImage. The whole window
+	 * area is drawn, on a white background. Call from the thread running the
+	 * game.
+	 * @param g
+	 */
+	public void drawScene(Graphics g) {
+		if(_frame == null) {
+			capture();
+			_layers.draw(g, _pipeline.acquire(), _camera.getViewportWidth(), _camera.getViewportHeight(),
+					DEFAULT_BACKGROUND);
+			return;
+		}
+		
+		// The window's thread is the pipeline's only reader, so capture into a
+		// packet, and draw with layers, of our own
+		if(_scenePacket == null) {
+			_scenePacket = new FramePacket();
+			_sceneLayers = new RenderLayers();
+		}
+		_scenePacket.capture(_sceneGraph, _cullingIndex, _camera, _interpolationAlpha, _framesRendered);
+		_scenePacket.setOverlayText(_overlayText);
+		_sceneLayers.draw(g, _scenePacket, _camera.getViewportWidth(), _camera.getViewportHeight(),
+				DEFAULT_BACKGROUND);
+	}
+	
+	/**
+	 * Selects whether only the parts of the window that have changed since the
+	 * last frame are repainted. The frame is kept in an off-screen image, and
+	 * the areas where objects have moved, appeared or gone are repainted into
+	 * it before it is shown. This is much cheaper when little moves, but costs
+	 * a copy of the whole frame when a lot does.
+	 * @param dirtyRegions
+	 */
+	public void setDirtyRegions(boolean dirtyRegions) {
+		_layers.setDirtyRegions(dirtyRegions);
+	}
+	
+	public boolean isDirtyRegions() {
+		return _layers.isDirtyRegions();
+	}
+	
+	/**
+	 * Returns the number of times the cached layer of static objects has been
+	 * redrawn, because they changed or the camera moved.
+	 * @return
+	 */
+	public long getStaticLayerRedraws() {
+		return _layers.getStaticLayerRedraws();
+	}
+	
+	/**
+	 * Returns the area, in pixels, repainted in the most recent frame drawn,
+	 * not counting the static layer. Without dirty regions, this is always the
+	 * whole window.
+	 * @return
+	 */
+	public long getLastRepaintedArea() {
+		return _layers.getLastRepaintedArea();
+	}
+	
+	/**
+	 * Returns the number of times a scene has been rendered.
+	 * @return
+	 */
+	public long getFramesRendered() {
+		return _framesRendered;
+	}
+	
+	/**
+	 * Returns the window the scene is drawn in.
+	 * @return the window, or null if headless
+	 */
 	public JFrame getWindow() {
 		return _frame;
 	}
 	
+	public boolean isHeadless() {
+		return _frame == null;
+	}
+	
 	public RenderEngine() {
+		this(false, Game.WINDOW_WIDTH, Game.WINDOW_HEIGHT);
+	}
+	
+	/**
+	 * Creates a render engine.
+	 * @param headless if true, no window is created and rendering a scene only
+	 * records it, so that the game can run without a display
+	 * @param width window width
+	 * @param height window height
+	 */
+	public RenderEngine(boolean headless, int width, int height) {
+		_camera = new Camera(width, height);
+		if(headless) {
+			return;
+		}
+		
 		_frame = new JFrame("uEngine: Game");
 		_frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-		_frame.setPreferredSize(new Dimension(Game.WINDOW_WIDTH,Game.WINDOW_HEIGHT));
-		_frame.setMinimumSize(new Dimension(Game.WINDOW_WIDTH,Game.WINDOW_HEIGHT));
+		_frame.setPreferredSize(new Dimension(width,height));
+		_frame.setMinimumSize(new Dimension(width,height));
 		
-		_frame.add(new GamePanel());
+		_panel = new GamePanel();
+		_frame.add(_panel);
 		
 		_frame.setLocationRelativeTo(null);
 		_frame.pack();
@@ -41,18 +386,8 @@ public class RenderEngine {
 		private static final long serialVersionUID = 1L;
 
 		public void paintComponent(Graphics g) {
-			// Iterate over each game object and render it
-
-			// Fill in missing for loop iterator and uncomment line
-			for(int i = 0; i < _sceneGraph.size(); i++) {
-				GameObject go = _sceneGraph.get(i);
-				g.setColor(go.material.color);
-				g.fillRect(
-						(int)go.transform.position.x,
-						(int)go.transform.position.y,
-						(int)go.transform.size.x,
-						(int)go.transform.size.y);
-			}		
+			// Draw the most recent frame captured by the game thread
+			_layers.draw(g, _pipeline.acquire(), getWidth(), getHeight(), getBackground());
 		}
 	}
 }
@@ -0,0 +1,306 @@
+package uEngine;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * Draws frame packets in layers. The background and the static objects are
+ * drawn once into a cached, opaque image, which is only redrawn when they
+ * change (or the camera moves), and each frame just copies that image before
+ * drawing the other objects over it.
+ *
+ * In dirty region mode, the whole frame is also kept in an image between
+ * frames. Each frame, only the areas where objects have appeared, moved or
+ * gone since the last frame drawn are repainted, and the image is then copied
+ * to the screen, so a mostly still scene costs little more than the copy.
+ *
+ * Layers remember what they last drew, so one layer must only be used by one
+ * drawing thread at a time.
+ */
+class RenderLayers {
+	// Above this many changed areas, or this fraction of the frame, the whole
+	// frame is repainted instead
+	private static final int MAX_DIRTY_RECTS = 64;
+	private static final float MAX_DIRTY_FRACTION = 0.5f;
+
+	private boolean _dirtyRegions = false;
+
+	// The static layer, and the background and static objects it was drawn from
+	private BufferedImage _staticLayer = null;
+	private Color _staticBackground = null;
+	private final ObjectCopy _staticObjects = new ObjectCopy();
+	private long _staticLayerRedraws = 0;
+
+	// With dirty regions, the last frame drawn, and its other objects
+	private BufferedImage _frameImage = null;
+	private final ObjectCopy _dynamicObjects = new ObjectCopy();
+	private int[] _dirty = new int[MAX_DIRTY_RECTS * 4];	// x, y, width, height
+	private int _dirtyCount = 0;
+
+	private long _lastRepaintedArea = 0;
+
+	synchronized void setDirtyRegions(boolean dirtyRegions) {
+		_dirtyRegions = dirtyRegions;
+		if(!dirtyRegions) {
+			_frameImage = null;
+			_dynamicObjects.clear();
+		}
+	}
+
+	boolean isDirtyRegions() {
+		return _dirtyRegions;
+	}
+
+	long getStaticLayerRedraws() {
+		return _staticLayerRedraws;
+	}
+
+	long getLastRepaintedArea() {
+		return _lastRepaintedArea;
+	}
+
+	/**
+	 * Draws a packet, and its overlay, covering the whole area drawn into.
+	 * @param g
+	 * @param packet
+	 * @param width the width of the area drawn into
+	 * @param height the height of the area drawn into
+	 * @param background the colour behind the objects
+	 */
+	synchronized void draw(Graphics g, FramePacket packet, int width, int height, Color background) {
+		if(width <= 0 || height <= 0) {
+			return;
+		}
+		boolean staticChanged = updateStaticLayer(g, packet, width, height, background);
+
+		if(!_dirtyRegions) {
+			g.drawImage(_staticLayer, 0, 0, null);
+			packet.drawObjects(g, packet.getStaticCount(), packet.size());
+			_lastRepaintedArea = (long)width * height;
+		} else {
+			updateFrameImage(g, packet, width, height, staticChanged);
+			g.drawImage(_frameImage, 0, 0, null);
+		}
+		packet.drawOverlay(g);
+	}
+
+	/**
+	 * Redraws the static layer if the background or the packet's static objects
+	 * differ from those it was drawn from.
+	 * @return true if the layer was redrawn
+	 */
+	private boolean updateStaticLayer(Graphics g, FramePacket packet, int width, int height, Color background) {
+		int staticCount = packet.getStaticCount();
+		boolean resized = _staticLayer == null || _staticLayer.getWidth() != width
+				|| _staticLayer.getHeight() != height;
+		if(!resized && background.equals(_staticBackground) && _staticObjects.matches(packet, 0, staticCount)) {
+			return false;
+		}
+		_staticObjects.copy(packet, 0, staticCount);
+		_staticBackground = background;
+
+		// Opaque, so that it is copied to the screen rather than blended
+		if(resized) {
+			_staticLayer = createImage(g, width, height, Transparency.OPAQUE);
+		}
+		Graphics2D sg = _staticLayer.createGraphics();
+		try {
+			sg.setColor(background);
+			sg.fillRect(0, 0, width, height);
+			packet.drawObjects(sg, 0, staticCount);
+		} finally {
+			sg.dispose();
+		}
+		_staticLayerRedraws++;
+		return true;
+	}
+
+	/**
+	 * Brings the frame image up to date with the packet, repainting only the
+	 * areas that have changed, if there are few enough of them.
+	 */
+	private void updateFrameImage(Graphics g, FramePacket packet, int width, int height,
+			boolean staticChanged) {
+		boolean full = staticChanged || _frameImage == null || _frameImage.getWidth() != width
+				|| _frameImage.getHeight() != height;
+		if(full) {
+			if(_frameImage == null || _frameImage.getWidth() != width || _frameImage.getHeight() != height) {
+				_frameImage = createImage(g, width, height, Transparency.OPAQUE);
+			}
+		} else {
+			full = !findDirtyRects(packet, width, height);
+		}
+
+		Graphics2D fg = _frameImage.createGraphics();
+		try {
+			if(full) {
+				repaint(fg, packet, 0, 0, width, height);
+				_lastRepaintedArea = (long)width * height;
+			} else {
+				long area = 0;
+				for(int r = 0; r < _dirtyCount; r++) {
+					int x = _dirty[r * 4], y = _dirty[r * 4 + 1];
+					int w = _dirty[r * 4 + 2], h = _dirty[r * 4 + 3];
+					fg.setClip(x, y, w, h);
+					repaint(fg, packet, x, y, w, h);
+					area += (long)w * h;
+				}
+				_lastRepaintedArea = area;
+			}
+		} finally {
+			fg.dispose();
+		}
+		_dynamicObjects.copy(packet, packet.getStaticCount(), packet.size());
+	}
+
+	/**
+	 * Repaints one area of the frame image: the static layer, and the other
+	 * objects that overlap the area.
+	 */
+	private void repaint(Graphics2D fg, FramePacket packet, int x, int y, int w, int h) {
+		fg.drawImage(_staticLayer, x, y, x + w, y + h, x, y, x + w, y + h, null);
+		for(int i = packet.getStaticCount(); i < packet.size(); i++) {
+			int ox = (int)packet.x(i), oy = (int)packet.y(i);
+			int ow = (int)packet.width(i), oh = (int)packet.height(i);
+			if(ox < x + w && ox + ow > x && oy < y + h && oy + oh > y) {
+				packet.drawObjects(fg, i, i + 1);
+			}
+		}
+	}
+
+	/**
+	 * Finds the areas where the packet's other objects differ from those last
+	 * drawn. Objects are compared by position in drawing order, so an object
+	 * that differs marks both its old and new bounds dirty; everything else is
+	 * drawn exactly as before.
+	 * @return false if there are too many areas, and the whole frame should be
+	 * repainted
+	 */
+	private boolean findDirtyRects(FramePacket packet, int width, int height) {
+		_dirtyCount = 0;
+		long area = 0;
+		long maxArea = (long)(width * (double)height * MAX_DIRTY_FRACTION);
+		int first = packet.getStaticCount();
+		int count = packet.size() - first;
+		ObjectCopy last = _dynamicObjects;
+		for(int i = 0; i < Math.max(count, last.count); i++) {
+			boolean inPacket = i < count;
+			boolean inLast = i < last.count;
+			if(inPacket && inLast && last.matches(i, packet, first + i)) {
+				continue;
+			}
+
+			// The union of the old and new bounds
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			if(inPacket) {
+				int x = (int)packet.x(first + i), y = (int)packet.y(first + i);
+				minX = x;
+				minY = y;
+				maxX = x + (int)packet.width(first + i);
+				maxY = y + (int)packet.height(first + i);
+			}
+			if(inLast) {
+				int x = (int)last.x[i], y = (int)last.y[i];
+				minX = Math.min(minX, x);
+				minY = Math.min(minY, y);
+				maxX = Math.max(maxX, x + (int)last.width[i]);
+				maxY = Math.max(maxY, y + (int)last.height[i]);
+			}
+			minX = Math.max(minX, 0);
+			minY = Math.max(minY, 0);
+			maxX = Math.min(maxX, width);
+			maxY = Math.min(maxY, height);
+			if(minX >= maxX || minY >= maxY) {
+				continue;
+			}
+
+			if(_dirtyCount == MAX_DIRTY_RECTS) {
+				return false;
+			}
+			area += (long)(maxX - minX) * (maxY - minY);
+			if(area > maxArea) {
+				return false;
+			}
+			int r = _dirtyCount++ * 4;
+			_dirty[r] = minX;
+			_dirty[r + 1] = minY;
+			_dirty[r + 2] = maxX - minX;
+			_dirty[r + 3] = maxY - minY;
+		}
+		return true;
+	}
+
+	private static BufferedImage createImage(Graphics g, int width, int height, int transparency) {
+		if(g instanceof Graphics2D) {
+			// An image in the screen's own format can be copied without conversion
+			return ((Graphics2D)g).getDeviceConfiguration().createCompatibleImage(width, height, transparency);
+		}
+		return new BufferedImage(width, height, transparency == Transparency.OPAQUE
+				? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * A copy of a run of the objects in a packet, to compare later packets with.
+	 */
+	static class ObjectCopy {
+		int count = -1;	// -1 until the first copy, so that it matches nothing
+		float[] x = new float[0];
+		float[] y = new float[0];
+		float[] width = new float[0];
+		float[] height = new float[0];
+		Color[] color = new Color[0];
+		Sprite[] sprite = new Sprite[0];
+
+		void clear() {
+			count = -1;
+			Arrays.fill(color, null);
+			Arrays.fill(sprite, null);
+		}
+
+		void copy(FramePacket packet, int first, int end) {
+			int n = end - first;
+			if(n > x.length) {
+				int capacity = Math.max(n, x.length * 2);
+				x = new float[capacity];
+				y = new float[capacity];
+				width = new float[capacity];
+				height = new float[capacity];
+				color = new Color[capacity];
+				sprite = new Sprite[capacity];
+			}
+			for(int i = 0; i < n; i++) {
+				x[i] = packet.x(first + i);
+				y[i] = packet.y(first + i);
+				width[i] = packet.width(first + i);
+				height[i] = packet.height(first + i);
+				color[i] = packet.color(first + i);
+				sprite[i] = packet.sprite(first + i);
+			}
+			Arrays.fill(color, n, Math.max(n, count), null);
+			Arrays.fill(sprite, n, Math.max(n, count), null);
+			count = n;
+		}
+
+		boolean matches(FramePacket packet, int first, int end) {
+			if(count != end - first) {
+				return false;
+			}
+			for(int i = 0; i < count; i++) {
+				if(!matches(i, packet, first + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		boolean matches(int i, FramePacket packet, int j) {
+			return x[i] == packet.x(j) && y[i] == packet.y(j) && width[i] == packet.width(j)
+					&& height[i] == packet.height(j) && Objects.equals(color[i], packet.color(j)) && sprite[i] == packet.sprite(j);
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package uEngine;
+
+/**
+ * Hooks by which a replication server or client runs as part of a game's
+ * tick. See ReplicationServer and ReplicationClient.
+ */
+interface Replication {
+	/**
+	 * Called at the start of each tick, before input is processed.
+	 * @param elapsedTime the tick's elapsed time, in seconds
+	 */
+	void beforeTick(float elapsedTime);
+
+	/**
+	 * Called at the end of each tick, once spawns and destroys are applied.
+	 * @param tick the number of ticks run, including this one
+	 */
+	void afterTick(long tick);
+}
@@ -0,0 +1,488 @@
+package uEngine;
+
+import java.awt.Color;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shows a game run by a ReplicationServer, over UDP. The client's game holds
+ * a proxy object for each object on the server, which the client spawns,
+ * destroys, moves and recolours to match the snapshots it receives. Proxies
+ * are placed between the last two snapshots, so that they move smoothly
+ * however often snapshots arrive, one snapshot behind the server.
+ *
+ * The key events the client's game receives are sent to the server, which
+ * applies them to its own input engines; see ReplicationServer. The client's
+ * own objects, if it has any, still see them too. Snapshots only start once
+ * the client has answered the server's challenge, which takes a round trip.
+ *
+ * Proxies are kinematic, or static if the server's object is static when the
+ * proxy is made, and are on PROXY_LAYER, which interacts with no layer.
+ *
+ * Only sprites given to addSprite are shown, matched by name to the server's
+ * sprites; proxies with any other sprite are drawn with their colour. The
+ * client never reads images while it ticks, and the server's sprite names
+ * need not be files the client can read.
+ */
+public class ReplicationClient implements Closeable {
+	public static final int PROXY_LAYER = CollisionLayers.LAYER_COUNT - 1;
+
+	private static final int HISTORY = ReplicationServer.HISTORY;
+	private static final int MAX_FRAGMENT_SIZE = ReplicationServer.MAX_FRAGMENT_SIZE;
+
+	private final Game _game;
+	private final Replication _hook = new Replication() {
+		public void beforeTick(float elapsedTime) {
+			receive();
+		}
+		public void afterTick(long tick) {
+			sendInput();
+		}
+	};
+	private final DatagramChannel _channel;
+	private final ByteBuffer _receiveBuffer = ByteBuffer.allocate(65536);
+	private final ByteBuffer _sendBuffer = ByteBuffer.allocate(
+			ReplicationServer.INPUT_HEADER_SIZE + ReplicationServer.MAX_INPUT_EVENTS * 4);
+
+	// Decoded states, by tick, to decode later snapshots against. The spare
+	// state is decoded into, then swapped into the history.
+	private final WorldState[] _history = new WorldState[HISTORY];
+	private WorldState _spare = new WorldState();
+
+	// The two latest states, when the latest arrived, and the server's time
+	// per tick
+	private WorldState _latest = null;
+	private WorldState _previous = null;
+	private long _latestTime;
+	private float _tickTime = 1f / 60;
+
+	// The proxy for each object of the latest state, and the index of each
+	// object in the previous state, or -1
+	private GameObject[] _proxies = new GameObject[64];
+	private GameObject[] _nextProxies = new GameObject[64];
+	private int[] _previousIndex = new int[64];
+
+	// The snapshot being reassembled from its fragments
+	private int _assemblySeq = -1;
+	private int _assemblyBaseline;
+	private int _assemblyLength;
+	private int _fragmentCount;
+	private int _fragmentsReceived;
+	private byte[] _assembly = new byte[MAX_FRAGMENT_SIZE];
+	private boolean[] _fragmentReceived = new boolean[1];
+
+	// Sprites proxies may be drawn with, by name, each held on to until the
+	// client is closed
+	private final Map<String,Sprite> _sprites = new ConcurrentHashMap<String,Sprite>();
+
+	// Token from the server's challenge, or 0 until it arrives
+	private long _token = 0;
+
+	// Key events not yet acknowledged by the server. The first is event
+	// number _firstEvent.
+	private int[] _events = new int[64];
+	private int _eventCount = 0;
+	private int _firstEvent = 0;
+
+	// Metrics
+	private long _snapshotsReceived = 0;
+	private long _snapshotsDropped = 0;
+	private long _bytesReceived = 0;
+
+	/**
+	 * Connects a game to a server.
+	 * @param game the game to show the server's objects in, normally with no
+	 * objects of its own
+	 * @param server
+	 * @throws IOException
+	 */
+	public ReplicationClient(Game game, InetSocketAddress server) throws IOException {
+		_game = game;
+		for(int i = 0; i < HISTORY; i++) {
+			_history[i] = new WorldState();
+		}
+		_channel = DatagramChannel.open();
+		InputEngine input = game.getInput();
+		InputEngine.EventListener previousListener = input.getEventListener();
+		try {
+			_channel.configureBlocking(false);
+			_channel.connect(server);
+			game.getPhysics().getLayers().setMask(PROXY_LAYER, 0);
+			input.setEventListener(new InputEngine.EventListener() {
+				public void inputEvent(int event) {
+					addEvent(event);
+				}
+			});
+			// Last, since the game may be ticking on another thread
+			game.setReplication(_hook);
+		} catch(IOException | RuntimeException e) {
+			input.setEventListener(previousListener);
+			_channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Lets proxies be drawn with a sprite, where the server's object has a
+	 * sprite of the same name. A sprite already added with the name is
+	 * replaced. Add sprites before connecting, since a proxy only looks for
+	 * its sprite when the server's object changes sprite.
+	 * @param sprite
+	 */
+	public void addSprite(Sprite sprite) {
+		sprite.retain();
+		Sprite replaced = _sprites.put(sprite.getName(), sprite);
+		if(replaced != null) {
+			replaced.release();
+		}
+	}
+
+	/**
+	 * Loads an image file through the shared sprite cache, and lets proxies be
+	 * drawn with it, where the server's object has a sprite of that file.
+	 * @param fileName
+	 * @return false if the file could not be read
+	 */
+	public boolean addSprite(String fileName) {
+		Sprite sprite = SpriteCache.getShared().get(fileName);
+		if(sprite == null) {
+			return false;
+		}
+		addSprite(sprite);
+		return true;
+	}
+
+	private void addEvent(int event) {
+		if(_eventCount == _events.length) {
+			_events = Arrays.copyOf(_events, _events.length * 2);
+		}
+		_events[_eventCount++] = event;
+	}
+
+	/**
+	 * Receives snapshots, then places the proxies for this tick.
+	 */
+	private void receive() {
+		try {
+			receivePackets();
+		} catch(PortUnreachableException e) {
+			// The server is not running yet, or has gone; keep trying
+		} catch(IOException e) {
+			System.out.println("replication error: " + e.getMessage());
+		}
+		interpolate();
+	}
+
+	private void receivePackets() throws IOException {
+		while(_channel.receive(_receiveBuffer) != null) {
+			ByteBuffer in = _receiveBuffer;
+			in.flip();
+			_bytesReceived += in.remaining();
+			if(in.remaining() >= ReplicationServer.SNAPSHOT_HEADER_SIZE && in.get(0) == ReplicationServer.SNAPSHOT) {
+				in.get();
+				readFragment(in);
+			} else if(in.remaining() >= ReplicationServer.CHALLENGE_SIZE && in.get(0) == ReplicationServer.CHALLENGE) {
+				_token = in.getLong(1);
+			}
+			in.clear();
+		}
+	}
+
+	private void readFragment(ByteBuffer in) {
+		int seq = in.getInt();
+		int baseline = in.getInt();
+		float tickTime = in.getFloat();
+		acknowledgeEvents(in.getInt());
+		int fragment = in.getShort() & 0xFFFF;
+		int fragmentCount = in.getShort() & 0xFFFF;
+
+		// Only snapshots newer than the latest are of use
+		if((_latest != null && seq <= _latest.seq) || seq < _assemblySeq
+				|| fragment >= fragmentCount || in.remaining() > MAX_FRAGMENT_SIZE) {
+			return;
+		}
+		if(seq != _assemblySeq) {
+			if(_assemblySeq >= 0 && _fragmentsReceived < _fragmentCount) {
+				_snapshotsDropped++;
+			}
+			_assemblySeq = seq;
+			_assemblyBaseline = baseline;
+			_assemblyLength = (fragmentCount - 1) * MAX_FRAGMENT_SIZE;
+			_fragmentCount = fragmentCount;
+			_fragmentsReceived = 0;
+			if(_fragmentReceived.length < fragmentCount) {
+				_fragmentReceived = new boolean[fragmentCount];
+				_assembly = new byte[fragmentCount * MAX_FRAGMENT_SIZE];
+			} else {
+				Arrays.fill(_fragmentReceived, 0, fragmentCount, false);
+			}
+		}
+		if(fragmentCount != _fragmentCount || _fragmentReceived[fragment]) {
+			return;
+		}
+		int length = in.remaining();
+		if(fragment < fragmentCount - 1 && length != MAX_FRAGMENT_SIZE) {
+			return;
+		}
+		in.get(_assembly, fragment * MAX_FRAGMENT_SIZE, length);
+		if(fragment == fragmentCount - 1) {
+			_assemblyLength = fragment * MAX_FRAGMENT_SIZE + length;
+		}
+		_fragmentReceived[fragment] = true;
+		if(++_fragmentsReceived == _fragmentCount) {
+			_tickTime = tickTime;
+			decode(seq);
+		}
+	}
+
+	/**
+	 * Decodes the reassembled snapshot, and makes it the latest state.
+	 */
+	private void decode(int seq) {
+		WorldState baseline = null;
+		if(_assemblyBaseline >= 0) {
+			baseline = _history[_assemblyBaseline & (HISTORY - 1)];
+			if(baseline.seq != _assemblyBaseline) {
+				// No longer kept; the server will send a newer baseline
+				_snapshotsDropped++;
+				return;
+			}
+		}
+		try {
+			SnapshotCodec.decode(ByteBuffer.wrap(_assembly, 0, _assemblyLength), baseline, _spare);
+		} catch(IOException e) {
+			_snapshotsDropped++;
+			return;
+		}
+		_spare.seq = seq;
+		_snapshotsReceived++;
+
+		// Keep the state, and reuse the one it replaces unless it is in use
+		int slot = seq & (HISTORY - 1);
+		WorldState replaced = _history[slot];
+		_history[slot] = _spare;
+		_previous = _latest;
+		_latest = _spare;
+		_latestTime = System.nanoTime();
+		_spare = replaced != _previous ? replaced : new WorldState();
+		updateProxies();
+	}
+
+	/**
+	 * Makes the proxies match the latest state: spawning proxies for new
+	 * objects, destroying those of removed objects, and updating everything
+	 * but their positions, which are interpolated each tick.
+	 */
+	private void updateProxies() {
+		WorldState latest = _latest;
+		WorldState previous = _previous;
+		int previousCount = previous == null ? 0 : previous.count;
+		if(_nextProxies.length < latest.count) {
+			int capacity = Math.max(latest.count, _nextProxies.length * 2);
+			_nextProxies = new GameObject[capacity];
+			_previousIndex = new int[capacity];
+		}
+
+		int i = 0;
+		for(int j = 0; j < latest.count; j++) {
+			int handle = latest.handle[j];
+			for(; i < previousCount && previous.handle[i] < handle; i++) {
+				_game.destroy(_proxies[i]);
+			}
+			GameObject proxy;
+			if(i < previousCount && previous.handle[i] == handle) {
+				proxy = _proxies[i];
+				_previousIndex[j] = i;
+				apply(proxy, latest, j, previous, i);
+				i++;
+			} else {
+				proxy = createProxy(latest, j);
+				_previousIndex[j] = -1;
+			}
+			_nextProxies[j] = proxy;
+		}
+		for(; i < previousCount; i++) {
+			_game.destroy(_proxies[i]);
+		}
+
+		GameObject[] proxies = _proxies;
+		Arrays.fill(proxies, 0, previousCount, null);
+		_proxies = _nextProxies;
+		_nextProxies = proxies;
+	}
+
+	private GameObject createProxy(WorldState state, int j) {
+		GameObject proxy = new GameObject();
+		proxy.name = "proxy " + state.handle[j];
+		proxy.layer = PROXY_LAYER;
+		// Set once, since the physics engine classifies bodies as they join
+		proxy.bodyType = (state.flags[j] & WorldState.STATIC) != 0 ? BodyType.STATIC : BodyType.KINEMATIC;
+		Transform t = proxy.transform;
+		t.position.x = state.x[j];
+		t.position.y = state.y[j];
+		t.previousPosition.x = state.x[j];
+		t.previousPosition.y = state.y[j];
+		apply(proxy, state, j, null, -1);
+		_game.spawn(proxy);
+		return proxy;
+	}
+
+	/**
+	 * Updates a proxy's size and material from object j of a state, where they
+	 * differ from object i of the previous state.
+	 */
+	private void apply(GameObject proxy, WorldState state, int j, WorldState previous, int i) {
+		Transform t = proxy.transform;
+		t.size.x = state.width[j];
+		t.size.y = state.height[j];
+		t.depth = state.depth[j];
+		Material m = proxy.material;
+		if(previous == null || previous.color[i] != state.color[j]) {
+			m.color = new Color(state.color[j], true);
+		}
+		m.isVisible = (state.flags[j] & WorldState.VISIBLE) != 0;
+		if(previous == null || !Objects.equals(previous.sprite[i], state.sprite[j])) {
+			m.setSprite(state.sprite[j] == null ? null : _sprites.get(state.sprite[j]));
+		}
+	}
+
+	/**
+	 * Places each proxy between its position in the previous and the latest
+	 * state, according to how long ago the latest arrived.
+	 */
+	private void interpolate() {
+		WorldState latest = _latest;
+		if(latest == null) {
+			return;
+		}
+		WorldState previous = _previous;
+		float alpha = 1;
+		if(previous != null && latest.seq > previous.seq) {
+			float interval = (latest.seq - previous.seq) * _tickTime;
+			alpha = Math.min(1, (System.nanoTime() - _latestTime) / 1e9f / interval);
+		}
+		for(int j = 0; j < latest.count; j++) {
+			Vector2 position = _proxies[j].transform.position;
+			int i = _previousIndex[j];
+			if(i < 0 || alpha >= 1) {
+				position.x = latest.x[j];
+				position.y = latest.y[j];
+			} else {
+				position.x = previous.x[i] + (latest.x[j] - previous.x[i]) * alpha;
+				position.y = previous.y[i] + (latest.y[j] - previous.y[i]) * alpha;
+			}
+		}
+	}
+
+	/**
+	 * Drops the key events the server has acknowledged.
+	 * @param nextEvent the number of the next event the server expects
+	 */
+	private void acknowledgeEvents(int nextEvent) {
+		int acknowledged = Math.min(nextEvent - _firstEvent, _eventCount);
+		if(acknowledged > 0) {
+			System.arraycopy(_events, acknowledged, _events, 0, _eventCount - acknowledged);
+			_eventCount -= acknowledged;
+			_firstEvent += acknowledged;
+		}
+	}
+
+	/**
+	 * Sends the latest snapshot received, and the key events the server has
+	 * not yet acknowledged. Sent every tick, so that the server knows the
+	 * client is still there.
+	 */
+	private void sendInput() {
+		int count = Math.min(_eventCount, ReplicationServer.MAX_INPUT_EVENTS);
+		ByteBuffer out = _sendBuffer;
+		out.clear();
+		out.put(ReplicationServer.INPUT);
+		out.putLong(_token);
+		out.putInt(_latest == null ? -1 : _latest.seq);
+		out.putInt(_firstEvent);
+		out.putShort((short)count);
+		for(int k = 0; k < count; k++) {
+			out.putInt(_events[k]);
+		}
+		out.flip();
+		try {
+			_channel.write(out);
+		} catch(PortUnreachableException e) {
+			// The server is not running yet, or has gone; keep trying
+		} catch(IOException e) {
+			System.out.println("replication error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tells the server the client is leaving, and closes the channel. The
+	 * proxies stay in the game.
+	 */
+	public void close() throws IOException {
+		_game.setReplication(null);
+		_game.getInput().setEventListener(null);
+		for(Sprite sprite : _sprites.values()) {
+			sprite.release();
+		}
+		_sprites.clear();
+		try {
+			ByteBuffer out = ByteBuffer.allocate(ReplicationServer.DISCONNECT_SIZE);
+			out.put(ReplicationServer.DISCONNECT);
+			out.putLong(_token);
+			out.flip();
+			_channel.write(out);
+		} catch(IOException e) {
+			// Leaving anyway; the server will time the client out
+		}
+		_channel.close();
+	}
+
+	/**
+	 * Returns the proxy of a server object.
+	 * @param handle the object's handle on the server
+	 * @return the proxy, or null if there is no such object in the latest
+	 * snapshot
+	 */
+	public GameObject getObject(int handle) {
+		if(_latest == null) {
+			return null;
+		}
+		int j = Arrays.binarySearch(_latest.handle, 0, _latest.count, handle);
+		return j >= 0 ? _proxies[j] : null;
+	}
+
+	public int getObjectCount() {
+		return _latest == null ? 0 : _latest.count;
+	}
+
+	/**
+	 * Returns the server tick of the latest snapshot, or -1 if none has arrived.
+	 * @return
+	 */
+	public int getLatestTick() {
+		return _latest == null ? -1 : _latest.seq;
+	}
+
+	public long getSnapshotsReceived() {
+		return _snapshotsReceived;
+	}
+
+	/**
+	 * Returns the number of snapshots lost, because a fragment did not arrive
+	 * or the snapshot could not be decoded.
+	 * @return
+	 */
+	public long getSnapshotsDropped() {
+		return _snapshotsDropped;
+	}
+
+	public long getBytesReceived() {
+		return _bytesReceived;
+	}
+}
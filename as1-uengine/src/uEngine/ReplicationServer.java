@@ -0,0 +1,497 @@
+package uEngine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Runs a game as an authoritative server for remote clients (see
+ * ReplicationClient), over UDP. At the end of every tick, the server captures
+ * the Transform and Material of every object, and sends each client a
+ * snapshot of the changes since the last snapshot that client acknowledged;
+ * clients that have acknowledged none get the whole state. Clients with the
+ * same baseline share one encoded snapshot. Snapshots larger than a datagram
+ * are split into fragments; a snapshot with a lost fragment is lost, and the
+ * next one is encoded against an older baseline to make up for it.
+ *
+ * Clients send their key events, which the server applies to an InputEngine
+ * of each client's own, and by default to the game's input engine as well,
+ * so that a game written for one local player can be played remotely. Events
+ * are numbered, and resent until the server acknowledges them, so none are
+ * lost. Key codes beyond InputEngine.MAX_KEY_CODE are ignored. When a client
+ * leaves, the keys it held down in the game's input engine are released.
+ *
+ * Before a client joins, it must show that it receives packets at the
+ * address it sends from, so that no one can have snapshots sent to someone
+ * else's address by forging the source of a packet. The server answers
+ * input without a valid token with a challenge holding the token for the
+ * sender's address, which the client puts in every packet after that. The
+ * challenge is smaller than the packet it answers, and the token is worked
+ * out from the address and a secret, so the server keeps nothing for
+ * addresses that have not joined. A client leaves when it disconnects or
+ * stops sending.
+ *
+ * Everything happens on the thread ticking the game, with a non-blocking
+ * channel, so a server may be run by a WorldHost.
+ */
+public class ReplicationServer implements Closeable {
+	public static final long CLIENT_TIMEOUT = 5000000000L; // ns
+	public static final int MAX_CLIENTS = 1024;
+
+	// Packet types
+	static final byte SNAPSHOT = 1;
+	static final byte INPUT = 2;
+	static final byte DISCONNECT = 3;
+	static final byte CHALLENGE = 4;
+
+	// Snapshot packets start with the type, the tick of the snapshot and of its
+	// baseline (or -1), the tick's elapsed time, the number of the next input
+	// event expected from the client, and the fragment's number and count
+	static final int SNAPSHOT_HEADER_SIZE = 1 + 4 + 4 + 4 + 4 + 2 + 2;
+
+	// Largest snapshot data in one packet, to keep packets under a typical MTU
+	static final int MAX_FRAGMENT_SIZE = 1200;
+	static final int MAX_FRAGMENTS = 65535;
+
+	// Input packets start with the type, the client's token (or 0 before it
+	// has one), the tick of the latest snapshot received (or -1), the number
+	// of the first event, and the event count
+	static final int INPUT_HEADER_SIZE = 1 + 8 + 4 + 4 + 2;
+
+	// Challenge and disconnect packets are the type and the token
+	static final int CHALLENGE_SIZE = 1 + 8;
+	static final int DISCONNECT_SIZE = 1 + 8;
+	static final int MAX_INPUT_EVENTS = 256;
+
+	// States kept, to encode snapshots against. Must be a power of two.
+	static final int HISTORY = 64;
+
+	private final Game _game;
+	private final Replication _hook = new Replication() {
+		public void beforeTick(float elapsedTime) {
+			receive(elapsedTime);
+		}
+		public void afterTick(long tick) {
+			sendSnapshots(tick);
+		}
+	};
+	private final DatagramChannel _channel;
+	private final ByteBuffer _receiveBuffer = ByteBuffer.allocate(65536);
+	private final ByteBuffer _sendBuffer = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE + MAX_FRAGMENT_SIZE);
+	private final ByteBuffer _challengeBuffer = ByteBuffer.allocate(CHALLENGE_SIZE);
+
+	// Makes the token for each address, from a secret chosen at random
+	private final Mac _tokenMac;
+
+	private final WorldState[] _history = new WorldState[HISTORY];
+	private float _elapsedTime;
+
+	private final List<Client> _clients = new ArrayList<Client>();
+	private final Map<SocketAddress,Client> _clientsByAddress = new HashMap<SocketAddress,Client>();
+	private boolean _sharedInput = true;
+
+	// Snapshots encoded this tick, one for each baseline in use
+	private SnapshotCodec[] _encoders = new SnapshotCodec[0];
+	private int[] _encodedBaselines = new int[0];
+	private int[] _encodedLengths = new int[0];
+
+	// Chance of dropping each snapshot packet sent, to test lossy networks
+	private double _simulatedLoss = 0;
+	private final Random _lossRandom = new Random(1);
+
+	// Metrics
+	private long _ticks = 0;
+	private long _bytesSent = 0;
+	private long _lastBytesSent = 0;
+	private long _encodeTime = 0;
+	private long _lastEncodeTime = 0;
+	private long _packetsDropped = 0;
+
+	/**
+	 * A connected client.
+	 */
+	private static class Client {
+		final SocketAddress address;
+		final long token;
+		final InputEngine input = new InputEngine();
+		int ack = -1;			// latest snapshot received, or -1
+		int nextInputEvent;		// number of the next event expected
+		long lastHeardTime;
+
+		// Keys the client holds down in the game's input engine
+		final BitSet sharedKeys = new BitSet();
+
+		Client(SocketAddress address, long token, int firstEvent) {
+			this.address = address;
+			this.token = token;
+			this.nextInputEvent = firstEvent;
+		}
+	}
+
+	/**
+	 * Starts serving a game.
+	 * @param game
+	 * @param address the address to receive from, e.g. port 0 of the loopback
+	 * address to choose any free port
+	 * @throws IOException if the address cannot be bound
+	 */
+	public ReplicationServer(Game game, InetSocketAddress address) throws IOException {
+		_game = game;
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		try {
+			_tokenMac = Mac.getInstance("HmacSHA256");
+			_tokenMac.init(new SecretKeySpec(secret, "HmacSHA256"));
+		} catch(GeneralSecurityException e) {
+			throw new IOException("cannot make client tokens: " + e.getMessage());
+		}
+		for(int i = 0; i < HISTORY; i++) {
+			_history[i] = new WorldState();
+		}
+		_channel = DatagramChannel.open();
+		try {
+			_channel.configureBlocking(false);
+			_channel.bind(address);
+			// Last, since the game may be ticking on another thread
+			game.setReplication(_hook);
+		} catch(IOException | RuntimeException e) {
+			_channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the address the server receives from, for clients to send to.
+	 * @return
+	 * @throws IOException
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress)_channel.getLocalAddress();
+	}
+
+	/**
+	 * Sets whether clients' input is also applied to the game's input engine,
+	 * as well as their own. On by default.
+	 * @param shared
+	 */
+	public void setSharedInput(boolean shared) {
+		_sharedInput = shared;
+	}
+
+	/**
+	 * Drops each snapshot packet sent with the given probability, to test how
+	 * clients cope with a lossy network.
+	 * @param loss from 0 (none lost) to 1 (all lost)
+	 */
+	public void setSimulatedLoss(double loss) {
+		_simulatedLoss = loss;
+	}
+
+	/**
+	 * Receives acknowledgements and input, and applies clients' input.
+	 */
+	private void receive(float elapsedTime) {
+		_elapsedTime = elapsedTime;
+		long now = System.nanoTime();
+		try {
+			receivePackets(now);
+		} catch(IOException e) {
+			System.out.println("replication error: " + e.getMessage());
+		}
+
+		for(int i = _clients.size() - 1; i >= 0; i--) {
+			Client client = _clients.get(i);
+			if(now - client.lastHeardTime > CLIENT_TIMEOUT) {
+				removeClient(client);
+			} else {
+				client.input.startFrame(elapsedTime);
+			}
+		}
+	}
+
+	private void receivePackets(long now) throws IOException {
+		SocketAddress address;
+		while((address = _channel.receive(_receiveBuffer)) != null) {
+			ByteBuffer in = _receiveBuffer;
+			in.flip();
+			Client client = _clientsByAddress.get(address);
+			if(in.remaining() >= INPUT_HEADER_SIZE && in.get(0) == INPUT) {
+				long token = in.getLong(1);
+				if(client == null) {
+					// Only an address that has received its challenge can join
+					long expected = token(address);
+					if(token != expected) {
+						sendChallenge(address, expected);
+					} else if(_clients.size() < MAX_CLIENTS) {
+						// A client that timed out and came back carries on
+						// numbering its events from where it was, so start
+						// from its first event rather than from 0
+						client = new Client(address, token, in.getInt(1 + 8 + 4));
+						_clients.add(client);
+						_clientsByAddress.put(address, client);
+					}
+				}
+				if(client != null && token == client.token) {
+					readInput(client, in);
+					client.lastHeardTime = now;
+				}
+			} else if(in.remaining() >= DISCONNECT_SIZE && in.get(0) == DISCONNECT
+					&& client != null && in.getLong(1) == client.token) {
+				removeClient(client);
+			}
+			in.clear();
+		}
+	}
+
+	/**
+	 * Returns the token for an address, which a client from the address must
+	 * put in its packets.
+	 */
+	private long token(SocketAddress address) {
+		InetSocketAddress inet = (InetSocketAddress)address;
+		_tokenMac.update(inet.getAddress().getAddress());
+		_tokenMac.update((byte)(inet.getPort() >>> 8));
+		_tokenMac.update((byte)inet.getPort());
+		long token = ByteBuffer.wrap(_tokenMac.doFinal()).getLong();
+		return token != 0 ? token : 1;
+	}
+
+	private void sendChallenge(SocketAddress address, long token) throws IOException {
+		ByteBuffer out = _challengeBuffer;
+		out.clear();
+		out.put(CHALLENGE);
+		out.putLong(token);
+		out.flip();
+		_channel.send(out, address);
+	}
+
+	private void readInput(Client client, ByteBuffer in) {
+		in.get();
+		in.getLong();
+		int ack = in.getInt();
+		int firstEvent = in.getInt();
+		int count = Math.min(in.getShort() & 0xFFFF, in.remaining() / 4);
+
+		// Acknowledgements may arrive out of order; keep the latest
+		if(ack > client.ack) {
+			client.ack = ack;
+		}
+
+		// Apply the events not yet seen, in order. The client always sends from
+		// its oldest unacknowledged event, so there are never gaps.
+		for(int k = 0; k < count; k++) {
+			int event = in.getInt();
+			if(firstEvent + k != client.nextInputEvent) {
+				continue;
+			}
+			client.nextInputEvent++;
+			int keyCode = event >>> 1;
+			boolean pressed = (event & 1) != 0;
+			if(keyCode > InputEngine.MAX_KEY_CODE) {
+				continue;
+			}
+			apply(client.input, keyCode, pressed);
+			if(_sharedInput) {
+				apply(_game.getInput(), keyCode, pressed);
+				client.sharedKeys.set(keyCode, pressed);
+			}
+		}
+	}
+
+	private static void apply(InputEngine input, int keyCode, boolean pressed) {
+		if(pressed) {
+			input.pressKey(keyCode);
+		} else {
+			input.releaseKey(keyCode);
+		}
+	}
+
+	private void removeClient(Client client) {
+		_clients.remove(client);
+		_clientsByAddress.remove(client.address);
+
+		// Don't leave the client's keys held down in the game
+		InputEngine input = _game.getInput();
+		for(int keyCode = client.sharedKeys.nextSetBit(0); keyCode >= 0;
+				keyCode = client.sharedKeys.nextSetBit(keyCode + 1)) {
+			input.releaseKey(keyCode);
+		}
+	}
+
+	/**
+	 * Captures the game's state, and sends each client a snapshot of it.
+	 */
+	private void sendSnapshots(long tick) {
+		int seq = (int)tick;
+		WorldState state = _history[seq & (HISTORY - 1)];
+		state.capture(_game.gameObjects(), seq);
+
+		long bytesSent = 0;
+		long encodeTime = 0;
+		int encoded = 0;
+		try {
+			for(int c = 0; c < _clients.size(); c++) {
+				Client client = _clients.get(c);
+				WorldState baseline = baseline(client, seq);
+				int baselineSeq = baseline == null ? -1 : baseline.seq;
+
+				// Encode against each baseline once
+				int e = 0;
+				while(e < encoded && _encodedBaselines[e] != baselineSeq) {
+					e++;
+				}
+				if(e == encoded) {
+					if(encoded == _encoders.length) {
+						growEncoders();
+					}
+					long startTime = System.nanoTime();
+					_encodedLengths[e] = _encoders[e].encode(baseline, state);
+					encodeTime += System.nanoTime() - startTime;
+					_encodedBaselines[e] = baselineSeq;
+					encoded++;
+				}
+				bytesSent += send(client, seq, baselineSeq, _encoders[e].getBuffer(), _encodedLengths[e]);
+			}
+		} catch(IOException e) {
+			System.out.println("replication error: " + e.getMessage());
+		}
+
+		_ticks++;
+		_bytesSent += bytesSent;
+		_lastBytesSent = bytesSent;
+		_encodeTime += encodeTime;
+		_lastEncodeTime = encodeTime;
+	}
+
+	/**
+	 * Returns the latest state the client has acknowledged, if it is still
+	 * kept, or null.
+	 */
+	private WorldState baseline(Client client, int seq) {
+		int ack = client.ack;
+		if(ack < 0 || ack >= seq || seq - ack >= HISTORY) {
+			return null;
+		}
+		WorldState baseline = _history[ack & (HISTORY - 1)];
+		return baseline.seq == ack ? baseline : null;
+	}
+
+	private void growEncoders() {
+		int capacity = Math.max(4, _encoders.length * 2);
+		int previous = _encoders.length;
+		_encoders = Arrays.copyOf(_encoders, capacity);
+		for(int i = previous; i < capacity; i++) {
+			_encoders[i] = new SnapshotCodec();
+		}
+		_encodedBaselines = Arrays.copyOf(_encodedBaselines, capacity);
+		_encodedLengths = Arrays.copyOf(_encodedLengths, capacity);
+	}
+
+	/**
+	 * Sends a snapshot to a client, in as many fragments as it needs.
+	 * @return the number of bytes sent
+	 */
+	private long send(Client client, int seq, int baselineSeq, byte[] data, int length) throws IOException {
+		int fragments = Math.max(1, (length + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE);
+		if(fragments > MAX_FRAGMENTS) {
+			System.out.println("replication error: snapshot too large (" + length + " bytes)");
+			return 0;
+		}
+		long bytesSent = 0;
+		for(int f = 0; f < fragments; f++) {
+			int offset = f * MAX_FRAGMENT_SIZE;
+			ByteBuffer out = _sendBuffer;
+			out.clear();
+			out.put(SNAPSHOT);
+			out.putInt(seq);
+			out.putInt(baselineSeq);
+			out.putFloat(_elapsedTime);
+			out.putInt(client.nextInputEvent);
+			out.putShort((short)f);
+			out.putShort((short)fragments);
+			out.put(data, offset, Math.min(MAX_FRAGMENT_SIZE, length - offset));
+			out.flip();
+			int size = out.remaining();
+			if(_simulatedLoss > 0 && _lossRandom.nextDouble() < _simulatedLoss) {
+				_packetsDropped++;
+			} else if(_channel.send(out, client.address) == 0) {
+				// No room in the socket's buffer
+				_packetsDropped++;
+			}
+			bytesSent += size;
+		}
+		return bytesSent;
+	}
+
+	/**
+	 * Stops serving, and closes the channel.
+	 */
+	public void close() throws IOException {
+		_game.setReplication(null);
+		_channel.close();
+	}
+
+	public int getClientCount() {
+		return _clients.size();
+	}
+
+	/**
+	 * Returns the input engine fed by one client.
+	 * @param index from 0 to getClientCount() - 1, in the order clients joined
+	 * @return
+	 */
+	public InputEngine getClientInput(int index) {
+		return _clients.get(index).input;
+	}
+
+	/**
+	 * Returns the bytes of snapshots sent to all clients in the last tick,
+	 * including packet headers.
+	 * @return
+	 */
+	public long getLastBytesPerTick() {
+		return _lastBytesSent;
+	}
+
+	public double getAverageBytesPerTick() {
+		return _ticks == 0 ? 0 : (double)_bytesSent / _ticks;
+	}
+
+	/**
+	 * Returns the time spent encoding snapshots in the last tick, in ns.
+	 * @return
+	 */
+	public long getLastEncodeTime() {
+		return _lastEncodeTime;
+	}
+
+	/**
+	 * Returns the average time spent encoding snapshots per tick, in ns.
+	 * @return
+	 */
+	public double getAverageEncodeTime() {
+		return _ticks == 0 ? 0 : (double)_encodeTime / _ticks;
+	}
+
+	public long getBytesSent() {
+		return _bytesSent;
+	}
+
+	/**
+	 * Returns the number of snapshot packets dropped, because the socket's
+	 * buffer was full or to simulate loss.
+	 * @return
+	 */
+	public long getPacketsDropped() {
+		return _packetsDropped;
+	}
+}
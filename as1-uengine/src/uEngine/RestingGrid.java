@@ -0,0 +1,251 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * The bodies at rest (static or asleep), binned into a uniform grid so that
+ * each moving body can quickly find the resting bodies near it. Resting
+ * bodies do not move, so the grid is only rebuilt when the set of resting
+ * bodies changes, rather than every frame.
+ *
+ * The grid is a hash table from cell coordinate to a run of entries in one
+ * array, built with a counting sort, so rebuilding creates no garbage once
+ * the arrays have grown to fit.
+ */
+class RestingGrid {
+	private final float _cellSize;
+
+	// The resting bodies, and their bounds when the grid was built
+	private GameObject[] _objects = new GameObject[64];
+	private float[] _minX = new float[64];
+	private float[] _minY = new float[64];
+	private float[] _maxX = new float[64];
+	private float[] _maxY = new float[64];
+	private int _count = 0;
+
+	// Hash table from cell coordinate to the start and length of the cell's run
+	// of entries. A slot is only in use if it is stamped with the current build.
+	private long[] _keys = new long[256];
+	private int[] _stamps = new int[256];
+	private int[] _starts = new int[256];
+	private int[] _lengths = new int[256];
+	private int _build = 0;
+
+	// Indices of the bodies in each cell, grouped by cell
+	private int[] _entries = new int[256];
+
+	// Query number at which each body was last reported, so that a body
+	// covering several cells is only reported once per query
+	private int[] _seen = new int[64];
+	private int _query = 0;
+
+	// Indices of the bodies found by the last area query
+	private int[] _found = new int[64];
+	private int _foundCount = 0;
+
+	RestingGrid(float cellSize) {
+		_cellSize = cellSize;
+	}
+
+	int size() {
+		return _count;
+	}
+
+	/**
+	 * Rebuilds the grid from the given bodies.
+	 */
+	void rebuild(List<GameObject> bodies) {
+		int n = bodies.size();
+		if(n > _objects.length) {
+			int capacity = Math.max(n, _objects.length * 2);
+			_objects = new GameObject[capacity];
+			_minX = new float[capacity];
+			_minY = new float[capacity];
+			_maxX = new float[capacity];
+			_maxY = new float[capacity];
+			_seen = new int[capacity];
+			_found = new int[capacity];
+		}
+		Arrays.fill(_objects, n, _objects.length, null);
+
+		int entryCount = 0;
+		for(int i = 0; i < n; i++) {
+			GameObject g = bodies.get(i);
+			Transform t = g.transform;
+			_objects[i] = g;
+			_minX[i] = t.position.x;
+			_minY[i] = t.position.y;
+			_maxX[i] = t.position.x + t.size.x;
+			_maxY[i] = t.position.y + t.size.y;
+			entryCount += (cellCoord(_maxX[i]) - cellCoord(_minX[i]) + 1)
+					* (cellCoord(_maxY[i]) - cellCoord(_minY[i]) + 1);
+		}
+		_count = n;
+
+		// Keep the table at most half full, even if every entry is in its own cell
+		if(entryCount * 2 > _keys.length) {
+			int capacity = Integer.highestOneBit(entryCount * 2 - 1) * 2;
+			_keys = new long[capacity];
+			_stamps = new int[capacity];
+			_starts = new int[capacity];
+			_lengths = new int[capacity];
+		}
+		if(entryCount > _entries.length) {
+			_entries = new int[Math.max(entryCount, _entries.length * 2)];
+		}
+		_build++;
+
+		// Count the entries in each cell, then give each cell its run of the
+		// entries array, then fill the runs
+		for(int i = 0; i < n; i++) {
+			for(int cx = cellCoord(_minX[i]); cx <= cellCoord(_maxX[i]); cx++) {
+				for(int cy = cellCoord(_minY[i]); cy <= cellCoord(_maxY[i]); cy++) {
+					_lengths[claim(cx, cy)]++;
+				}
+			}
+		}
+		int start = 0;
+		for(int slot = 0; slot < _keys.length; slot++) {
+			if(_stamps[slot] == _build) {
+				_starts[slot] = start;
+				start += _lengths[slot];
+				_lengths[slot] = 0;
+			}
+		}
+		for(int i = 0; i < n; i++) {
+			for(int cx = cellCoord(_minX[i]); cx <= cellCoord(_maxX[i]); cx++) {
+				for(int cy = cellCoord(_minY[i]); cy <= cellCoord(_maxY[i]); cy++) {
+					int slot = find(cx, cy);
+					_entries[_starts[slot] + _lengths[slot]++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports to the handler each resting body whose bounds overlap the given
+	 * bounds, and whose layer interacts with the given body's.
+	 */
+	void query(GameObject g, float minX, float minY, float maxX, float maxY,
+			CollisionLayers layers, Broadphase.PairHandler handler) {
+		if(_count == 0) {
+			return;
+		}
+		_query++;
+		for(int cx = cellCoord(minX); cx <= cellCoord(maxX); cx++) {
+			for(int cy = cellCoord(minY); cy <= cellCoord(maxY); cy++) {
+				int slot = find(cx, cy);
+				if(slot < 0) {
+					continue;
+				}
+				int end = _starts[slot] + _lengths[slot];
+				for(int e = _starts[slot]; e < end; e++) {
+					int i = _entries[e];
+					if(_seen[i] == _query) {
+						continue;
+					}
+					_seen[i] = _query;
+					GameObject other = _objects[i];
+					if(!layers.interacts(g, other)) {
+						continue;
+					}
+					if(minX > _maxX[i] || _minX[i] > maxX || minY > _maxY[i] || _minY[i] > maxY) {
+						continue;
+					}
+					handler.candidatePair(g, other);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the resting bodies whose bounds overlap the given area, e.g. the
+	 * camera's view. They can then be read with found, in the order they were
+	 * given to rebuild.
+	 * @return the number of bodies found
+	 */
+	int query(float minX, float minY, float maxX, float maxY) {
+		_foundCount = 0;
+		if(_count == 0) {
+			return 0;
+		}
+		
+		// An area covering more cells than there are bodies is quicker to check
+		// body by body
+		long cells = ((long)cellCoord(maxX) - cellCoord(minX) + 1) * ((long)cellCoord(maxY) - cellCoord(minY) + 1);
+		if(cells > _count) {
+			for(int i = 0; i < _count; i++) {
+				if(!(minX > _maxX[i] || _minX[i] > maxX || minY > _maxY[i] || _minY[i] > maxY)) {
+					_found[_foundCount++] = i;
+				}
+			}
+			return _foundCount;
+		}
+		
+		_query++;
+		for(int cx = cellCoord(minX); cx <= cellCoord(maxX); cx++) {
+			for(int cy = cellCoord(minY); cy <= cellCoord(maxY); cy++) {
+				int slot = find(cx, cy);
+				if(slot < 0) {
+					continue;
+				}
+				int end = _starts[slot] + _lengths[slot];
+				for(int e = _starts[slot]; e < end; e++) {
+					int i = _entries[e];
+					if(_seen[i] == _query) {
+						continue;
+					}
+					_seen[i] = _query;
+					if(minX > _maxX[i] || _minX[i] > maxX || minY > _maxY[i] || _minY[i] > maxY) {
+						continue;
+					}
+					_found[_foundCount++] = i;
+				}
+			}
+		}
+		Arrays.sort(_found, 0, _foundCount);
+		return _foundCount;
+	}
+
+	GameObject found(int i) {
+		return _objects[_found[i]];
+	}
+
+	private int cellCoord(float v) {
+		return (int)Math.floor(v / _cellSize);
+	}
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private int claim(int cx, int cy) {
+		long key = ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+		int mask = _keys.length - 1;
+		int slot = hash(key, mask);
+		while(_stamps[slot] == _build) {
+			if(_keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		_keys[slot] = key;
+		_stamps[slot] = _build;
+		_lengths[slot] = 0;
+		return slot;
+	}
+
+	private int find(int cx, int cy) {
+		long key = ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+		int mask = _keys.length - 1;
+		int slot = hash(key, mask);
+		while(_stamps[slot] == _build) {
+			if(_keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,176 @@
+package uEngine;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves a running game to a scene file every so many ticks, so that it can be
+ * restored after a crash or restart with Game.loadScene.
+ *
+ * At the end of a checkpoint tick, the game's objects are written to a buffer
+ * in memory, on the thread running the game, in a single pass; the buffer is
+ * reused from one checkpoint to the next. It is then written to disk by a
+ * background thread, to a temporary file that replaces the checkpoint file
+ * once complete, so the checkpoint file always holds a whole scene. The game
+ * never waits for the disk: if the previous checkpoint is still being
+ * written when the next is due, the next is skipped.
+ */
+public class SceneCheckpointer implements Closeable {
+	private final Game _game;
+	private final Path _path;
+	private final Path _tempPath;
+	private final int _interval;
+
+	private final SceneWriter _writer = new SceneWriter();
+	private final AtomicBoolean _writing = new AtomicBoolean();
+	private volatile boolean _closed = false;
+	private final ExecutorService _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "uEngine-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Metrics, written by the game thread or the writing thread
+	private volatile long _checkpoints = 0;
+	private volatile long _skipped = 0;
+	private volatile long _lastCaptureTime = 0;
+	private volatile long _lastWriteTime = 0;
+	private volatile long _lastSize = 0;
+
+	/**
+	 * Starts checkpointing a game.
+	 * @param game
+	 * @param fileName the checkpoint file, replaced by each checkpoint
+	 * @param intervalTicks ticks between checkpoints
+	 */
+	public SceneCheckpointer(Game game, String fileName, int intervalTicks) {
+		if(intervalTicks <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		_game = game;
+		_path = Paths.get(fileName);
+		_tempPath = Paths.get(fileName + ".tmp");
+		_interval = intervalTicks;
+		game.setCheckpointer(this);
+	}
+
+	/**
+	 * Called by the game at the end of every tick.
+	 */
+	void afterTick(long tick) {
+		if(tick % _interval != 0 || _closed) {
+			return;
+		}
+		if(!_writing.compareAndSet(false, true)) {
+			_skipped++;
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			_writer.reset(tick, _game.getWidth(), _game.getHeight());
+			List<GameObject> gameObjects = _game.gameObjects();
+			for(int i = 0; i < gameObjects.size(); i++) {
+				GameObject g = gameObjects.get(i);
+				if(g.isAlive()) {
+					_writer.write(g);
+				}
+			}
+			_writer.finish();
+		} catch(IOException e) {
+			System.out.println("checkpoint error: " + e.getMessage());
+			_writing.set(false);
+			return;
+		}
+		_lastCaptureTime = System.nanoTime() - startTime;
+		try {
+			_executor.execute(new Runnable() {
+				public void run() {
+					writeCheckpoint();
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// Closed by another thread during the capture
+			_writing.set(false);
+		}
+	}
+
+	private void writeCheckpoint() {
+		long startTime = System.nanoTime();
+		try {
+			try(OutputStream out = Files.newOutputStream(_tempPath)) {
+				_writer.writeTo(out);
+			}
+			Files.move(_tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			_lastSize = _writer.size();
+			_lastWriteTime = System.nanoTime() - startTime;
+			_checkpoints++;
+		} catch(IOException e) {
+			System.out.println("checkpoint error: " + e.getMessage());
+		} finally {
+			_writing.set(false);
+		}
+	}
+
+	/**
+	 * Stops checkpointing, and waits for a checkpoint being written to finish.
+	 */
+	public void close() throws IOException {
+		_closed = true;
+		_game.setCheckpointer(null);
+		_executor.shutdown();
+		try {
+			_executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of checkpoints written.
+	 * @return
+	 */
+	public long getCheckpointCount() {
+		return _checkpoints;
+	}
+
+	/**
+	 * Returns the number of checkpoints skipped because the previous one was
+	 * still being written.
+	 * @return
+	 */
+	public long getSkippedCount() {
+		return _skipped;
+	}
+
+	/**
+	 * Returns the time the game thread spent capturing the last checkpoint, in
+	 * ns.
+	 * @return
+	 */
+	public long getLastCaptureTime() {
+		return _lastCaptureTime;
+	}
+
+	/**
+	 * Returns the time the background thread spent writing the last checkpoint
+	 * to disk, in ns.
+	 * @return
+	 */
+	public long getLastWriteTime() {
+		return _lastWriteTime;
+	}
+
+	/**
+	 * Returns the size of the last checkpoint file, in bytes.
+	 * @return
+	 */
+	public long getLastSize() {
+		return _lastSize;
+	}
+}
@@ -0,0 +1,496 @@
+package uEngine;
+
+import java.awt.Color;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Loads game objects from a scene file written by SceneWriter. The file is
+ * read into memory in one go and closed, rather than read through a stream,
+ * so it can be replaced straight away, e.g. by a SceneCheckpointer. Each
+ * object's saved values are set straight from the file's bytes, and shared
+ * values, such as names and colours, are made once per file.
+ *
+ * Each object, and each of its components other than its Transform and
+ * Material, is made with its class's no-argument constructor (see
+ * SceneType), and given its saved state. When the object is added to a
+ * game, its start() method runs as usual, so it can set up anything not
+ * saved, such as audio clips; its record is then read again, so that
+ * whatever start() resets is restored, including the components start()
+ * attaches. The file's bytes are kept until then.
+ *
+ * Saved fields that the class no longer has, or now has with another type,
+ * are skipped; fields the class has gained keep the values the constructor
+ * gives them.
+ */
+public class SceneReader implements Closeable {
+	private final ByteBuffer _data;
+	private ByteBuffer _in;
+	private final int _version;
+	private final long _tick;
+	private final int _width;
+	private final int _height;
+
+	private final List<SavedType> _types = new ArrayList<SavedType>();
+	private final List<String> _strings = new ArrayList<String>();
+	private final Map<Integer,Color> _colors = new HashMap<Integer,Color>();
+	private long _objects = 0;
+	private boolean _ended = false;
+
+	// Reads records again, to restore objects once they have started
+	private ByteBuffer _restoreBuffer = null;
+
+	/**
+	 * A type record: the class, and where each saved field goes in it.
+	 */
+	private static class SavedType {
+		SceneType type;
+		int[] kinds;			// kind of each saved field
+		Field[] fields;			// the field each saved field goes in, or null
+	}
+
+	/**
+	 * Where an object's record is, so that it can be read again once the object
+	 * has started.
+	 */
+	static class SavedState {
+		private final SceneReader _reader;
+		private final int _position;
+
+		SavedState(SceneReader reader, int position) {
+			_reader = reader;
+			_position = position;
+		}
+
+		void apply(GameObject g) {
+			_reader.restore(_position, g);
+		}
+	}
+
+	/**
+	 * Opens a scene file.
+	 * @param fileName
+	 * @throws IOException if the file cannot be read, or is not a scene file
+	 */
+	public SceneReader(String fileName) throws IOException {
+		try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				throw new IOException("scene file too large");
+			}
+			_data = ByteBuffer.allocate((int)size);
+			while(_data.hasRemaining() && channel.read(_data) >= 0) {}
+			_data.flip();
+		}
+		_in = _data.duplicate();
+		try {
+			if(_in.getInt() != SceneWriter.MAGIC) {
+				throw new IOException("not a scene file");
+			}
+			_version = _in.getShort();
+			if(_version < 1 || _version > SceneWriter.VERSION) {
+				throw new IOException("unsupported scene version " + _version);
+			}
+			_tick = _in.getLong();
+			_width = _in.getInt();
+			_height = _in.getInt();
+		} catch(BufferUnderflowException e) {
+			throw new EOFException("scene file ends early");
+		}
+	}
+
+	/**
+	 * Reads the next object.
+	 * @return the object, with its saved state, or null at the end of the scene
+	 * @throws IOException if the file is corrupt, or an object's class cannot
+	 * be found or made
+	 */
+	public GameObject next() throws IOException {
+		if(_ended || _in == null) {
+			return null;
+		}
+		try {
+			while(true) {
+				int record = _in.get();
+				if(record == SceneWriter.END) {
+					if(_in.getLong() != _objects) {
+						throw new IOException("scene file is corrupt");
+					}
+					_ended = true;
+					return null;
+				} else if(record == SceneWriter.TYPE) {
+					readType();
+				} else if(record == SceneWriter.OBJECT) {
+					return readObject();
+				} else {
+					throw new IOException("scene file is corrupt");
+				}
+			}
+		} catch(BufferUnderflowException e) {
+			throw new EOFException("scene file ends early");
+		}
+	}
+
+	/**
+	 * Reads all the remaining objects.
+	 * @return
+	 * @throws IOException
+	 */
+	public List<GameObject> readAll() throws IOException {
+		List<GameObject> objects = new ArrayList<GameObject>();
+		for(GameObject g = next(); g != null; g = next()) {
+			objects.add(g);
+		}
+		return objects;
+	}
+
+	private void readType() throws IOException {
+		String className = readString(_in, true);
+		Class<?> c;
+		try {
+			// Not initialised until its type has been checked, and an instance
+			// is made
+			c = Class.forName(className, false, SceneReader.class.getClassLoader());
+		} catch(ClassNotFoundException e) {
+			throw new IOException("unknown object type " + className);
+		}
+		if(!GameObject.class.isAssignableFrom(c) && !Component.class.isAssignableFrom(c)) {
+			throw new IOException("not a game object or component type: " + className);
+		}
+		SavedType saved = new SavedType();
+		saved.type = SceneType.of(c);
+		int count = readVarInt(_in);
+		saved.kinds = new int[count];
+		saved.fields = new Field[count];
+		for(int i = 0; i < count; i++) {
+			String name = readString(_in, true);
+			saved.kinds[i] = _in.get();
+			int index = saved.type.fieldIndex(name, saved.kinds[i]);
+			saved.fields[i] = index >= 0 ? saved.type.fields[index] : null;
+		}
+		_types.add(saved);
+	}
+
+	private GameObject readObject() throws IOException {
+		int position = _in.position();
+		int typeIndex = readVarInt(_in);
+		if(typeIndex >= _types.size()) {
+			throw new IOException("scene file is corrupt");
+		}
+		SavedType type = _types.get(typeIndex);
+		if(type.type.isComponent) {
+			throw new IOException("scene file is corrupt");
+		}
+		GameObject g = (GameObject)newInstance(type);
+		readState(_in, type, g, true);
+		g.savedState = new SavedState(this, position);
+		_objects++;
+		return g;
+	}
+
+	private static Object newInstance(SavedType type) throws IOException {
+		try {
+			return type.type.newInstance();
+		} catch(NoSuchMethodException e) {
+			throw new IOException(type.type.type.getName() + " has no no-argument constructor");
+		} catch(ReflectiveOperationException | RuntimeException | LinkageError e) {
+			throw new IOException("cannot make " + type.type.type.getName() + ": " + e);
+		}
+	}
+
+	/**
+	 * Reads an object's record again, from after the record type, and applies
+	 * it to the object. Called on the game's thread, once the object has
+	 * started.
+	 */
+	private synchronized void restore(int position, GameObject g) {
+		if(_restoreBuffer == null) {
+			_restoreBuffer = _data.duplicate();
+		}
+		ByteBuffer in = _restoreBuffer;
+		in.position(position);
+		try {
+			readState(in, _types.get(readVarInt(in)), g, false);
+		} catch(IOException | RuntimeException e) {
+			// The record was read once already, so this should not happen
+			System.out.println("load scene error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads an object's state into it: its saved fields, then the rest, so that
+	 * the Transform and Material win if a field shares them.
+	 * @param define true the first time the record is read, when strings first
+	 * written in it are added to the string table
+	 */
+	private void readState(ByteBuffer in, SavedType type, GameObject g, boolean define) throws IOException {
+		String name = readString(in, define);
+		String tag = readString(in, define);
+		int layer = in.get();
+		int bodyType = in.get();
+		if(layer < 0 || layer >= CollisionLayers.LAYER_COUNT
+				|| bodyType < 0 || bodyType >= BodyType.values().length) {
+			throw new IOException("scene file is corrupt");
+		}
+		float x = in.getFloat();
+		float y = in.getFloat();
+		float width = in.getFloat();
+		float height = in.getFloat();
+		float depth = in.getFloat();
+		int flags = in.get();
+		int color = in.getInt();
+		String sprite = readString(in, define);
+
+		try {
+			readFields(in, type, g, define);
+			int componentCount = _version >= 2 ? readVarInt(in) : 0;
+			for(int k = 0; k < componentCount; k++) {
+				readComponent(in, g, define);
+			}
+		} catch(IllegalAccessException e) {
+			throw new IOException("cannot load " + type.type.type.getName() + ": " + e.getMessage());
+		}
+
+		g.name = name;
+		g.tag = tag == null ? Tags.UNTAGGED : Tags.intern(tag);
+		g.layer = layer;
+		g.bodyType = BodyType.values()[bodyType];
+		Transform t = g.transform;
+		t.position.x = x;
+		t.position.y = y;
+		t.previousPosition.x = x;
+		t.previousPosition.y = y;
+		t.size.x = width;
+		t.size.y = height;
+		t.depth = depth;
+		Material m = g.material;
+		m.isVisible = (flags & SceneWriter.VISIBLE) != 0;
+		m.color = (flags & SceneWriter.HAS_COLOR) != 0 ? color(color) : null;
+		if(sprite == null || m.getSprite() == null || !sprite.equals(m.getSprite().getName())) {
+			m.setSprite(sprite);
+		}
+	}
+
+	private void readFields(ByteBuffer in, SavedType type, Object target, boolean define)
+			throws IOException, IllegalAccessException {
+		for(int i = 0; i < type.kinds.length; i++) {
+			readField(in, type.kinds[i], type.fields[i], target, define);
+		}
+	}
+
+	/**
+	 * Reads one of an object's components into it. The first time, the
+	 * component is made and attached; when the record is read again, the
+	 * values go in the object's component of that class, which start() may
+	 * have replaced, or a new one if start() removed it.
+	 */
+	private void readComponent(ByteBuffer in, GameObject g, boolean define) throws IOException, IllegalAccessException {
+		int typeIndex = readVarInt(in);
+		if(typeIndex >= _types.size() || !_types.get(typeIndex).type.isComponent) {
+			throw new IOException("scene file is corrupt");
+		}
+		SavedType type = _types.get(typeIndex);
+		Class<? extends Component> componentClass = type.type.type.asSubclass(Component.class);
+		Component component = define ? null : g.getComponent(componentClass);
+		if(component == null) {
+			component = (Component)newInstance(type);
+		}
+		readFields(in, type, component, define);
+		if(component.gameObject != g) {
+			g.addComponent(component);
+		}
+	}
+
+	/**
+	 * Reads a field's value, setting it in the target unless the field is null.
+	 */
+	private void readField(ByteBuffer in, int kind, Field field, Object g, boolean define)
+			throws IOException, IllegalAccessException {
+		switch(kind) {
+		case SceneType.BOOLEAN: {
+			boolean value = in.get() != 0;
+			if(field != null) {
+				field.setBoolean(g, value);
+			}
+			break;
+		}
+		case SceneType.BYTE: {
+			byte value = in.get();
+			if(field != null) {
+				field.setByte(g, value);
+			}
+			break;
+		}
+		case SceneType.SHORT: {
+			short value = in.getShort();
+			if(field != null) {
+				field.setShort(g, value);
+			}
+			break;
+		}
+		case SceneType.CHAR: {
+			char value = in.getChar();
+			if(field != null) {
+				field.setChar(g, value);
+			}
+			break;
+		}
+		case SceneType.INT: {
+			int value = in.getInt();
+			if(field != null) {
+				field.setInt(g, value);
+			}
+			break;
+		}
+		case SceneType.LONG: {
+			long value = in.getLong();
+			if(field != null) {
+				field.setLong(g, value);
+			}
+			break;
+		}
+		case SceneType.FLOAT: {
+			float value = in.getFloat();
+			if(field != null) {
+				field.setFloat(g, value);
+			}
+			break;
+		}
+		case SceneType.DOUBLE: {
+			double value = in.getDouble();
+			if(field != null) {
+				field.setDouble(g, value);
+			}
+			break;
+		}
+		case SceneType.STRING: {
+			String value = readString(in, define);
+			if(field != null) {
+				field.set(g, value);
+			}
+			break;
+		}
+		case SceneType.ENUM: {
+			String value = readString(in, define);
+			if(field != null) {
+				field.set(g, value == null ? null : enumValue(field.getType(), value, field.get(g)));
+			}
+			break;
+		}
+		case SceneType.VECTOR2: {
+			// A new vector each time, since start() may have shared the last one
+			Vector2 value = in.get() == 0 ? null : new Vector2(in.getFloat(), in.getFloat());
+			if(field != null) {
+				field.set(g, value);
+			}
+			break;
+		}
+		case SceneType.COLOR: {
+			Color value = in.get() == 0 ? null : color(in.getInt());
+			if(field != null) {
+				field.set(g, value);
+			}
+			break;
+		}
+		default:
+			throw new IOException("scene file is corrupt");
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object enumValue(Class<?> type, String name, Object current) {
+		try {
+			return Enum.valueOf((Class<? extends Enum>)type, name);
+		} catch(IllegalArgumentException e) {
+			// No longer a value of the enum; keep the constructor's value
+			return current;
+		}
+	}
+
+	private Color color(int argb) {
+		Color color = _colors.get(argb);
+		if(color == null) {
+			color = new Color(argb, true);
+			_colors.put(argb, color);
+		}
+		return color;
+	}
+
+	/**
+	 * Reads a string, or a reference to one read earlier; see SceneWriter.
+	 */
+	private String readString(ByteBuffer in, boolean define) throws IOException {
+		int index = readVarInt(in);
+		if(index == 0) {
+			return null;
+		}
+		if(index > 1) {
+			if(index - 2 >= _strings.size()) {
+				throw new IOException("scene file is corrupt");
+			}
+			return _strings.get(index - 2);
+		}
+		int length = readVarInt(in);
+		if(length < 0 || length > in.remaining()) {
+			throw new EOFException("scene file ends early");
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		String value = new String(bytes, StandardCharsets.UTF_8);
+		if(define) {
+			_strings.add(value);
+		}
+		return value;
+	}
+
+	private static int readVarInt(ByteBuffer in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("scene file is corrupt");
+	}
+
+	/**
+	 * Returns the tick count of the game when the scene was saved.
+	 * @return
+	 */
+	public long getTick() {
+		return _tick;
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	/**
+	 * Returns the number of objects read so far.
+	 * @return
+	 */
+	public long getObjectCount() {
+		return _objects;
+	}
+
+	/**
+	 * Stops reading. Objects already read keep the mapping until they have
+	 * started.
+	 */
+	public void close() {
+		_in = null;
+	}
+}
@@ -0,0 +1,142 @@
+package uEngine;
+
+import java.awt.Color;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * How a class of game object or component is saved in a scene file: the
+ * fields its own code declares, and how to make an instance of it when
+ * loading. The fields saved are the instance fields declared by the class and
+ * its superclasses below GameObject (or Component, or Transform or Material
+ * for their subclasses), except static, final and transient ones, that are
+ * primitives, Strings, enums, Vector2s or Colors. Other fields, such as
+ * references to other objects, are left as the constructor sets them. Where
+ * a class declares a field with the same name as a superclass, only the
+ * subclass's field is saved.
+ *
+ * To be loaded, a class needs a no-argument constructor, which may be
+ * private; the saved values then replace whatever it sets up.
+ */
+class SceneType {
+	// Kinds of saved field
+	static final int BOOLEAN = 1;
+	static final int BYTE = 2;
+	static final int SHORT = 3;
+	static final int CHAR = 4;
+	static final int INT = 5;
+	static final int LONG = 6;
+	static final int FLOAT = 7;
+	static final int DOUBLE = 8;
+	static final int STRING = 9;
+	static final int ENUM = 10;
+	static final int VECTOR2 = 11;
+	static final int COLOR = 12;
+
+	private static final Map<Class<?>,Integer> _kinds = new HashMap<Class<?>,Integer>();
+	static {
+		_kinds.put(boolean.class, BOOLEAN);
+		_kinds.put(byte.class, BYTE);
+		_kinds.put(short.class, SHORT);
+		_kinds.put(char.class, CHAR);
+		_kinds.put(int.class, INT);
+		_kinds.put(long.class, LONG);
+		_kinds.put(float.class, FLOAT);
+		_kinds.put(double.class, DOUBLE);
+		_kinds.put(String.class, STRING);
+		_kinds.put(Vector2.class, VECTOR2);
+		_kinds.put(Color.class, COLOR);
+	}
+
+	private static final ClassValue<SceneType> _types = new ClassValue<SceneType>() {
+		protected SceneType computeValue(Class<?> type) {
+			return new SceneType(type);
+		}
+	};
+
+	final Class<?> type;
+	final boolean isComponent;
+	final Field[] fields;
+	final int[] kinds;
+	private final Map<String,Integer> _fieldIndex = new HashMap<String,Integer>();
+	private Constructor<?> _constructor;
+
+	/**
+	 * Returns how a class of game object or component is saved.
+	 */
+	static SceneType of(Class<?> type) {
+		return _types.get(type);
+	}
+
+	private SceneType(Class<?> type) {
+		this.type = type;
+		Class<?> base;
+		if(GameObject.class.isAssignableFrom(type)) {
+			base = GameObject.class;
+		} else if(Transform.class.isAssignableFrom(type)) {
+			base = Transform.class;
+		} else if(Material.class.isAssignableFrom(type)) {
+			base = Material.class;
+		} else if(Component.class.isAssignableFrom(type)) {
+			base = Component.class;
+		} else {
+			throw new IllegalArgumentException("not a game object or component: " + type.getName());
+		}
+		isComponent = base != GameObject.class;
+		List<Field> fields = new ArrayList<Field>();
+		List<Integer> kinds = new ArrayList<Integer>();
+		for(Class<?> c = type; c != base; c = c.getSuperclass()) {
+			for(Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				int kind = kindOf(field.getType());
+				if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || Modifier.isFinal(modifiers)
+						|| field.isSynthetic()
+						|| kind == 0 || _fieldIndex.containsKey(field.getName())) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+				} catch(RuntimeException e) {
+					continue;
+				}
+				_fieldIndex.put(field.getName(), fields.size());
+				fields.add(field);
+				kinds.add(kind);
+			}
+		}
+		this.fields = fields.toArray(new Field[fields.size()]);
+		this.kinds = new int[kinds.size()];
+		for(int i = 0; i < this.kinds.length; i++) {
+			this.kinds[i] = kinds.get(i);
+		}
+	}
+
+	private static int kindOf(Class<?> type) {
+		if(type.isEnum()) {
+			return ENUM;
+		}
+		Integer kind = _kinds.get(type);
+		return kind == null ? 0 : kind;
+	}
+
+	/**
+	 * Returns the index of the saved field with the given name and kind, or -1.
+	 */
+	int fieldIndex(String name, int kind) {
+		Integer i = _fieldIndex.get(name);
+		return i != null && kinds[i] == kind ? i : -1;
+	}
+
+	/**
+	 * Makes an instance with the class's no-argument constructor, which may be
+	 * private.
+	 */
+	Object newInstance() throws ReflectiveOperationException {
+		if(_constructor == null) {
+			Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			_constructor = constructor;
+		}
+		return _constructor.newInstance();
+	}
+}
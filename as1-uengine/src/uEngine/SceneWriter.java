@@ -0,0 +1,372 @@
+package uEngine;
+
+import java.awt.Color;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Saves game objects to a scene file, which SceneReader loads. Objects are
+ * written one at a time, as they are given, so a scene of any size can be
+ * saved without building a copy of it in memory.
+ *
+ * After a header (the version, the game's tick count and size), the file is a
+ * stream of records. The first time an object or component of a class is
+ * written, a type record gives the class's name and the names and kinds of
+ * its saved fields (see SceneType). Each object record then gives the
+ * object's type, its name, tag, layer and body type, its Transform and
+ * Material, the values of its saved fields, in the order of its type record,
+ * and its other components, each as its type and the values of its saved
+ * fields. Subclasses of Transform and Material with fields of their own
+ * cannot be saved. An end record, with
+ * the number of objects, closes the file. Loading matches fields by name, so
+ * scenes saved before a class gained or lost a field can still be loaded.
+ *
+ * Numbers are written in full, most significant byte first, so they can be
+ * read straight from the file's bytes; counts and string lengths are written as
+ * variable length ints. Each distinct string (a name, tag, sprite or field
+ * value) is written once, and referred to by its index after that.
+ */
+public class SceneWriter implements Closeable {
+	static final int MAGIC = 0x75455343; // "uESC"
+	// Version 2 added components
+	static final int VERSION = 2;
+
+	// Record types
+	static final int END = 0;
+	static final int TYPE = 1;
+	static final int OBJECT = 2;
+
+	// Bits of an object's flags
+	static final int VISIBLE = 1;
+	static final int HAS_COLOR = 2;
+
+	// Bytes gathered before they are written to the stream
+	private static final int FLUSH_SIZE = 65536;
+
+	private final OutputStream _out;
+	private byte[] _buffer = new byte[FLUSH_SIZE];
+	private int _length = 0;
+
+	// Index of each type and string written so far
+	private final Map<SceneType,Integer> _types = new HashMap<SceneType,Integer>();
+	private final Map<String,Integer> _strings = new HashMap<String,Integer>();
+	private long _objects = 0;
+	private boolean _finished = false;
+
+	/**
+	 * Starts a scene file.
+	 * @param fileName
+	 * @param tick the game's tick count, see Game.getTickCount()
+	 * @param width the game's width
+	 * @param height the game's height
+	 * @throws IOException
+	 */
+	public SceneWriter(String fileName, long tick, int width, int height) throws IOException {
+		this(new FileOutputStream(fileName), tick, width, height);
+	}
+
+	public SceneWriter(OutputStream out, long tick, int width, int height) throws IOException {
+		_out = out;
+		writeHeader(tick, width, height);
+	}
+
+	/**
+	 * Creates a writer that gathers a whole scene in memory, to be written out
+	 * later with writeTo; see SceneCheckpointer. Each scene starts with reset.
+	 */
+	SceneWriter() {
+		_out = null;
+	}
+
+	/**
+	 * Starts a new scene in memory, reusing the buffer.
+	 */
+	void reset(long tick, int width, int height) {
+		_length = 0;
+		_types.clear();
+		_strings.clear();
+		_objects = 0;
+		_finished = false;
+		writeHeader(tick, width, height);
+	}
+
+	private void writeHeader(long tick, int width, int height) {
+		writeInt(MAGIC);
+		writeShort(VERSION);
+		writeLong(tick);
+		writeInt(width);
+		writeInt(height);
+	}
+
+	/**
+	 * Writes an object.
+	 * @param g
+	 * @throws IOException
+	 */
+	public void write(GameObject g) throws IOException {
+		if(_finished) {
+			throw new IOException("scene already finished");
+		}
+		SceneType type = SceneType.of(g.getClass());
+		if(SceneType.of(g.transform.getClass()).fields.length > 0
+				|| SceneType.of(g.material.getClass()).fields.length > 0) {
+			throw new IOException("cannot save " + g.getClass().getName()
+					+ ": its Transform or Material has fields of its own");
+		}
+
+		// Type records go before the object record that uses them
+		int index = typeIndex(type);
+		Component[] components = g.components;
+		int componentCount = 0;
+		for(int id = 0; id < components.length; id++) {
+			if(components[id] != null && id != Component.TRANSFORM && id != Component.MATERIAL) {
+				typeIndex(SceneType.of(components[id].getClass()));
+				componentCount++;
+			}
+		}
+
+		ensureCapacity(1 + 5);
+		_buffer[_length++] = OBJECT;
+		writeVarInt(index);
+		writeString(g.name);
+		writeString(g.tag == Tags.UNTAGGED ? null : Tags.name(g.tag));
+		ensureCapacity(2);
+		_buffer[_length++] = (byte)g.layer;
+		_buffer[_length++] = (byte)g.bodyType.ordinal();
+
+		Transform t = g.transform;
+		writeFloat(t.position.x);
+		writeFloat(t.position.y);
+		writeFloat(t.size.x);
+		writeFloat(t.size.y);
+		writeFloat(t.depth);
+
+		Material m = g.material;
+		ensureCapacity(1);
+		_buffer[_length++] = (byte)((m.isVisible ? VISIBLE : 0) | (m.color != null ? HAS_COLOR : 0));
+		writeInt(m.color != null ? m.color.getRGB() : 0);
+		writeString(m.getSprite() != null ? m.getSprite().getName() : null);
+
+		try {
+			writeFields(type, g);
+			writeVarInt(componentCount);
+			for(int id = 0; id < components.length; id++) {
+				if(components[id] != null && id != Component.TRANSFORM && id != Component.MATERIAL) {
+					SceneType componentType = SceneType.of(components[id].getClass());
+					writeVarInt(_types.get(componentType));
+					writeFields(componentType, components[id]);
+				}
+			}
+		} catch(IllegalAccessException e) {
+			throw new IOException("cannot save " + type.type.getName() + ": " + e.getMessage());
+		}
+		_objects++;
+
+		if(_out != null && _length >= FLUSH_SIZE) {
+			flushBuffer();
+		}
+	}
+
+	/**
+	 * Returns the index of a type, writing its type record the first time.
+	 */
+	private int typeIndex(SceneType type) {
+		Integer index = _types.get(type);
+		if(index == null) {
+			index = _types.size();
+			_types.put(type, index);
+			writeType(type);
+		}
+		return index;
+	}
+
+	private void writeFields(SceneType type, Object target) throws IllegalAccessException {
+		for(int i = 0; i < type.fields.length; i++) {
+			writeField(type.fields[i], type.kinds[i], target);
+		}
+	}
+
+	private void writeType(SceneType type) {
+		ensureCapacity(1);
+		_buffer[_length++] = TYPE;
+		writeString(type.type.getName());
+		writeVarInt(type.fields.length);
+		for(int i = 0; i < type.fields.length; i++) {
+			writeString(type.fields[i].getName());
+			ensureCapacity(1);
+			_buffer[_length++] = (byte)type.kinds[i];
+		}
+	}
+
+	private void writeField(Field field, int kind, Object g) throws IllegalAccessException {
+		ensureCapacity(9);
+		switch(kind) {
+		case SceneType.BOOLEAN:
+			_buffer[_length++] = (byte)(field.getBoolean(g) ? 1 : 0);
+			break;
+		case SceneType.BYTE:
+			_buffer[_length++] = field.getByte(g);
+			break;
+		case SceneType.SHORT:
+			writeShort(field.getShort(g));
+			break;
+		case SceneType.CHAR:
+			writeShort(field.getChar(g));
+			break;
+		case SceneType.INT:
+			writeInt(field.getInt(g));
+			break;
+		case SceneType.LONG:
+			writeLong(field.getLong(g));
+			break;
+		case SceneType.FLOAT:
+			writeFloat(field.getFloat(g));
+			break;
+		case SceneType.DOUBLE:
+			writeLong(Double.doubleToRawLongBits(field.getDouble(g)));
+			break;
+		case SceneType.STRING:
+			writeString((String)field.get(g));
+			break;
+		case SceneType.ENUM: {
+			Enum<?> value = (Enum<?>)field.get(g);
+			writeString(value == null ? null : value.name());
+			break;
+		}
+		case SceneType.VECTOR2: {
+			// A flag for null, then the components
+			Vector2 value = (Vector2)field.get(g);
+			_buffer[_length++] = (byte)(value == null ? 0 : 1);
+			if(value != null) {
+				writeFloat(value.x);
+				writeFloat(value.y);
+			}
+			break;
+		}
+		case SceneType.COLOR: {
+			Color value = (Color)field.get(g);
+			_buffer[_length++] = (byte)(value == null ? 0 : 1);
+			if(value != null) {
+				writeInt(value.getRGB());
+			}
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Writes the end record. Called by close.
+	 */
+	void finish() throws IOException {
+		if(!_finished) {
+			ensureCapacity(1);
+			_buffer[_length++] = END;
+			writeLong(_objects);
+			_finished = true;
+		}
+	}
+
+	/**
+	 * Writes the whole scene gathered in memory.
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		out.write(_buffer, 0, _length);
+	}
+
+	private void flushBuffer() throws IOException {
+		_out.write(_buffer, 0, _length);
+		_length = 0;
+	}
+
+	/**
+	 * Finishes the file, and closes the stream.
+	 */
+	public void close() throws IOException {
+		if(_out == null) {
+			return;
+		}
+		try {
+			finish();
+			flushBuffer();
+		} finally {
+			_out.close();
+		}
+	}
+
+	/**
+	 * Returns the number of objects written.
+	 * @return
+	 */
+	public long getObjectCount() {
+		return _objects;
+	}
+
+	/**
+	 * Returns the number of bytes gathered in memory, for a writer with no
+	 * stream.
+	 */
+	int size() {
+		return _length;
+	}
+
+	private void writeString(String value) {
+		// 0 for null, or the index of a string already written plus two, or 1
+		// followed by the length in bytes and the bytes of a new string
+		if(value == null) {
+			writeVarInt(0);
+			return;
+		}
+		Integer index = _strings.get(value);
+		if(index != null) {
+			writeVarInt(index + 2);
+			return;
+		}
+		_strings.put(value, _strings.size());
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(1);
+		writeVarInt(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, _buffer, _length, bytes.length);
+		_length += bytes.length;
+	}
+
+	private void writeFloat(float value) {
+		writeInt(Float.floatToRawIntBits(value));
+	}
+
+	private void writeShort(int value) {
+		ensureCapacity(2);
+		_buffer[_length++] = (byte)(value >>> 8);
+		_buffer[_length++] = (byte)value;
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		_buffer[_length++] = (byte)(value >>> 24);
+		_buffer[_length++] = (byte)(value >>> 16);
+		_buffer[_length++] = (byte)(value >>> 8);
+		_buffer[_length++] = (byte)value;
+	}
+
+	private void writeLong(long value) {
+		writeInt((int)(value >>> 32));
+		writeInt((int)value);
+	}
+
+	private void writeVarInt(int value) {
+		ensureCapacity(5);
+		while((value & ~0x7F) != 0) {
+			_buffer[_length++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		_buffer[_length++] = (byte)value;
+	}
+
+	private void ensureCapacity(int n) {
+		if(_length + n > _buffer.length) {
+			_buffer = Arrays.copyOf(_buffer, Math.max(_length + n, _buffer.length * 2));
+		}
+	}
+}
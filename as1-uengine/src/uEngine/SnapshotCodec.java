@@ -0,0 +1,353 @@
+package uEngine;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Encodes a WorldState as a snapshot: the difference between it and a
+ * baseline state the receiver already has, or the whole state if there is no
+ * baseline. A snapshot lists the handles of the objects removed since the
+ * baseline, then each object added or changed, with a bitmask of the fields
+ * that changed followed by their values. Objects that have not changed cost
+ * nothing, and objects that have only moved cost their handle, a mask byte
+ * and a position.
+ *
+ * Handles are written as the gap from the previous handle, and counts and
+ * gaps as variable length ints, so most take one byte. Floats are written in
+ * full, so a decoded state matches the encoded one exactly.
+ *
+ * The codec's buffer is reused, so an encoded snapshot is only valid until
+ * the next encode.
+ */
+class SnapshotCodec {
+	// Bits of a changed object's field mask
+	private static final int X = 1;
+	private static final int Y = 2;
+	private static final int WIDTH = 4;
+	private static final int HEIGHT = 8;
+	private static final int DEPTH = 16;
+	private static final int COLOR = 32;
+	private static final int FLAGS = 64;
+	private static final int SPRITE = 128;
+	private static final int ALL = 255;
+
+	// Fewest bytes an added object takes: its handle gap, mask, five floats,
+	// colour, flags and sprite name length
+	private static final int MIN_ADDED_SIZE = 1 + 1 + 5 * 4 + 4 + 1 + 1;
+
+	private byte[] _buffer = new byte[1024];
+	private int _length = 0;
+
+	// Sprite names, encoded once each
+	private final Map<String,byte[]> _spriteNames = new HashMap<String,byte[]>();
+
+	/**
+	 * Encodes the difference between two states.
+	 * @param baseline the state the receiver has, or null to encode the whole
+	 * state
+	 * @param state
+	 * @return the length of the snapshot, in getBuffer()
+	 */
+	int encode(WorldState baseline, WorldState state) {
+		_length = 0;
+		int baseCount = baseline == null ? 0 : baseline.count;
+		writeVarInt(state.count);
+
+		// Objects in the baseline but not in the state have been removed
+		int removed = 0;
+		for(int i = 0, j = 0; i < baseCount; i++) {
+			int handle = baseline.handle[i];
+			while(j < state.count && state.handle[j] < handle) {
+				j++;
+			}
+			if(j == state.count || state.handle[j] != handle) {
+				removed++;
+			}
+		}
+		writeVarInt(removed);
+		int previousHandle = 0;
+		for(int i = 0, j = 0; i < baseCount; i++) {
+			int handle = baseline.handle[i];
+			while(j < state.count && state.handle[j] < handle) {
+				j++;
+			}
+			if(j == state.count || state.handle[j] != handle) {
+				writeVarInt(handle - previousHandle);
+				previousHandle = handle;
+			}
+		}
+
+		// The count of changed objects is written once they are known
+		int countPosition = _length;
+		ensureCapacity(5);
+		_length += 5;
+		int changed = 0;
+		previousHandle = 0;
+		for(int j = 0, i = 0; j < state.count; j++) {
+			int handle = state.handle[j];
+			while(i < baseCount && baseline.handle[i] < handle) {
+				i++;
+			}
+			int mask = i < baseCount && baseline.handle[i] == handle ? changes(baseline, i, state, j) : ALL;
+			if(mask != 0) {
+				writeVarInt(handle - previousHandle);
+				previousHandle = handle;
+				writeFields(state, j, mask);
+				changed++;
+			}
+		}
+		// Padded to five bytes, so the position of what follows is unchanged
+		for(int k = 0; k < 4; k++) {
+			_buffer[countPosition + k] = (byte)((changed >>> (7 * k)) & 0x7F | 0x80);
+		}
+		_buffer[countPosition + 4] = (byte)(changed >>> 28);
+		return _length;
+	}
+
+	byte[] getBuffer() {
+		return _buffer;
+	}
+
+	/**
+	 * Returns the fields of object j of the state that differ from object i of
+	 * the baseline, as a mask.
+	 */
+	private static int changes(WorldState baseline, int i, WorldState state, int j) {
+		int mask = 0;
+		if(Float.floatToIntBits(baseline.x[i]) != Float.floatToIntBits(state.x[j])) {
+			mask |= X;
+		}
+		if(Float.floatToIntBits(baseline.y[i]) != Float.floatToIntBits(state.y[j])) {
+			mask |= Y;
+		}
+		if(Float.floatToIntBits(baseline.width[i]) != Float.floatToIntBits(state.width[j])) {
+			mask |= WIDTH;
+		}
+		if(Float.floatToIntBits(baseline.height[i]) != Float.floatToIntBits(state.height[j])) {
+			mask |= HEIGHT;
+		}
+		if(Float.floatToIntBits(baseline.depth[i]) != Float.floatToIntBits(state.depth[j])) {
+			mask |= DEPTH;
+		}
+		if(baseline.color[i] != state.color[j]) {
+			mask |= COLOR;
+		}
+		if(baseline.flags[i] != state.flags[j]) {
+			mask |= FLAGS;
+		}
+		if(!Objects.equals(baseline.sprite[i], state.sprite[j])) {
+			mask |= SPRITE;
+		}
+		return mask;
+	}
+
+	private void writeFields(WorldState state, int j, int mask) {
+		ensureCapacity(1 + 6 * 4 + 1);
+		_buffer[_length++] = (byte)mask;
+		if((mask & X) != 0) {
+			writeInt(Float.floatToIntBits(state.x[j]));
+		}
+		if((mask & Y) != 0) {
+			writeInt(Float.floatToIntBits(state.y[j]));
+		}
+		if((mask & WIDTH) != 0) {
+			writeInt(Float.floatToIntBits(state.width[j]));
+		}
+		if((mask & HEIGHT) != 0) {
+			writeInt(Float.floatToIntBits(state.height[j]));
+		}
+		if((mask & DEPTH) != 0) {
+			writeInt(Float.floatToIntBits(state.depth[j]));
+		}
+		if((mask & COLOR) != 0) {
+			writeInt(state.color[j]);
+		}
+		if((mask & FLAGS) != 0) {
+			_buffer[_length++] = (byte)state.flags[j];
+		}
+		if((mask & SPRITE) != 0) {
+			// The name's length plus one, or 0 for no sprite
+			String sprite = state.sprite[j];
+			if(sprite == null) {
+				writeVarInt(0);
+			} else {
+				byte[] name = _spriteNames.get(sprite);
+				if(name == null) {
+					name = sprite.getBytes(StandardCharsets.UTF_8);
+					_spriteNames.put(sprite, name);
+				}
+				writeVarInt(name.length + 1);
+				ensureCapacity(name.length);
+				System.arraycopy(name, 0, _buffer, _length, name.length);
+				_length += name.length;
+			}
+		}
+	}
+
+	private void writeInt(int value) {
+		_buffer[_length++] = (byte)(value >>> 24);
+		_buffer[_length++] = (byte)(value >>> 16);
+		_buffer[_length++] = (byte)(value >>> 8);
+		_buffer[_length++] = (byte)value;
+	}
+
+	private void writeVarInt(int value) {
+		ensureCapacity(5);
+		while((value & ~0x7F) != 0) {
+			_buffer[_length++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		_buffer[_length++] = (byte)value;
+	}
+
+	private void ensureCapacity(int n) {
+		if(_length + n > _buffer.length) {
+			_buffer = Arrays.copyOf(_buffer, Math.max(_length + n, _buffer.length * 2));
+		}
+	}
+
+	/**
+	 * Decodes a snapshot, applying it to its baseline.
+	 * @param in the snapshot
+	 * @param baseline the state it was encoded against, or null if it holds
+	 * the whole state
+	 * @param state receives the decoded state
+	 * @throws IOException if the snapshot is corrupt, or does not fit the
+	 * baseline
+	 */
+	static void decode(ByteBuffer in, WorldState baseline, WorldState state) throws IOException {
+		try {
+			int baseCount = baseline == null ? 0 : baseline.count;
+			int count = readVarInt(in);
+			int removedCount = readVarInt(in);
+			// Each object not in the baseline must be in the snapshot, so a
+			// count larger than that is corrupt, and is not allocated for
+			if(count < 0 || removedCount < 0 || removedCount > baseCount
+					|| count > baseCount + in.remaining() / MIN_ADDED_SIZE) {
+				throw new IOException("corrupt snapshot");
+			}
+			int[] removed = new int[removedCount];
+			int handle = 0;
+			for(int k = 0; k < removedCount; k++) {
+				handle += readVarInt(in);
+				removed[k] = handle;
+			}
+
+			// Merge the baseline, less the removed objects, with the changed ones
+			state.clear();
+			state.ensureCapacity(count);
+			int changedCount = readVarInt(in);
+			int i = 0, r = 0, n = 0;
+			handle = 0;
+			for(int k = 0; k < changedCount; k++) {
+				int gap = readVarInt(in);
+				if(gap <= 0 && k > 0) {
+					throw new IOException("corrupt snapshot");
+				}
+				handle += gap;
+				for(; i < baseCount && baseline.handle[i] < handle; i++) {
+					n = keep(baseline, i, removed, r, state, n, count);
+					r = skipRemoved(baseline.handle[i], removed, r);
+				}
+				if(n == count) {
+					throw new IOException("corrupt snapshot");
+				}
+				int mask = in.get() & 0xFF;
+				if(i < baseCount && baseline.handle[i] == handle) {
+					state.copy(n, baseline, i);
+					i++;
+				} else if(mask != ALL) {
+					throw new IOException("snapshot does not fit baseline");
+				}
+				state.handle[n] = handle;
+				readFields(in, state, n, mask);
+				n++;
+			}
+			for(; i < baseCount; i++) {
+				n = keep(baseline, i, removed, r, state, n, count);
+				r = skipRemoved(baseline.handle[i], removed, r);
+			}
+			if(n != count) {
+				throw new IOException("snapshot does not fit baseline");
+			}
+			state.count = n;
+		} catch(BufferUnderflowException e) {
+			throw new IOException("snapshot ends early");
+		}
+	}
+
+	/**
+	 * Copies object i of the baseline to object n of the state, unless it has
+	 * been removed, returning the next free object of the state.
+	 */
+	private static int keep(WorldState baseline, int i, int[] removed, int r,
+			WorldState state, int n, int count) throws IOException {
+		if(r < removed.length && removed[r] == baseline.handle[i]) {
+			return n;
+		}
+		if(n == count) {
+			throw new IOException("snapshot does not fit baseline");
+		}
+		state.copy(n, baseline, i);
+		return n + 1;
+	}
+
+	private static int skipRemoved(int handle, int[] removed, int r) {
+		while(r < removed.length && removed[r] <= handle) {
+			r++;
+		}
+		return r;
+	}
+
+	private static void readFields(ByteBuffer in, WorldState state, int n, int mask) throws IOException {
+		if((mask & X) != 0) {
+			state.x[n] = Float.intBitsToFloat(in.getInt());
+		}
+		if((mask & Y) != 0) {
+			state.y[n] = Float.intBitsToFloat(in.getInt());
+		}
+		if((mask & WIDTH) != 0) {
+			state.width[n] = Float.intBitsToFloat(in.getInt());
+		}
+		if((mask & HEIGHT) != 0) {
+			state.height[n] = Float.intBitsToFloat(in.getInt());
+		}
+		if((mask & DEPTH) != 0) {
+			state.depth[n] = Float.intBitsToFloat(in.getInt());
+		}
+		if((mask & COLOR) != 0) {
+			state.color[n] = in.getInt();
+		}
+		if((mask & FLAGS) != 0) {
+			state.flags[n] = in.get() & 0xFF;
+		}
+		if((mask & SPRITE) != 0) {
+			int length = readVarInt(in) - 1;
+			if(length < 0) {
+				state.sprite[n] = null;
+			} else {
+				if(length > in.remaining()) {
+					throw new IOException("snapshot ends early");
+				}
+				byte[] name = new byte[length];
+				in.get(name);
+				state.sprite[n] = new String(name, StandardCharsets.UTF_8);
+			}
+		}
+	}
+
+	private static int readVarInt(ByteBuffer in) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("corrupt snapshot");
+	}
+}
@@ -0,0 +1,376 @@
+package uEngine;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.*;
+
+/**
+ * Mixes any number of playing sounds into a single stream of audio, which is
+ * written to one sink (normally one SourceDataLine). This avoids the cost of
+ * a separate sound system Clip for every sound being played.
+ *
+ * Sounds are converted once to the mixer's format (16 bit stereo at 44.1kHz)
+ * and played by a fixed number of voices. Each voice has a gain and a
+ * priority; when all voices are busy, a new sound replaces the playing sound
+ * with the lowest priority, as long as that priority is not higher than its
+ * own, and is dropped otherwise. All buffers are allocated up front, so mixing
+ * creates no garbage.
+ *
+ * The mixer either runs on its own thread, started by start(), or is driven
+ * by calling mixBuffer() directly, e.g. to benchmark it.
+ */
+public class SoftwareMixer {
+	public static final float SAMPLE_RATE = 44100;
+	public static final int CHANNELS = 2;
+	public static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE, 16, CHANNELS, true, false);
+
+	public static final int DEFAULT_BUFFER_FRAMES = 512;
+	public static final int DEFAULT_MAX_VOICES = 16;
+
+	// Maximum number of play requests waiting for the next buffer to be mixed
+	private static final int MAX_PENDING_REQUESTS = 64;
+
+	private final AudioSink _sink;
+	private final int _bufferFrames;
+	private final int[] _mixBuffer;
+	private final byte[] _outputBuffer;
+	private final Voice[] _voices;
+	private long _voiceSequence = 0;
+
+	// Play requests, made by the game, waiting for the mixer. A circular buffer,
+	// guarded by the lock on this mixer.
+	private final short[][] _requestSamples = new short[MAX_PENDING_REQUESTS][];
+	private final float[] _requestGains = new float[MAX_PENDING_REQUESTS];
+	private final int[] _requestPriorities = new int[MAX_PENDING_REQUESTS];
+	private int _requestHead = 0;
+	private int _requestCount = 0;
+
+	private Thread _thread = null;
+	private volatile boolean _running = false;
+
+	// Statistics
+	private volatile long _buffersMixed = 0;
+	private volatile long _totalMixTime = 0;
+	private volatile long _maxMixTime = 0;
+	private volatile long _underruns = 0;
+	private volatile long _voicesStolen = 0;
+	private volatile long _soundsDropped = 0;
+
+	public SoftwareMixer(AudioSink sink) {
+		this(sink, DEFAULT_BUFFER_FRAMES, DEFAULT_MAX_VOICES);
+	}
+
+	/**
+	 * Creates a mixer.
+	 * @param sink where the mixed audio is written
+	 * @param bufferFrames the number of frames mixed at a time. Smaller buffers
+	 * reduce latency, but must be mixed more often.
+	 * @param maxVoices the maximum number of sounds that can play at once
+	 */
+	public SoftwareMixer(AudioSink sink, int bufferFrames, int maxVoices) {
+		if(bufferFrames <= 0 || maxVoices <= 0) {
+			throw new IllegalArgumentException("buffer frames and voices must be positive");
+		}
+		_sink = sink;
+		_bufferFrames = bufferFrames;
+		_mixBuffer = new int[bufferFrames * CHANNELS];
+		_outputBuffer = new byte[bufferFrames * CHANNELS * 2];
+		_voices = new Voice[maxVoices];
+		for(int i = 0; i < maxVoices; i++) {
+			_voices[i] = new Voice();
+		}
+	}
+
+	/**
+	 * Opens the sink, and starts mixing on a dedicated thread.
+	 */
+	public synchronized void start() throws Exception {
+		if(_thread != null) {
+			return;
+		}
+		open();
+		_running = true;
+		_thread = new Thread(new Runnable() {
+			public void run() {
+				while(_running) {
+					mixBuffer();
+				}
+			}
+		}, "uEngine-mixer");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Opens the sink without starting the mixing thread, for use when the
+	 * caller drives the mixer with mixBuffer().
+	 */
+	public void open() throws Exception {
+		_sink.open(FORMAT, _outputBuffer.length);
+	}
+
+	/**
+	 * Stops the mixing thread, and closes the sink.
+	 */
+	public void stop() throws InterruptedException {
+		Thread thread;
+		synchronized(this) {
+			thread = _thread;
+			_thread = null;
+			_running = false;
+		}
+		if(thread != null) {
+			thread.join();
+		}
+		_sink.close();
+	}
+
+	/**
+	 * Requests that a sound is played, starting with the next buffer mixed.
+	 * @param samples the sound, in the mixer's format (see toMixerFormat)
+	 * @param gain volume multiplier, 1 for the sound's own volume
+	 * @param priority sounds with higher priority may replace those with lower
+	 * priority when all voices are busy
+	 */
+	public synchronized void play(short[] samples, float gain, int priority) {
+		if(_requestCount == MAX_PENDING_REQUESTS) {
+			_soundsDropped++;
+			return;
+		}
+		int i = (_requestHead + _requestCount) % MAX_PENDING_REQUESTS;
+		_requestSamples[i] = samples;
+		_requestGains[i] = gain;
+		_requestPriorities[i] = priority;
+		_requestCount++;
+	}
+
+	/**
+	 * Mixes one buffer of audio from the playing sounds and writes it to the sink.
+	 */
+	public void mixBuffer() {
+		long startTime = System.nanoTime();
+
+		startRequestedVoices();
+
+		Arrays.fill(_mixBuffer, 0);
+		for(int v = 0; v < _voices.length; v++) {
+			Voice voice = _voices[v];
+			if(!voice.active) {
+				continue;
+			}
+			short[] samples = voice.samples;
+			int n = Math.min(_mixBuffer.length, samples.length - voice.position);
+			float gain = voice.gain;
+			for(int i = 0; i < n; i++) {
+				_mixBuffer[i] += (int)(samples[voice.position + i] * gain);
+			}
+			voice.position += n;
+			if(voice.position >= samples.length) {
+				voice.active = false;
+				voice.samples = null;
+			}
+		}
+
+		// Clamp to 16 bits, and convert to little endian bytes
+		for(int i = 0; i < _mixBuffer.length; i++) {
+			int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, _mixBuffer[i]));
+			_outputBuffer[i * 2] = (byte)sample;
+			_outputBuffer[i * 2 + 1] = (byte)(sample >> 8);
+		}
+
+		long mixTime = System.nanoTime() - startTime;
+		_buffersMixed++;
+		_totalMixTime += mixTime;
+		if(mixTime > _maxMixTime) {
+			_maxMixTime = mixTime;
+		}
+
+		if(_sink.write(_outputBuffer, _outputBuffer.length)) {
+			_underruns++;
+		}
+	}
+
+	private synchronized void startRequestedVoices() {
+		while(_requestCount > 0) {
+			int i = _requestHead;
+			startVoice(_requestSamples[i], _requestGains[i], _requestPriorities[i]);
+			_requestSamples[i] = null;
+			_requestHead = (_requestHead + 1) % MAX_PENDING_REQUESTS;
+			_requestCount--;
+		}
+	}
+
+	private void startVoice(short[] samples, float gain, int priority) {
+		// Use a free voice if there is one. Otherwise, pick the voice with the
+		// lowest priority, and of those the one that started first.
+		Voice voice = null;
+		Voice victim = null;
+		for(int v = 0; v < _voices.length; v++) {
+			Voice candidate = _voices[v];
+			if(!candidate.active) {
+				voice = candidate;
+				break;
+			}
+			if(victim == null || candidate.priority < victim.priority
+					|| (candidate.priority == victim.priority && candidate.sequence < victim.sequence)) {
+				victim = candidate;
+			}
+		}
+		if(voice == null) {
+			if(victim.priority > priority) {
+				_soundsDropped++;
+				return;
+			}
+			voice = victim;
+			_voicesStolen++;
+		}
+
+		voice.samples = samples;
+		voice.position = 0;
+		voice.gain = gain;
+		voice.priority = priority;
+		voice.sequence = ++_voiceSequence;
+		voice.active = true;
+	}
+
+	/**
+	 * Returns the number of sounds currently playing. Only accurate when
+	 * called from the mixing thread, or when the mixer is not running.
+	 * @return
+	 */
+	public int getActiveVoiceCount() {
+		int count = 0;
+		for(int v = 0; v < _voices.length; v++) {
+			if(_voices[v].active) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public long getBuffersMixed() {
+		return _buffersMixed;
+	}
+
+	/**
+	 * Returns the average time taken to mix one buffer, in nanoseconds.
+	 * @return
+	 */
+	public long getAverageMixTime() {
+		long buffers = _buffersMixed;
+		return buffers == 0 ? 0 : _totalMixTime / buffers;
+	}
+
+	/**
+	 * Returns the longest time taken to mix one buffer, in nanoseconds.
+	 * @return
+	 */
+	public long getMaxMixTime() {
+		return _maxMixTime;
+	}
+
+	/**
+	 * Returns the time one buffer takes to play, in nanoseconds. Mixing must
+	 * take less than this on average to avoid underruns.
+	 * @return
+	 */
+	public long getBufferDuration() {
+		return (long)(_bufferFrames * 1e9 / SAMPLE_RATE);
+	}
+
+	/**
+	 * Returns the number of times the sink ran out of audio to play.
+	 * @return
+	 */
+	public long getUnderruns() {
+		return _underruns;
+	}
+
+	/**
+	 * Returns the number of sounds cut short to make room for another.
+	 * @return
+	 */
+	public long getVoicesStolen() {
+		return _voicesStolen;
+	}
+
+	/**
+	 * Returns the number of sounds not played because no voice could be freed
+	 * for them, or too many were requested at once.
+	 * @return
+	 */
+	public long getSoundsDropped() {
+		return _soundsDropped;
+	}
+
+	/**
+	 * Converts PCM audio to the mixer's format: 16 bit signed stereo samples at
+	 * the mixer's sample rate. Mono audio is played on both channels.
+	 * @param format the format of the audio, which must be 8 or 16 bit PCM
+	 * @param data the audio
+	 * @return the converted samples, with channels interleaved
+	 */
+	public static short[] toMixerFormat(AudioFormat format, byte[] data) {
+		AudioFormat.Encoding encoding = format.getEncoding();
+		boolean signed = encoding.equals(AudioFormat.Encoding.PCM_SIGNED);
+		if(!signed && !encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED)) {
+			throw new IllegalArgumentException("unsupported encoding: " + encoding);
+		}
+		int bits = format.getSampleSizeInBits();
+		if(bits != 8 && bits != 16) {
+			throw new IllegalArgumentException("unsupported sample size: " + bits);
+		}
+
+		int channels = format.getChannels();
+		int frameSize = channels * bits / 8;
+		int frames = data.length / frameSize;
+		float rate = format.getSampleRate() > 0 ? format.getSampleRate() : SAMPLE_RATE;
+		int outputFrames = (int)((long)frames * SAMPLE_RATE / rate);
+
+		// Resample by linear interpolation between source frames
+		short[] result = new short[outputFrames * CHANNELS];
+		for(int j = 0; j < outputFrames; j++) {
+			double position = j * (double)rate / SAMPLE_RATE;
+			int i0 = Math.min((int)position, frames - 1);
+			int i1 = Math.min(i0 + 1, frames - 1);
+			float fraction = (float)(position - i0);
+			for(int c = 0; c < CHANNELS; c++) {
+				int channel = Math.min(c, channels - 1);
+				float s0 = sample(data, format, signed, i0 * frameSize, channel);
+				float s1 = sample(data, format, signed, i1 * frameSize, channel);
+				result[j * CHANNELS + c] = (short)(s0 + (s1 - s0) * fraction);
+			}
+		}
+		return result;
+	}
+
+	private static int sample(byte[] data, AudioFormat format, boolean signed, int frameOffset, int channel) {
+		if(format.getSampleSizeInBits() == 8) {
+			int b = data[frameOffset + channel];
+			int value = signed ? b : (b & 0xFF) - 128;
+			return value << 8;
+		}
+		int offset = frameOffset + channel * 2;
+		int lo, hi;
+		if(format.isBigEndian()) {
+			hi = data[offset];
+			lo = data[offset + 1] & 0xFF;
+		} else {
+			lo = data[offset] & 0xFF;
+			hi = data[offset + 1];
+		}
+		int value = (hi << 8) | lo;
+		return signed ? value : (value & 0xFFFF) - 32768;
+	}
+
+	/**
+	 * One sound being played by the mixer.
+	 */
+	class Voice {
+		boolean active = false;
+		short[] samples;
+		int position;	// next sample to mix
+		float gain;
+		int priority;
+		long sequence;	// order in which voices were started
+	}
+}
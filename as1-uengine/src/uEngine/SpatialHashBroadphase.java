@@ -0,0 +1,274 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Broadphase that bins game objects into a uniform grid of square cells, and
+ * only reports pairs of objects that share a cell. The grid is stored in a
+ * hash table keyed by cell coordinate, so the world does not need to be
+ * bounded. Cost scales with the number of objects and their near neighbours,
+ * rather than with the square of the number of objects.
+ *
+ * The cell size should be roughly the size of a typical game object. Objects
+ * a few cells across are inserted into every cell they cover. Objects that
+ * would cover more than MAX_CELLS_PER_OBJECT cells, such as a level's
+ * background, or that have no finite bounds, are not binned; they are kept
+ * in a list of their own and tested against every other object.
+ */
+public class SpatialHashBroadphase implements Broadphase {
+	public static final float DEFAULT_CELL_SIZE = 64;
+	public static final int MAX_CELLS_PER_OBJECT = 64;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private final float _cellSize;
+
+	// Open addressing hash table from cell coordinate to cell contents. A slot is
+	// only in use if it is stamped with the current frame number, so the table
+	// never needs to be cleared between frames, and cells are reused.
+	private long[] _keys = new long[INITIAL_CAPACITY];
+	private int[] _stamps = new int[INITIAL_CAPACITY];
+	private Cell[] _cells = new Cell[INITIAL_CAPACITY];
+	private int _size = 0;
+	private int _frame = 0;
+
+	// Cells in use this frame, in the order they were first used
+	private Cell[] _usedCells = new Cell[INITIAL_CAPACITY];
+
+	// Objects too large to bin this frame, and whether each object is one
+	private int[] _large = new int[16];
+	private int _largeCount = 0;
+	private boolean[] _isLarge = new boolean[INITIAL_CAPACITY];
+
+	// Bounds of each object this frame, indexed by position in the object list
+	private float[] _minX = new float[INITIAL_CAPACITY];
+	private float[] _minY = new float[INITIAL_CAPACITY];
+	private float[] _maxX = new float[INITIAL_CAPACITY];
+	private float[] _maxY = new float[INITIAL_CAPACITY];
+
+	// Layer of each object this frame as a single bit, and the layers it
+	// interacts with as a mask, so pairs can be rejected with one bit test
+	private int[] _layerBits = new int[INITIAL_CAPACITY];
+	private int[] _layerMasks = new int[INITIAL_CAPACITY];
+
+	public SpatialHashBroadphase() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	public SpatialHashBroadphase(float cellSize) {
+		if(cellSize <= 0) {
+			throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+		}
+		_cellSize = cellSize;
+	}
+
+	public float getCellSize() {
+		return _cellSize;
+	}
+
+	public void findPairs(List<GameObject> gameObjects, CollisionLayers layers, PairHandler handler) {
+		int n = gameObjects.size();
+
+		// Start a new frame. Incrementing the frame number invalidates all slots.
+		_frame++;
+		_size = 0;
+		_largeCount = 0;
+		ensureObjectCapacity(n);
+
+		// Insert each object into all the cells its bounds cover
+		for(int i = 0; i < n; i++) {
+			GameObject g = gameObjects.get(i);
+			_layerBits[i] = 1 << g.layer;
+			_layerMasks[i] = layers.getMask(g.layer);
+			if(_layerMasks[i] == 0) {
+				// Collides with nothing, so there is no need to bin it
+				continue;
+			}
+			
+			Transform t = g.transform;
+			_minX[i] = t.position.x;
+			_minY[i] = t.position.y;
+			_maxX[i] = t.position.x + t.size.x;
+			_maxY[i] = t.position.y + t.size.y;
+			if(g instanceof ContinuousCollision) {
+				// Cover the whole path swept during the step
+				_minX[i] = Math.min(_minX[i], t.previousPosition.x);
+				_minY[i] = Math.min(_minY[i], t.previousPosition.y);
+				_maxX[i] = Math.max(_maxX[i], t.previousPosition.x + t.size.x);
+				_maxY[i] = Math.max(_maxY[i], t.previousPosition.y + t.size.y);
+			}
+
+			int cx0 = cellCoord(_minX[i]), cx1 = cellCoord(_maxX[i]);
+			int cy0 = cellCoord(_minY[i]), cy1 = cellCoord(_maxY[i]);
+			_isLarge[i] = isLarge(cx0, cx1, cy0, cy1);
+			if(_isLarge[i]) {
+				if(_largeCount == _large.length) {
+					_large = Arrays.copyOf(_large, _largeCount * 2);
+				}
+				_large[_largeCount++] = i;
+				continue;
+			}
+			for(int cx = cx0; cx <= cx1; cx++) {
+				for(int cy = cy0; cy <= cy1; cy++) {
+					cellAt(cx, cy).add(i);
+				}
+			}
+		}
+
+		// Report overlapping pairs within each cell. A pair of objects may share
+		// several cells; to report it only once, we only report it from the cell
+		// that contains the minimum corner of the overlap of their bounds.
+		for(int c = 0; c < _size; c++) {
+			Cell cell = _usedCells[c];
+			for(int a = 0; a < cell.count; a++) {
+				int i = cell.items[a];
+				for(int b = a + 1; b < cell.count; b++) {
+					int j = cell.items[b];
+					if((_layerMasks[i] & _layerBits[j]) == 0) {
+						continue;
+					}
+					if(_minX[i] > _maxX[j] || _minX[j] > _maxX[i]
+							|| _minY[i] > _maxY[j] || _minY[j] > _maxY[i]) {
+						continue;
+					}
+					if(cellCoord(Math.max(_minX[i], _minX[j])) != cell.cx
+							|| cellCoord(Math.max(_minY[i], _minY[j])) != cell.cy) {
+						continue;
+					}
+					handler.candidatePair(gameObjects.get(i), gameObjects.get(j));
+				}
+			}
+		}
+
+		// Test each large object against every other, and each pair of large
+		// objects once
+		for(int a = 0; a < _largeCount; a++) {
+			int i = _large[a];
+			for(int j = 0; j < n; j++) {
+				if(j == i || _layerMasks[j] == 0 || (_layerMasks[i] & _layerBits[j]) == 0) {
+					continue;
+				}
+				if(j < i && _isLarge[j]) {
+					continue;
+				}
+				if(_minX[i] > _maxX[j] || _minX[j] > _maxX[i]
+						|| _minY[i] > _maxY[j] || _minY[j] > _maxY[i]) {
+					continue;
+				}
+				handler.candidatePair(gameObjects.get(i), gameObjects.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Returns true if bounds covering the given cells are too large to bin.
+	 * Bounds that are infinite, or too far out for a cell coordinate, always
+	 * are.
+	 */
+	private static boolean isLarge(int cx0, int cx1, int cy0, int cy1) {
+		if(cx0 == Integer.MIN_VALUE || cy0 == Integer.MIN_VALUE
+				|| cx1 == Integer.MAX_VALUE || cy1 == Integer.MAX_VALUE) {
+			return true;
+		}
+		return ((long)cx1 - cx0 + 1) * ((long)cy1 - cy0 + 1) > MAX_CELLS_PER_OBJECT;
+	}
+
+	private int cellCoord(float v) {
+		return (int)Math.floor(v / _cellSize);
+	}
+
+	private static int hash(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns the cell at the given coordinate, claiming an empty one if this
+	 * cell has not yet been used this frame.
+	 */
+	private Cell cellAt(int cx, int cy) {
+		long key = ((long)cx << 32) | (cy & 0xFFFFFFFFL);
+		int mask = _keys.length - 1;
+		int slot = hash(key, mask);
+		while(_stamps[slot] == _frame) {
+			if(_keys[slot] == key) {
+				return _cells[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		// Claim the slot, reusing any cell left over from a previous frame
+		if((_size + 1) * 2 > _keys.length) {
+			grow();
+			return cellAt(cx, cy);
+		}
+		Cell cell = _cells[slot];
+		if(cell == null) {
+			cell = new Cell();
+			_cells[slot] = cell;
+		}
+		cell.cx = cx;
+		cell.cy = cy;
+		cell.count = 0;
+		_keys[slot] = key;
+		_stamps[slot] = _frame;
+		_usedCells[_size++] = cell;
+		return cell;
+	}
+
+	private void grow() {
+		long[] oldKeys = _keys;
+		int[] oldStamps = _stamps;
+		Cell[] oldCells = _cells;
+
+		int capacity = oldKeys.length * 2;
+		_keys = new long[capacity];
+		_stamps = new int[capacity];
+		_cells = new Cell[capacity];
+		_usedCells = Arrays.copyOf(_usedCells, capacity);
+
+		int mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldStamps[i] != _frame) {
+				continue;
+			}
+			int slot = hash(oldKeys[i], mask);
+			while(_stamps[slot] == _frame) {
+				slot = (slot + 1) & mask;
+			}
+			_keys[slot] = oldKeys[i];
+			_stamps[slot] = _frame;
+			_cells[slot] = oldCells[i];
+		}
+	}
+
+	private void ensureObjectCapacity(int n) {
+		if(n > _minX.length) {
+			int capacity = Math.max(n, _minX.length * 2);
+			_minX = new float[capacity];
+			_minY = new float[capacity];
+			_maxX = new float[capacity];
+			_maxY = new float[capacity];
+			_layerBits = new int[capacity];
+			_layerMasks = new int[capacity];
+			_isLarge = new boolean[capacity];
+		}
+	}
+
+	/**
+	 * The indices of the game objects that overlap one grid cell.
+	 */
+	class Cell {
+		int cx;
+		int cy;
+		int[] items = new int[8];
+		int count;
+
+		void add(int item) {
+			if(count == items.length) {
+				items = Arrays.copyOf(items, count * 2);
+			}
+			items[count++] = item;
+		}
+	}
+}
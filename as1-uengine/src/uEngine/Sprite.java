@@ -0,0 +1,74 @@
+package uEngine;
+
+/**
+ * An image drawn in place of a game object's rectangle, stretched to the
+ * object's size. Sprites are loaded and shared by a SpriteCache, which packs
+ * them into atlases; a sprite is a region of one atlas.
+ */
+public final class Sprite {
+	private final String _name;
+	final SpriteAtlas atlas;
+
+	// The sprite's region of the atlas
+	final int x;
+	final int y;
+	final int width;
+	final int height;
+
+	// Number of game objects (and other users) holding on to the sprite. The
+	// cache only evicts sprites no one holds on to. Guarded by the cache.
+	int references = 0;
+
+	// Copies of the sprite scaled to other sizes, most recently used first.
+	// Guarded by the cache.
+	final Sprite[] scaledCopies = new Sprite[SpriteCache.MAX_SCALED_COPIES];
+
+	// For a scaled copy, the sprite it is a copy of, while that sprite keeps
+	// it. Otherwise, the size the sprite has lately been drawn at with no copy
+	// for it, and how many times in a row. Guarded by the cache.
+	Sprite scaledFrom;
+	int candidateWidth;
+	int candidateHeight;
+	int candidateMisses;
+
+	Sprite(String name, SpriteAtlas atlas, int x, int y, int width, int height) {
+		_name = name;
+		this.atlas = atlas;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	public String getName() {
+		return _name;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Notes that the sprite is in use, so that the cache keeps it.
+	 */
+	public void retain() {
+		atlas.cache.retain(this);
+	}
+
+	/**
+	 * Notes that a user of the sprite no longer needs it. A sprite that is
+	 * still drawn after its last release carries on working, but may no longer
+	 * be shared.
+	 */
+	public void release() {
+		atlas.cache.release(this);
+	}
+
+	public String toString() {
+		return _name + " (" + width + "x" + height + ")";
+	}
+}
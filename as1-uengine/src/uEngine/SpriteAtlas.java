@@ -0,0 +1,65 @@
+package uEngine;
+
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+/**
+ * One large image holding many sprites, so that drawing them all uses a single
+ * source image. Sprites are packed in shelves: rows filled left to right, each
+ * as tall as its tallest sprite. Space is never reused within an atlas; the
+ * cache drops whole atlases once none of their sprites are in use.
+ */
+class SpriteAtlas {
+	// Gap left around each sprite, so that scaled drawing does not pick up
+	// pixels of its neighbours
+	static final int PADDING = 1;
+
+	final SpriteCache cache;
+	final BufferedImage image;
+	final int id;
+	final List<Sprite> sprites = new ArrayList<Sprite>();
+
+	// Number of sprites with references, and when one was last used
+	int referencedSprites = 0;
+	long lastUsed = 0;
+
+	private int _shelfX = 0;
+	private int _shelfY = 0;
+	private int _shelfHeight = 0;
+
+	SpriteAtlas(SpriteCache cache, BufferedImage image, int id) {
+		this.cache = cache;
+		this.image = image;
+		this.id = id;
+	}
+
+	/**
+	 * Finds room for an image of the given size.
+	 * @return the position of the top left corner, packed as x << 32 | y, or
+	 * -1 if the atlas is full
+	 */
+	long allocate(int width, int height) {
+		int w = width + PADDING * 2;
+		int h = height + PADDING * 2;
+		if(w > image.getWidth() || h > image.getHeight()) {
+			return -1;
+		}
+		if(_shelfX + w > image.getWidth()) {
+			// Start a new shelf below the current one
+			_shelfY += _shelfHeight;
+			_shelfX = 0;
+			_shelfHeight = 0;
+		}
+		if(_shelfY + h > image.getHeight()) {
+			return -1;
+		}
+		long position = ((long)(_shelfX + PADDING) << 32) | (_shelfY + PADDING);
+		_shelfX += w;
+		_shelfHeight = Math.max(_shelfHeight, h);
+		return position;
+	}
+
+	long getMemory() {
+		return (long)image.getWidth() * image.getHeight() * 4;
+	}
+}
@@ -0,0 +1,367 @@
+package uEngine;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.*;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Loads sprites, and shares them, so that many objects showing the same image
+ * use one copy of it. Each image is read once, converted to the screen's own
+ * format (so that drawing it needs no conversion), and packed into an atlas
+ * with other sprites, so that objects drawn together mostly draw from the
+ * same image.
+ *
+ * Drawing an image at a different size is much slower than copying it, so the
+ * cache also keeps a few copies of each sprite already scaled to the sizes
+ * it is drawn at, in the same atlases. Once a sprite has its fill of copies,
+ * other sizes are drawn by scaling the sprite as it is drawn; a new size only
+ * replaces a copy after it has been drawn at for a while without the least
+ * recently used copy being drawn. So a sprite drawn at many sizes, or one
+ * being zoomed, does not make a new copy every frame.
+ *
+ * Game objects hold a reference to their material's sprite while they are in
+ * a game. Sprites no one holds on to stay cached, in case they are needed
+ * again, until the atlases use more memory than the cache's budget; then
+ * atlases with no sprites in use are dropped, least recently used first.
+ */
+public class SpriteCache {
+	public static final int DEFAULT_ATLAS_SIZE = 1024;
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024; // bytes
+	
+	// Scaled copies kept of each sprite, and the largest kept
+	static final int MAX_SCALED_COPIES = 4;
+	private static final int MAX_SCALED_AREA = 256 * 256;
+
+	// Times in a row a sprite must be drawn at a size it has no copy for,
+	// while its copies are full, before the size replaces one of them
+	private static final int SCALED_COPY_MISSES = 16;
+
+	private static SpriteCache _shared = null;
+
+	private final int _atlasSize;
+	private final long _memoryBudget;
+
+	private final Map<String,Sprite> _sprites = new HashMap<String,Sprite>();
+	private final List<SpriteAtlas> _atlases = new ArrayList<SpriteAtlas>();
+	private long _memory = 0;
+	private int _nextAtlasId = 1;
+	private long _uses = 0;
+	private long _evictions = 0;
+
+	/**
+	 * Returns the cache shared by all games in this process, used by
+	 * Material.setSprite.
+	 * @return
+	 */
+	public static synchronized SpriteCache getShared() {
+		if(_shared == null) {
+			_shared = new SpriteCache();
+		}
+		return _shared;
+	}
+
+	public SpriteCache() {
+		this(DEFAULT_ATLAS_SIZE, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * Creates a cache.
+	 * @param atlasSize the width and height of each atlas. Images larger than
+	 * this get an atlas of their own.
+	 * @param memoryBudget the memory, in bytes, the atlases may use before
+	 * unused ones are dropped
+	 */
+	public SpriteCache(int atlasSize, long memoryBudget) {
+		if(atlasSize <= 0) {
+			throw new IllegalArgumentException("atlas size must be positive");
+		}
+		_atlasSize = atlasSize;
+		_memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the sprite for an image file, reading it the first time.
+	 * @param fileName
+	 * @return the sprite, or null if the file could not be read
+	 */
+	public synchronized Sprite get(String fileName) {
+		Sprite sprite = _sprites.get(fileName);
+		if(sprite != null) {
+			sprite.atlas.lastUsed = ++_uses;
+			return sprite;
+		}
+
+		BufferedImage image;
+		try {
+			image = ImageIO.read(new java.io.File(fileName));
+		} catch (Exception e) {
+			System.out.println("load sprite error: " + e.getMessage() + " for " + fileName);
+			return null;
+		}
+		if(image == null) {
+			System.out.println("load sprite error: unknown image format for " + fileName);
+			return null;
+		}
+		return add(fileName, image);
+	}
+
+	/**
+	 * Adds an image made by the game, e.g. drawn at run time, as a sprite. If
+	 * a sprite with the name is already cached, that sprite is returned.
+	 * @param name
+	 * @param image
+	 * @return
+	 */
+	public synchronized Sprite add(String name, BufferedImage image) {
+		Sprite sprite = _sprites.get(name);
+		if(sprite != null) {
+			sprite.atlas.lastUsed = ++_uses;
+			return sprite;
+		}
+
+		sprite = pack(name, image);
+		_sprites.put(name, sprite);
+		return sprite;
+	}
+
+	/**
+	 * Copies an image into an atlas with room for it, starting a new atlas if
+	 * there is none.
+	 */
+	private Sprite pack(String name, BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		SpriteAtlas atlas = null;
+		long position = -1;
+		for(int i = 0; i < _atlases.size() && position < 0; i++) {
+			atlas = _atlases.get(i);
+			position = atlas.allocate(width, height);
+		}
+		if(position < 0) {
+			evict(width, height);
+			int size = Math.max(_atlasSize, Math.max(width, height) + SpriteAtlas.PADDING * 2);
+			atlas = new SpriteAtlas(this, createImage(size, size), _nextAtlasId++);
+			_atlases.add(atlas);
+			_memory += atlas.getMemory();
+			position = atlas.allocate(width, height);
+		}
+
+		// Drawing the image into the atlas converts it to the atlas's format
+		int x = (int)(position >>> 32);
+		int y = (int)position;
+		Graphics2D g = atlas.image.createGraphics();
+		try {
+			g.drawImage(image, x, y, null);
+		} finally {
+			g.dispose();
+		}
+
+		Sprite sprite = new Sprite(name, atlas, x, y, width, height);
+		atlas.sprites.add(sprite);
+		atlas.lastUsed = ++_uses;
+		return sprite;
+	}
+
+	/**
+	 * Returns a copy of a sprite scaled to the given size, making it if needed,
+	 * or the sprite itself, to be scaled as it is drawn, if it is already that
+	 * size, too large to copy, or the size has not yet earned a copy. The most
+	 * recently used copies are kept; each is held on to for as long as the
+	 * sprite it was made from is.
+	 */
+	synchronized Sprite scaled(Sprite sprite, int width, int height) {
+		if((sprite.width == width && sprite.height == height) || width <= 0 || height <= 0
+				|| (long)width * height > MAX_SCALED_AREA || sprite.atlas.cache != this) {
+			return sprite;
+		}
+		Sprite[] copies = sprite.scaledCopies;
+		for(int i = 0; i < copies.length; i++) {
+			Sprite copy = copies[i];
+			if(copy != null && copy.width == width && copy.height == height) {
+				if(i == copies.length - 1) {
+					// Every copy is still in use, so no size should replace one
+					sprite.candidateMisses = 0;
+				}
+				// Move to the front, so the least recently used is last
+				System.arraycopy(copies, 0, copies, 1, i);
+				copies[0] = copy;
+				return copy;
+			}
+		}
+
+		Sprite dropped = copies[copies.length - 1];
+		if(dropped != null) {
+			if(sprite.candidateWidth != width || sprite.candidateHeight != height) {
+				sprite.candidateWidth = width;
+				sprite.candidateHeight = height;
+				sprite.candidateMisses = 0;
+			}
+			if(++sprite.candidateMisses < SCALED_COPY_MISSES) {
+				return sprite;
+			}
+			sprite.candidateMisses = 0;
+		}
+
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(sprite.atlas.image, 0, 0, width, height,
+					sprite.x, sprite.y, sprite.x + sprite.width, sprite.y + sprite.height, null);
+		} finally {
+			g.dispose();
+		}
+		Sprite copy = pack(sprite.getName() + "@" + width + "x" + height, image);
+		copy.scaledFrom = sprite;
+
+		if(dropped != null) {
+			dropped.scaledFrom = null;
+			if(sprite.references > 0) {
+				unpin(dropped);
+			}
+		}
+		System.arraycopy(copies, 0, copies, 1, copies.length - 1);
+		copies[0] = copy;
+		if(sprite.references > 0) {
+			pin(copy);
+		}
+		return copy;
+	}
+
+	synchronized void retain(Sprite sprite) {
+		if(sprite.references == 0) {
+			for(Sprite copy : sprite.scaledCopies) {
+				if(copy != null) {
+					pin(copy);
+				}
+			}
+		}
+		pin(sprite);
+		sprite.atlas.lastUsed = ++_uses;
+	}
+
+	synchronized void release(Sprite sprite) {
+		if(sprite.references <= 0) {
+			throw new IllegalStateException("sprite released more often than retained: " + sprite);
+		}
+		unpin(sprite);
+		if(sprite.references == 0) {
+			for(Sprite copy : sprite.scaledCopies) {
+				if(copy != null) {
+					unpin(copy);
+				}
+			}
+		}
+	}
+
+	private static void pin(Sprite sprite) {
+		if(sprite.references++ == 0) {
+			sprite.atlas.referencedSprites++;
+		}
+	}
+
+	private static void unpin(Sprite sprite) {
+		if(--sprite.references == 0) {
+			sprite.atlas.referencedSprites--;
+		}
+	}
+
+	/**
+	 * Drops atlases with no sprites in use, least recently used first, until
+	 * there is room in the budget for a new atlas big enough for the given
+	 * size, or no more can be dropped.
+	 */
+	private void evict(int width, int height) {
+		int size = Math.max(_atlasSize, Math.max(width, height) + SpriteAtlas.PADDING * 2);
+		long needed = (long)size * size * 4;
+		while(_memory + needed > _memoryBudget) {
+			SpriteAtlas victim = null;
+			for(int i = 0; i < _atlases.size(); i++) {
+				SpriteAtlas atlas = _atlases.get(i);
+				if(atlas.referencedSprites == 0 && (victim == null || atlas.lastUsed < victim.lastUsed)) {
+					victim = atlas;
+				}
+			}
+			if(victim == null) {
+				return;
+			}
+			drop(victim);
+		}
+	}
+
+	/**
+	 * Drops all atlases with no sprites in use.
+	 */
+	public synchronized void evictUnused() {
+		for(int i = _atlases.size() - 1; i >= 0; i--) {
+			if(_atlases.get(i).referencedSprites == 0) {
+				drop(_atlases.get(i));
+			}
+		}
+	}
+
+	private void drop(SpriteAtlas atlas) {
+		for(int i = 0; i < atlas.sprites.size(); i++) {
+			Sprite sprite = atlas.sprites.get(i);
+			if(sprite.scaledFrom != null) {
+				// A scaled copy, which is not in the map; its sprite must stop
+				// holding on to it, or the atlas's image would stay reachable
+				removeScaledCopy(sprite.scaledFrom, sprite);
+			} else if(_sprites.get(sprite.getName()) == sprite) {
+				_sprites.remove(sprite.getName());
+			}
+		}
+		_atlases.remove(atlas);
+		_memory -= atlas.getMemory();
+		_evictions++;
+	}
+
+	private static void removeScaledCopy(Sprite sprite, Sprite copy) {
+		Sprite[] copies = sprite.scaledCopies;
+		for(int i = 0; i < copies.length; i++) {
+			if(copies[i] == copy) {
+				System.arraycopy(copies, i + 1, copies, i, copies.length - i - 1);
+				copies[copies.length - 1] = null;
+				break;
+			}
+		}
+		copy.scaledFrom = null;
+	}
+
+	private static BufferedImage createImage(int width, int height) {
+		if(!GraphicsEnvironment.isHeadless()) {
+			return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDefaultConfiguration().createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+
+	public synchronized int getSpriteCount() {
+		return _sprites.size();
+	}
+
+	public synchronized int getAtlasCount() {
+		return _atlases.size();
+	}
+
+	/**
+	 * Returns the memory used by the atlases, in bytes.
+	 * @return
+	 */
+	public synchronized long getMemoryUsed() {
+		return _memory;
+	}
+
+	/**
+	 * Returns the number of atlases dropped to stay within the budget.
+	 * @return
+	 */
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+}
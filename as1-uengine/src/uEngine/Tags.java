@@ -0,0 +1,57 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * Interns tag names as small integers, so that game code can tag objects
+ * (GameObject.tag) and compare tags as ints instead of comparing strings.
+ * The same name always gives the same tag, in every game in the process.
+ *
+ * Typical use is to intern each tag once, in a constant:
+ *
+ *     static final int WALL = Tags.intern("wall");
+ */
+public final class Tags {
+	public static final int UNTAGGED = 0;
+
+	private static final Map<String,Integer> _tags = new HashMap<String,Integer>();
+	private static final List<String> _names = new ArrayList<String>();
+
+	static {
+		_tags.put("", UNTAGGED);
+		_names.add("");
+	}
+
+	private Tags() {}
+
+	/**
+	 * Returns the tag with the given name, creating it if needed.
+	 * @param name
+	 * @return
+	 */
+	public static synchronized int intern(String name) {
+		Integer tag = _tags.get(name);
+		if(tag == null) {
+			tag = _names.size();
+			_tags.put(name, tag);
+			_names.add(name);
+		}
+		return tag;
+	}
+
+	/**
+	 * Returns true if the given int is a tag that has been interned.
+	 */
+	static synchronized boolean isInterned(int tag) {
+		return tag >= 0 && tag < _names.size();
+	}
+	
+	/**
+	 * Returns the name of a tag.
+	 * @param tag
+	 * @return
+	 */
+	public static synchronized String name(int tag) {
+		return _names.get(tag);
+	}
+}
@@ -3,10 +3,17 @@ package uEngine;
 public class Transform extends Component {
 	public Vector2 position;
 	public Vector2 size;
+	// Objects that are not static are drawn deepest first, so objects with a
+	// smaller depth appear in front
 	public float depth;
 	
+	// Position at the start of the most recent simulation step. Used by the
+	// renderer to interpolate between steps with a fixed timestep.
+	public Vector2 previousPosition;
+	
 	public Transform() {
 		position = new Vector2(0,0);
+		previousPosition = new Vector2(0,0);
 		size = new Vector2(20,20);
 		depth = 0;
 	}
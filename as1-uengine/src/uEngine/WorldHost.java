@@ -0,0 +1,207 @@
+package uEngine;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs many independent games ("worlds") in one process, sharing a fixed pool
+ * of worker threads. Each world is ticked at its own fixed rate, in real time.
+ * Worlds should be headless, so that each has its own input engine.
+ *
+ * Worlds waiting to be ticked are queued by the time their next tick is due,
+ * and workers always serve the most overdue world first. To stop one busy
+ * world starving the rest, each world has a tick budget: once a world has
+ * used its budget, it goes back in the queue behind the others, and any
+ * ticks it is still behind by are dropped, so it runs slower than real time
+ * rather than delaying other worlds.
+ */
+public class WorldHost {
+	public static final long DEFAULT_TICK_BUDGET = 2000000; // ns
+	public static final int DEFAULT_MAX_CATCH_UP_STEPS = 5;
+
+	private final DelayQueue<World> _queue = new DelayQueue<World>();
+	private final Thread[] _workers;
+	private volatile boolean _running = true;
+
+	/**
+	 * Creates a host with the given number of worker threads.
+	 * @param workerThreads
+	 */
+	public WorldHost(int workerThreads) {
+		_workers = new Thread[workerThreads];
+		for(int i = 0; i < workerThreads; i++) {
+			_workers[i] = new Thread(new Worker(), "uEngine-world-" + i);
+			_workers[i].setDaemon(true);
+			_workers[i].start();
+		}
+	}
+
+	/**
+	 * Starts running a game at the given tick rate, with the default budget.
+	 * @param game
+	 * @param ticksPerSecond
+	 * @return a handle on the running world
+	 */
+	public World addWorld(Game game, int ticksPerSecond) {
+		return addWorld(game, ticksPerSecond, DEFAULT_TICK_BUDGET);
+	}
+
+	/**
+	 * Starts running a game at the given tick rate.
+	 * @param game
+	 * @param ticksPerSecond
+	 * @param tickBudget the time, in nanoseconds, that the world may run for
+	 * each time it is scheduled before it must give way to other worlds
+	 * @return a handle on the running world
+	 */
+	public World addWorld(Game game, int ticksPerSecond, long tickBudget) {
+		if(ticksPerSecond <= 0) {
+			throw new IllegalArgumentException("tick rate must be positive");
+		}
+		World world = new World(game, ticksPerSecond, tickBudget);
+		_queue.add(world);
+		return world;
+	}
+
+	/**
+	 * Stops running a world. A tick in progress is completed.
+	 * @param world
+	 */
+	public void removeWorld(World world) {
+		world._removed = true;
+		_queue.remove(world);
+	}
+
+	/**
+	 * Stops all worlds, and waits for the worker threads to finish.
+	 */
+	public void shutdown() throws InterruptedException {
+		_running = false;
+		for(Thread worker : _workers) {
+			worker.interrupt();
+		}
+		for(Thread worker : _workers) {
+			worker.join();
+		}
+	}
+
+	class Worker implements Runnable {
+		public void run() {
+			while(_running) {
+				World world;
+				try {
+					world = _queue.take();
+				} catch(InterruptedException e) {
+					continue;
+				}
+
+				try {
+					world.run();
+				} catch(RuntimeException e) {
+					// A failing world must not take the worker down with it
+					System.out.println("world error: " + e);
+					world._removed = true;
+				}
+
+				if(!world._removed) {
+					_queue.add(world);
+					// Guard against the world being removed while we were running it
+					if(world._removed) {
+						_queue.remove(world);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A game being run by the host, with statistics on how well it keeps up.
+	 */
+	public static class World implements Delayed {
+		private final Game _game;
+		private final long _tickTime;
+		private final float _tickElapsedTime;
+		private final long _tickBudget;
+		private int _maxCatchUpSteps = DEFAULT_MAX_CATCH_UP_STEPS;
+
+		// Only accessed by the worker currently running this world. The queue
+		// provides the necessary happens-before ordering between workers.
+		private long _nextTickTime;
+
+		private volatile boolean _removed = false;
+		private volatile long _overrunCount = 0;
+		private volatile long _droppedTickCount = 0;
+
+		World(Game game, int ticksPerSecond, long tickBudget) {
+			_game = game;
+			_tickTime = 1000000000L / ticksPerSecond;
+			_tickElapsedTime = 1f / ticksPerSecond;
+			_tickBudget = tickBudget;
+			_nextTickTime = System.nanoTime();
+		}
+
+		/**
+		 * Runs the ticks that are due, within the budget.
+		 */
+		void run() {
+			_game.startGameObjects();
+
+			long startTime = System.nanoTime();
+			int steps = 0;
+			while(_nextTickTime - System.nanoTime() <= 0 && steps < _maxCatchUpSteps) {
+				_game.tick(_tickElapsedTime);
+				_nextTickTime += _tickTime;
+				steps++;
+
+				if(System.nanoTime() - startTime > _tickBudget) {
+					_overrunCount++;
+					break;
+				}
+			}
+
+			// If still behind, drop the missed ticks rather than falling further behind
+			long now = System.nanoTime();
+			if(_nextTickTime - now <= 0) {
+				long behind = (now - _nextTickTime) / _tickTime + 1;
+				_droppedTickCount += behind;
+				_nextTickTime += behind * _tickTime;
+			}
+		}
+
+		public Game getGame() {
+			return _game;
+		}
+
+		/**
+		 * Sets the maximum number of ticks run each time the world is scheduled.
+		 * @param maxCatchUpSteps
+		 */
+		public void setMaxCatchUpSteps(int maxCatchUpSteps) {
+			_maxCatchUpSteps = maxCatchUpSteps;
+		}
+
+		/**
+		 * Returns the number of times this world has exceeded its tick budget.
+		 * @return
+		 */
+		public long getOverrunCount() {
+			return _overrunCount;
+		}
+
+		/**
+		 * Returns the number of ticks skipped because this world fell behind.
+		 * @return
+		 */
+		public long getDroppedTickCount() {
+			return _droppedTickCount;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(_nextTickTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			long difference = _nextTickTime - ((World)other)._nextTickTime;
+			return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package uEngine;
+
+import java.util.*;
+
+/**
+ * The replicated state of every object in a game at one tick: its Transform
+ * and Material, keyed by its handle. Entities are sorted by handle, so that
+ * two states can be compared in one pass. The server keeps a state for each
+ * recent tick, to encode snapshots against; clients decode snapshots into
+ * states, and interpolate between them.
+ *
+ * States are reused, and only allocate when the number of entities grows
+ * beyond anything seen before.
+ */
+class WorldState {
+	// Bits of the flags field
+	static final int VISIBLE = 1;
+	static final int STATIC = 2;
+
+	int seq = -1;	// the server tick captured, or -1 if none
+	int count = 0;
+	int[] handle = new int[64];
+	float[] x = new float[64];
+	float[] y = new float[64];
+	float[] width = new float[64];
+	float[] height = new float[64];
+	float[] depth = new float[64];
+	int[] color = new int[64];
+	int[] flags = new int[64];
+	String[] sprite = new String[64];
+
+	// Used to sort captured entities by handle
+	private long[] _sortKeys = new long[0];
+	private WorldState _unsorted = null;
+
+	/**
+	 * Captures the state of the given game objects.
+	 */
+	void capture(List<GameObject> gameObjects, int seq) {
+		int n = gameObjects.size();
+		if(_unsorted == null) {
+			_unsorted = new WorldState();
+		}
+		WorldState u = _unsorted;
+		u.ensureCapacity(n);
+		ensureCapacity(n);
+		if(_sortKeys.length < n) {
+			_sortKeys = new long[handle.length];
+		}
+
+		for(int i = 0; i < n; i++) {
+			GameObject g = gameObjects.get(i);
+			Transform t = g.transform;
+			Material m = g.material;
+			u.handle[i] = g.handle;
+			u.x[i] = t.position.x;
+			u.y[i] = t.position.y;
+			u.width[i] = t.size.x;
+			u.height[i] = t.size.y;
+			u.depth[i] = t.depth;
+			u.color[i] = m.color == null ? 0 : m.color.getRGB();
+			u.flags[i] = (m.isVisible ? VISIBLE : 0) | (g.bodyType == BodyType.STATIC ? STATIC : 0);
+			u.sprite[i] = m.getSprite() == null ? null : m.getSprite().getName();
+			_sortKeys[i] = ((long)g.handle << 32) | i;
+		}
+		Arrays.sort(_sortKeys, 0, n);
+
+		for(int j = 0; j < n; j++) {
+			copy(j, u, (int)_sortKeys[j]);
+		}
+		Arrays.fill(u.sprite, 0, n, null);
+		Arrays.fill(sprite, n, Math.max(n, count), null);
+		count = n;
+		this.seq = seq;
+	}
+
+	/**
+	 * Copies entity j of another state into entity i of this one.
+	 */
+	void copy(int i, WorldState from, int j) {
+		handle[i] = from.handle[j];
+		x[i] = from.x[j];
+		y[i] = from.y[j];
+		width[i] = from.width[j];
+		height[i] = from.height[j];
+		depth[i] = from.depth[j];
+		color[i] = from.color[j];
+		flags[i] = from.flags[j];
+		sprite[i] = from.sprite[j];
+	}
+
+	void ensureCapacity(int n) {
+		if(n > handle.length) {
+			int capacity = Math.max(n, handle.length * 2);
+			handle = Arrays.copyOf(handle, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			width = Arrays.copyOf(width, capacity);
+			height = Arrays.copyOf(height, capacity);
+			depth = Arrays.copyOf(depth, capacity);
+			color = Arrays.copyOf(color, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+			sprite = Arrays.copyOf(sprite, capacity);
+		}
+	}
+
+	void clear() {
+		Arrays.fill(sprite, 0, count, null);
+		count = 0;
+		seq = -1;
+	}
+}